@@ -0,0 +1,82 @@
+package ru.mvz.elasticsearch.benchmark;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import ru.mvz.elasticsearch.service.BulkBody;
+import ru.mvz.elasticsearch.service.BulkItem;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Тесты производительности формирования тела _bulk-запроса из буферов операций
+ * и восстановления тела запроса из журнала упреждающей записи
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkBodyBenchmark {
+
+    @Param({"50", "500"})
+    public int items;
+
+    @Param({"512"})
+    public int documentBytes;
+
+    final private DataBufferFactory bufferFactory = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+
+    private byte[] operation;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        StringBuilder source = new StringBuilder("{\"field\":\"");
+        while(source.length() < documentBytes - 3) {
+            source.append('x');
+        }
+        source.append("\"}\n");
+        operation = ("{\"index\":{\"_index\":\"sample\",\"_id\":\"5f1d7c8e9b1e8b3a2c4d5e6f\"}}\n" + source)
+                .getBytes(StandardCharsets.UTF_8);
+        body = new byte[operation.length * items];
+        for(int i = 0; i < items; i++) {
+            System.arraycopy(operation, 0, body, i * operation.length, operation.length);
+        }
+    }
+
+    /**
+     * Выделение буферов операций, объединение их в тело запроса и освобождение
+     */
+    @Benchmark
+    public int join() {
+        List<BulkItem> bulkItems = new ArrayList<>(items);
+        for(int i = 0; i < items; i++) {
+            DataBuffer buffer = bufferFactory.allocateBuffer(operation.length);
+            buffer.write(operation);
+            bulkItems.add(new BulkItem(buffer, null));
+        }
+        BulkBody bulkBody = BulkBody.join(bufferFactory, bulkItems);
+        int size = bulkBody.size();
+        bulkBody.release();
+        return size;
+    }
+
+    @Benchmark
+    public int wrap() {
+        BulkBody bulkBody = BulkBody.wrap(bufferFactory, body);
+        int size = bulkBody.size();
+        bulkBody.release();
+        return size;
+    }
+}
@@ -0,0 +1,133 @@
+package ru.mvz.elasticsearch.benchmark;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import ru.mvz.elasticsearch.domain.MongoElasticIndex;
+
+import java.util.*;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Генератор документов для тестов производительности. Документ содержит все поля описания индекса
+ * и присоединяемых коллекций, а также посторонние поля, удаляемые при формировании документа индекса.
+ * Генерация детерминирована начальным значением генератора случайных чисел
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class DocumentGenerator {
+
+    final private Random random;
+
+    /**
+     * Количество посторонних полей на каждом уровне вложенности
+     */
+    final private int fieldsPerLevel;
+
+    /**
+     * Глубина вложенности посторонних полей
+     */
+    final private int depth;
+
+    /**
+     * Количество элементов массивов
+     */
+    final private int arraySize;
+
+    public DocumentGenerator(long seed, int fieldsPerLevel, int depth, int arraySize) {
+        this.random = new Random(seed);
+        this.fieldsPerLevel = fieldsPerLevel;
+        this.depth = depth;
+        this.arraySize = arraySize;
+    }
+
+    /**
+     * Формирует документ для описания индекса
+     *
+     * @param mongoElasticIndex описание индекса
+     * @return документ, значения которого - строки, кроме _id
+     */
+    public Document generate(MongoElasticIndex mongoElasticIndex) {
+        Document document = filler(depth);
+        document.put("_id", new ObjectId());
+        List<List<String>> paths = new ArrayList<>(mongoElasticIndex.getAllFields());
+        if(nonNull(mongoElasticIndex.getSummaryFieldFields())) {
+            paths.addAll(mongoElasticIndex.getSummaryFieldFields());
+        }
+        paths.forEach(path -> putPath(document, path, 0, true));
+            // Поля соединения читаются методом Document.getEmbedded и не могут содержать массивы
+        for(MongoElasticIndex.JoinedCollection joinedCollection: mongoElasticIndex.getJoinedCollections()) {
+            if(nonNull(joinedCollection.getLocalFields())) {
+                joinedCollection.getLocalFields().forEach(path -> putPath(document, path, 0, false));
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Добавляет в документ поле по пути. Если допускаются массивы, каждый второй промежуточный узел
+     * является массивом документов
+     */
+    @SuppressWarnings("unchecked")
+    private void putPath(Document document, List<String> path, int level, boolean arrays) {
+        String key = path.get(level);
+        if(level == path.size() - 1) {
+            document.putIfAbsent(key, text());
+            return;
+        }
+        Object child = document.get(key);
+        if(!(child instanceof Document) && !(arrays && child instanceof List)) {
+            child = !arrays || level % 2 == 0 ? new Document() : newArray();
+            document.put(key, child);
+        }
+        if(child instanceof Document) {
+            putPath((Document) child, path, level + 1, arrays);
+        }
+        else {
+            for(Object item: (List<Object>) child) {
+                putPath((Document) item, path, level + 1, arrays);
+            }
+        }
+    }
+
+    private List<Object> newArray() {
+        List<Object> array = new ArrayList<>(arraySize);
+        for(int i = 0; i < arraySize; i++) {
+            array.add(new Document());
+        }
+        return array;
+    }
+
+    /**
+     * Формирует поддерево посторонних полей: строки, массивы строк и вложенные документы
+     */
+    private Document filler(int level) {
+        Document document = new Document();
+        for(int i = 0; i < fieldsPerLevel; i++) {
+            String key = "field" + level + "_" + i;
+            if(level > 0 && i % 3 == 0) {
+                document.put(key, filler(level - 1));
+            }
+            else if(i % 3 == 1) {
+                List<Object> array = new ArrayList<>(arraySize);
+                for(int j = 0; j < arraySize; j++) {
+                    array.add(text());
+                }
+                document.put(key, array);
+            }
+            else {
+                document.put(key, text());
+            }
+        }
+        return document;
+    }
+
+    private String text() {
+        char[] chars = new char[8 + random.nextInt(24)];
+        for(int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,144 @@
+package ru.mvz.elasticsearch.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import ru.mvz.elasticsearch.domain.Bson2MongoElasticIndexParameters;
+import ru.mvz.elasticsearch.domain.MongoElasticIndex;
+import ru.mvz.elasticsearch.util.*;
+import ru.mvz.elasticsearch.util.Package;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Тесты производительности преобразования документа MongoDB в операцию _bulk-запроса.
+ * Документы генерируются для описаний индексов из каталога {@code index-definition}
+ * (системное свойство {@code index.definition.path}). Методы, изменяющие документ,
+ * обрабатывают его копию, время копирования измеряется отдельно методом {@link #deepCopy()}
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DocumentTransformBenchmark {
+
+    @Param({"sample-index.json", "egrip-index.json"})
+    public String definition;
+
+    @Param({"10", "50"})
+    public int fieldsPerLevel;
+
+    @Param({"3"})
+    public int depth;
+
+    @Param({"5"})
+    public int arraySize;
+
+    final private DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    private DocumentHelper documentHelper;
+
+    private MongoElasticIndex mongoElasticIndex;
+
+    private Document document;
+
+    private RawBsonDocument rawDocument;
+
+    /**
+     * Документ без _id, все значения которого - строки
+     */
+    private Document textDocument;
+
+    private DocumentHelper.ValueReceiver countingReceiver;
+
+    private long visited;
+
+    @Setup
+    public void setup() throws Exception {
+        documentHelper = new DocumentHelper(new DocumentBson(), new ObjectMapper());
+        Document indexDefinition = Document.parse(new String(Files.readAllBytes(
+                Paths.get(System.getProperty("index.definition.path", "index-definition"), definition)),
+                StandardCharsets.UTF_8));
+        mongoElasticIndex = new MongoElasticIndex(new Bson2MongoElasticIndexParameters(indexDefinition, documentHelper));
+        document = new DocumentGenerator(42, fieldsPerLevel, depth, arraySize).generate(mongoElasticIndex);
+        rawDocument = new RawBsonDocument(document, new DocumentCodec());
+        textDocument = Package.deepCopy(document);
+        textDocument.remove("_id");
+        countingReceiver = new DocumentHelper.ValueReceiver() {
+            @Override
+            public DocumentHelper.ValueReceiver receive(ContextForEachTree ctx) {
+                visited++;
+                return this;
+            }
+        };
+    }
+
+    @Benchmark
+    public Document deepCopy() {
+        return Package.deepCopy(document);
+    }
+
+    @Benchmark
+    public DataBuffer indexBuild() throws Exception {
+        return mongoElasticIndex.indexBuild(Package.deepCopy(document), bufferFactory);
+    }
+
+    /**
+     * Для индекса с присоединяемыми коллекциями измеряется только преобразование без соединения,
+     * в рабочем режиме такие индексы всегда обрабатываются как Document
+     */
+    @Benchmark
+    public DataBuffer indexBuildRaw() throws Exception {
+        return mongoElasticIndex.indexBuild(rawDocument, bufferFactory);
+    }
+
+    @Benchmark
+    public DataBuffer deleteBuild() {
+        return mongoElasticIndex.deleteBuild(document, bufferFactory);
+    }
+
+    /**
+     * Отбор полей документа, ранее выполнявшийся методом {@code DocumentHelper.scanRemoveTree}
+     */
+    @Benchmark
+    public Document prune() {
+        Document copy = Package.deepCopy(document);
+        mongoElasticIndex.getAllFieldsTrie().prune(copy);
+        return copy;
+    }
+
+    @Benchmark
+    public long forEachTree() throws Exception {
+        documentHelper.forEachTree(countingReceiver, document);
+        return visited;
+    }
+
+    @Benchmark
+    public List<List<String>> toList() throws Exception {
+        return documentHelper.toList(textDocument);
+    }
+
+    @Benchmark
+    public List<MongoElasticIndex.JoinCondition> getJoinConditions() {
+        return mongoElasticIndex.getJoinConditions(document);
+    }
+
+    @Benchmark
+    public List<List<String>> joinArrayList() {
+        return Package.joinArrayList(mongoElasticIndex.getFields(), mongoElasticIndex.getSummaryFieldFields());
+    }
+}
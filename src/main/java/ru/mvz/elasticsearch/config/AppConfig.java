@@ -1,6 +1,7 @@
 package ru.mvz.elasticsearch.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.PooledByteBufAllocator;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -8,12 +9,19 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import ru.mvz.elasticsearch.service.Lane;
 import ru.mvz.elasticsearch.util.DocumentBson;
 import ru.mvz.elasticsearch.util.DocumentHelper;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
 @Configuration
 @ConfigurationProperties(prefix = "app")
@@ -26,14 +34,56 @@ public class AppConfig {
     private int maxSizeBuffer;
     @Value("${:500}")
     private int maxDurationBuffer;
+    @Value("${:5242880}")
+    private int maxBulkBytes;
     @Value("${:2}")
     private int indexParallelism;
     @Value("${:100}")
-    private int maxProcessingRequest;
+    private int fetchBatchSize;
+    @Value("${:20}")
+    private int fetchBatchDuration;
+    @Value("${:false}")
+    private boolean rawBsonTranscoding;
+    @Value("${:50}")
+    private int coalesceWindow;
+    @Value("${:1000}")
+    private int coalesceMaxKeys;
     @Value("${:100}")
-    private int sleepOverRequest;
-    @Value("${:10}")
-    private int sleepCycleCountMax;
+    private int joinBatchSize;
+    @Value("${:20}")
+    private int joinBatchDuration;
+    @Value("${:8}")
+    private int refreshPartitions;
+    @Value("${:4}")
+    private int refreshConcurrency;
+    @Value("${:1000}")
+    private int refreshBatchSize;
+    @Value("${:10000}")
+    private int refreshSampleSize;
+    @Value("${:elasticSearchCheckpoints}")
+    private String checkpointCollection;
+    @Value("${:10000}")
+    private int checkpointInterval;
+    @Value("${:100}")
+    private int maxProcessingRequest;
+    @Value("${:1}")
+    private int minProcessingRequest;
+    @Value("${:4}")
+    private int initialProcessingRequest;
+    @Value("${:0.7}")
+    private double processingRequestBackoffRatio;
+    @Value("${:2.0}")
+    private double processingRequestLatencyTolerance;
+    @Value("${:5000}")
+    private int pressurePollInterval;
+    @Value("${:0.5}")
+    private double pressureLow;
+    @Value("${:0.85}")
+    private double pressureHigh;
+    @Value("${:0.1}")
+    private double pressureMinFactor;
+    @Value("${:30000}")
+    private int definitionNotFoundTtl;
     @Value("${:3}")
     private int webClientRetryMaxAttempts;
     @Value("${:2}")
@@ -43,6 +93,36 @@ public class AppConfig {
 
     private String fileStoragePath;
 
+    private String walPath = "wal";
+    @Value("${:67108864}")
+    private int walSegmentSize;
+    @Value("${:10}")
+    private int walSyncInterval;
+
+    /**
+     * Веса очередей приоритета _bulk-запросов
+     */
+    private Map<Lane, Integer> laneWeights = new EnumMap<>(Lane.class);
+
+    /**
+     * Ограничения скорости записи очередей приоритета, документов и байт в секунду. 0 - без ограничения
+     */
+    private Map<Lane, Double> laneDocumentsRate = new EnumMap<>(Lane.class);
+
+    private Map<Lane, Double> laneBytesRate = new EnumMap<>(Lane.class);
+
+    {
+        laneWeights.put(Lane.LIVE, 8);
+        laneWeights.put(Lane.DELETE, 4);
+        laneWeights.put(Lane.REFRESH, 2);
+        laneWeights.put(Lane.REPLAY, 1);
+    }
+
+    /**
+     * Индексы (имя или имя/тип), коллекции которых отслеживаются потоками изменений MongoDB
+     */
+    private List<String> changeStreamIndexes = new ArrayList<>();
+
     @Bean
     DocumentHelper documentTree() {
         return new DocumentHelper(new DocumentBson(), objectMapper());
@@ -54,6 +134,12 @@ public class AppConfig {
                 .setDateFormat(new SimpleDateFormat(dateFormat));
     }
 
+    @Bean
+    @Qualifier("bulk")
+    DataBufferFactory bulkBufferFactory() {
+        return new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+    }
+
     @Bean
     @Qualifier("fileStorage")
     Path path() {
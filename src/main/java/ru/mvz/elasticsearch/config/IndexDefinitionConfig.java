@@ -23,6 +23,8 @@ public class IndexDefinitionConfig {
     @Value("${:Cp1251}")
     private String charsetName;
 
+    private boolean watch = true;
+
 
     @Bean
     IndexDefinition indexDefinition() {
@@ -38,6 +40,11 @@ public class IndexDefinitionConfig {
             public Charset getCharset() {
                 return charset;
             }
+
+            @Override
+            public boolean isWatch() {
+                return watch;
+            }
         };
     }
 }
@@ -27,6 +27,21 @@ public class RabbitMQConfig {
 
     private String routingKey;
 
+    /**
+     * Подтверждать сообщения после записи соответствующих операций в ElasticSearch
+     */
+    private boolean manualAck = false;
+
+    /**
+     * Количество неподтвержденных сообщений, передаваемых брокером получателю (QoS)
+     */
+    private int prefetch = 1000;
+
+    /**
+     * Интервал отправки подтверждений брокеру, мс
+     */
+    private int ackInterval = 100;
+
     @Getter(lazy=true)
     private final Utils.ExceptionFunction<ConnectionFactory, ? extends Connection>
             connectionSupplier = createConnectionSupplier();
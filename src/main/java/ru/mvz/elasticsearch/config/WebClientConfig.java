@@ -3,6 +3,7 @@ package ru.mvz.elasticsearch.config;
 import io.netty.channel.ChannelOption;
 import io.netty.handler.timeout.ReadTimeoutHandler;
 import io.netty.handler.timeout.WriteTimeoutHandler;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -19,8 +20,13 @@ import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
 import reactor.netty.http.client.HttpClient;
-import reactor.netty.tcp.TcpClient;
+import reactor.netty.resources.ConnectionProvider;
+import ru.mvz.elasticsearch.service.ElasticNodes;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static org.springframework.web.reactive.function.client.ExchangeFilterFunctions.basicAuthentication;
@@ -37,27 +43,176 @@ public class WebClientConfig {
     @Value("${:9200}")
     private Integer port;
 
+    /**
+     * Таймаут установления соединения, мс
+     */
     @Value("${:1000}")
     private Integer timeout;
 
+    /**
+     * Таймауты чтения и записи данных запроса, мс
+     */
+    @Value("${:60000}")
+    private Integer readTimeout;
+
+    @Value("${:60000}")
+    private Integer writeTimeout;
+
+    /**
+     * Таймаут получения ответа после отправки запроса, мс
+     */
+    @Value("${:60000}")
+    private Integer responseTimeout;
+
+    /**
+     * Размер пула соединений
+     */
+    @Value("${:64}")
+    private Integer maxConnections;
+
+    /**
+     * Количество запросов, ожидающих соединение пула, и время ожидания соединения, мс
+     */
+    @Value("${:1000}")
+    private Integer pendingAcquireMaxCount;
+
+    @Value("${:45000}")
+    private Integer pendingAcquireTimeout;
+
+    /**
+     * Время простоя, после которого соединение закрывается, и интервал фоновой проверки соединений пула, мс
+     */
+    @Value("${:30000}")
+    private Integer maxIdleTime;
+
+    @Value("${:30000}")
+    private Integer evictInterval;
+
+    /**
+     * Время жизни соединения, мс. 0 - без ограничения
+     */
+    @Value("${:0}")
+    private Integer maxLifeTime;
+
+    @Value("${:true}")
+    private boolean keepAlive;
+
+    /**
+     * Сжатие gzip тел _bulk-запросов
+     */
+    @Value("${:false}")
+    private boolean compressRequests;
+
+    /**
+     * Запрос сжатых ответов (Accept-Encoding: gzip)
+     */
+    @Value("${:false}")
+    private boolean compressResponses;
+
+    /**
+     * Адреса узлов кластера в виде scheme://host:port. Если не заданы, используется base-url:port
+     */
+    private List<String> nodes = new ArrayList<>();
+
+    /**
+     * Способ выбора узла: round-robin или least-in-flight
+     */
+    @Value("${:round-robin}")
+    private String loadBalancing;
+
+    /**
+     * Количество последовательных ошибок, после которого узел исключается из выбора, и время исключения, мс
+     */
+    @Value("${:3}")
+    private Integer ejectFailures;
+
+    @Value("${:30000}")
+    private Integer ejectDuration;
+
+    /**
+     * Интервал и таймаут проверки доступности узлов, мс. 0 - не проверяется
+     */
+    @Value("${:10000}")
+    private Integer healthCheckInterval;
+
+    @Value("${:2000}")
+    private Integer healthCheckTimeout;
+
+    /**
+     * Интервал обновления списка узлов по _nodes/http, мс. 0 - список узлов не обновляется
+     */
+    @Value("${:0}")
+    private Integer discoveryInterval;
+
     private String user;
 
     private String password;
 
-    @Bean
-    @Qualifier("elastic")
-    public WebClient.Builder webClientWithTimeout() {
-        final TcpClient tcpClient = TcpClient
-                .create()
+    public List<String> getNodeUrls() {
+        return nodes.isEmpty() ? Collections.singletonList(baseUrl + ":" + port) : nodes;
+    }
+
+    /**
+     * Общий пул соединений запросов к ElasticSearch и проверок доступности узлов
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ReactorClientHttpConnector connector;
+
+    synchronized private ReactorClientHttpConnector connector() {
+        if(connector != null) {
+            return connector;
+        }
+        ConnectionProvider.Builder connectionProvider = ConnectionProvider.builder("elastic")
+                .maxConnections(maxConnections)
+                .pendingAcquireMaxCount(pendingAcquireMaxCount)
+                .pendingAcquireTimeout(Duration.ofMillis(pendingAcquireTimeout))
+                .maxIdleTime(Duration.ofMillis(maxIdleTime))
+                .evictInBackground(Duration.ofMillis(evictInterval))
+                .metrics(true);
+        if(maxLifeTime > 0) {
+            connectionProvider.maxLifeTime(Duration.ofMillis(maxLifeTime));
+        }
+        HttpClient httpClient = HttpClient.create(connectionProvider.build())
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeout)
-                .doOnConnected(connection -> {
-                    connection.addHandlerLast(new ReadTimeoutHandler(timeout, TimeUnit.MILLISECONDS));
-                    connection.addHandlerLast(new WriteTimeoutHandler(timeout, TimeUnit.MILLISECONDS));
-                });
+                .option(ChannelOption.SO_KEEPALIVE, keepAlive)
+                .keepAlive(keepAlive)
+                .compress(compressResponses)
+                .responseTimeout(Duration.ofMillis(responseTimeout))
+                    // Обработчики добавляются на время запроса и удаляются при возврате соединения в пул,
+                    // поэтому таймаут чтения не закрывает простаивающие соединения
+                .doOnRequest((request, connection) -> connection
+                        .addHandlerLast(new ReadTimeoutHandler(readTimeout, TimeUnit.MILLISECONDS))
+                        .addHandlerLast(new WriteTimeoutHandler(writeTimeout, TimeUnit.MILLISECONDS)));
+        connector = new ReactorClientHttpConnector(httpClient);
+        return connector;
+    }
 
+    @Bean(destroyMethod = "stop")
+    public ElasticNodes elasticNodes() {
+        ElasticNodes elasticNodes = new ElasticNodes(getNodeUrls(), loadBalancing, ejectFailures,
+                Duration.ofMillis(ejectDuration));
+        elasticNodes.start(WebClient.builder()
+                        .clientConnector(connector())
+                        .filter(basicAuthentication(user, password))
+                        .build(),
+                Duration.ofMillis(healthCheckInterval),
+                Duration.ofMillis(healthCheckTimeout),
+                Duration.ofMillis(discoveryInterval));
+        return elasticNodes;
+    }
+
+    /**
+     * Запросы распределяются между узлами кластера, адрес base-url:port заменяется адресом выбранного узла
+     */
+    @Bean
+    @Qualifier("elastic")
+    public WebClient.Builder webClientWithTimeout(ElasticNodes elasticNodes) {
         return WebClient.builder()
-                .baseUrl(baseUrl +":" + port.toString())
+                .clientConnector(connector())
+                .baseUrl(getNodeUrls().get(0))
                 .filter(basicAuthentication(user, password))
+                .filter(elasticNodes.filter())
                 .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
     }
 
@@ -6,9 +6,13 @@ import org.bson.Document;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Mono;
+import ru.mvz.elasticsearch.service.ElasticNodes;
 import ru.mvz.elasticsearch.service.IndexEvent;
 import ru.mvz.elasticsearch.service.Indexer;
+import ru.mvz.elasticsearch.service.Lane;
 import ru.mvz.elasticsearch.service.NotFoundIndexDefinitionException;
+import ru.mvz.elasticsearch.service.NotFoundTaskException;
+import ru.mvz.elasticsearch.service.TaskStateException;
 import ru.mvz.elasticsearch.util.ConvertDataException;
 import ru.mvz.elasticsearch.util.IllegalObjectIdException;
 
@@ -21,14 +25,25 @@ class ApiController {
 
     final private Indexer indexer;
 
-    public ApiController( Indexer indexer) {
+    final private ElasticNodes elasticNodes;
+
+    public ApiController( Indexer indexer, ElasticNodes elasticNodes) {
         this.indexer = indexer;
+        this.elasticNodes = elasticNodes;
     }
 
     @PostMapping(value = { "/index/refresh/{name}", "/index/refresh/{name}/{type}" })
-    public Mono<Document> refresh(@PathVariable String name, @PathVariable(required = false) String type)
+    public Mono<Document> refresh(@PathVariable String name, @PathVariable(required = false) String type,
+                                  @RequestParam(defaultValue = "false") boolean resume)
             throws IOException, ConvertDataException, NotFoundIndexDefinitionException {
-        return indexer.refresh(name, type);
+        return indexer.refresh(name, type, resume);
+    }
+
+    @PostMapping(value = { "/index/reindex/{name}", "/index/reindex/{name}/{type}" })
+    public Mono<Document> reindex(@PathVariable String name, @PathVariable(required = false) String type,
+                                  @RequestParam(defaultValue = "false") boolean forceMerge)
+            throws IOException, ConvertDataException, NotFoundIndexDefinitionException {
+        return indexer.reindex(name, type, forceMerge);
     }
 
     @PutMapping(value = { "/index/{id}/{name}", "/index/{id}/{name}/{type}" })
@@ -43,6 +58,65 @@ class ApiController {
         return indexer.sendIndexEvent(new IndexEvent("delete", id, name, type));
     }
 
+    @GetMapping(value = { "/index/cache/{name}", "/index/cache/{name}/{type}" })
+    public Mono<Document> joinCacheStats(@PathVariable String name, @PathVariable(required = false) String type)
+            throws IOException, ConvertDataException, NotFoundIndexDefinitionException {
+        return indexer.joinCacheStats(name, type);
+    }
+
+    @GetMapping(value = "/queue/coalescer")
+    public Mono<Document> queueCoalescer() {
+        return indexer.queueCoalescerState();
+    }
+
+    @GetMapping(value = "/bulk/limiter")
+    public Mono<Document> bulkLimiter() {
+        return indexer.bulkLimiterState();
+    }
+
+    @GetMapping(value = "/tasks")
+    public Mono<Document> tasks() {
+        return indexer.tasksState();
+    }
+
+    @GetMapping(value = "/tasks/{id}")
+    public Mono<Document> task(@PathVariable long id) throws NotFoundTaskException {
+        return indexer.taskState(id);
+    }
+
+    @DeleteMapping(value = "/tasks/{id}")
+    public Mono<Document> cancelTask(@PathVariable long id) throws NotFoundTaskException, TaskStateException {
+        return indexer.cancelTask(id);
+    }
+
+    @PostMapping(value = "/tasks/{id}/pause")
+    public Mono<Document> pauseTask(@PathVariable long id) throws NotFoundTaskException, TaskStateException {
+        return indexer.pauseTask(id);
+    }
+
+    @PutMapping(value = "/tasks/{id}/rate")
+    public Mono<Document> taskRate(@PathVariable long id,
+                                   @RequestParam(required = false) Double documents,
+                                   @RequestParam(required = false) Double bytes) throws NotFoundTaskException {
+        return indexer.updateTaskRate(id, documents, bytes);
+    }
+
+    @PostMapping(value = "/tasks/{id}/resume")
+    public Mono<Document> resumeTask(@PathVariable long id) throws NotFoundTaskException, TaskStateException {
+        return indexer.resumeTask(id);
+    }
+
+    @GetMapping(value = "/elastic/nodes")
+    public Mono<Document> elasticNodes() {
+        return Mono.just(elasticNodes.getState());
+    }
+
+    @PutMapping(value = "/bulk/lanes/{lane}/rate")
+    public Mono<Document> laneRate(@PathVariable String lane,
+                                   @RequestParam(required = false) Double documents,
+                                   @RequestParam(required = false) Double bytes) {
+        return indexer.updateLaneRate(Lane.valueOf(lane.toUpperCase()), documents, bytes);
+    }
 
     @ExceptionHandler(IllegalObjectIdException.class)
     @ResponseStatus(HttpStatus.BAD_REQUEST)
@@ -55,6 +129,24 @@ class ApiController {
         return Mono.just(new Document("Error", e.getMessage()));
     }
 
+    @ExceptionHandler(NotFoundTaskException.class)
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    public Mono<Document> handleNotFoundTaskException(NotFoundTaskException e) {
+        return Mono.just(new Document("Error", e.getMessage()));
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public Mono<Document> handleIllegalArgumentException(IllegalArgumentException e) {
+        return Mono.just(new Document("Error", e.getMessage()));
+    }
+
+    @ExceptionHandler(TaskStateException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    public Mono<Document> handleTaskStateException(TaskStateException e) {
+        return Mono.just(new Document("Error", e.getMessage()));
+    }
+
     @ExceptionHandler(JsonProcessingException.class)
     @ResponseStatus(HttpStatus.BAD_REQUEST)
     public Mono<Document> handleJsonProcessingException(JsonProcessingException e) {
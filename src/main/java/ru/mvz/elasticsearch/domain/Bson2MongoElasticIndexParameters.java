@@ -54,7 +54,7 @@ public class Bson2MongoElasticIndexParameters implements MongoElasticIndexParame
     }
 
     public void onUnknownAttribute(ContextForEachTree ctx) {
-        logger.warn("Unknown Attribute: {}", String.join("\\",ctx.getCurrentPath(ctx.getKey())));
+        logger.warn("Unknown Attribute: {}", String.join("\\",ctx.getFieldPath()));
     }
 
     @Override
@@ -161,6 +161,8 @@ public class Bson2MongoElasticIndexParameters implements MongoElasticIndexParame
                 }
                 else if ("summaryField".equals(key))
                     receiver = joinedCollectionSummaryFieldReceiver(documentHelper);
+                else if ("cache".equals(key) && ctx.getTypeValue() == NodeType.NODE)
+                    receiver = joinedCollectionCacheReceiver();
                 else if ("localFields".equals(key) && ctx.getTypeValue() == NodeType.ARRAY && nonNull(currentItem))
                     currentItem.setLocalFields((ArrayList<String>)(ctx.getValue()));
                 else if ("foreignFields".equals(key) && ctx.getTypeValue() == NodeType.ARRAY && nonNull(currentItem))
@@ -198,6 +200,32 @@ public class Bson2MongoElasticIndexParameters implements MongoElasticIndexParame
         };
     }
 
+    private ValueReceiver joinedCollectionCacheReceiver() {
+        return (ContextForEachTree ctx) -> {
+            int last = joinedCollections.size() - 1;
+            if(last >= 0 && ctx.getTypeValue() == NodeType.VALUE) {
+                MongoElasticIndex.JoinedCollection currentItem = joinedCollections.get(last);
+                switch (ctx.getKey()) {
+                    case "maxEntries":
+                        currentItem.setCacheMaxEntries(ctx.<Number>getValue(null).intValue());
+                        break;
+                    case "maxBytes":
+                        currentItem.setCacheMaxBytes(ctx.<Number>getValue(null).longValue());
+                        break;
+                    case "ttl":
+                        currentItem.setCacheTtl(ctx.<Number>getValue(null).longValue());
+                        break;
+                    case "invalidateOnEvent":
+                        currentItem.setCacheInvalidateOnEvent(ctx.getValue(null));
+                        break;
+                    default: onUnknownAttribute(ctx);
+                        break;
+                }
+            }
+            return null;
+        };
+    }
+
     private ValueReceiver joinedCollectionSummaryFieldReceiver(DocumentHelper documentHelper) {
         return (ContextForEachTree ctx) -> {
             String key = ctx.getKey();
@@ -0,0 +1,175 @@
+package ru.mvz.elasticsearch.domain;
+
+import lombok.Getter;
+import org.bson.Document;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Кэш документов присоединяемой коллекции с вытеснением давно не используемых записей (LRU),
+ * ограничением по количеству записей, оценочному объему и времени жизни.
+ * Ключом является список значений ключа соединения, отсутствие документа также кэшируется
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Getter
+public class JoinedCollectionCache {
+
+    /**
+     * Значение, возвращаемое для ключа, по которому документ отсутствует в коллекции
+     */
+    public static final Document NOT_FOUND = new Document();
+
+    final private int maxEntries;
+
+    final private long maxBytes;
+
+    final private long ttl;
+
+    final private boolean invalidateOnEvent;
+
+    final private LongAdder hits = new LongAdder();
+
+    final private LongAdder misses = new LongAdder();
+
+    final private LongAdder evictions = new LongAdder();
+
+    final private LongAdder invalidations = new LongAdder();
+
+    private long bytes;
+
+    final private LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public JoinedCollectionCache(int maxEntries, long maxBytes, long ttl, boolean invalidateOnEvent) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.invalidateOnEvent = invalidateOnEvent;
+    }
+
+    /**
+     * Возвращает документ по ключу соединения. Документ не должен изменяться вызывающим кодом
+     *
+     * @param key значения ключа соединения
+     * @return документ, {@link #NOT_FOUND} или null, если ключ отсутствует в кэше
+     */
+    public Document get(List<Object> key) {
+        Document result = null;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if(entry != null) {
+                if(entry.expires < System.currentTimeMillis()) {
+                    remove(key);
+                }
+                else {
+                    result = entry.document;
+                }
+            }
+        }
+        (isNull(result) ? misses : hits).increment();
+        return result;
+    }
+
+    public void put(List<Object> key, Document document) {
+        Entry entry = new Entry(document, System.currentTimeMillis() + ttl,
+                document == NOT_FOUND ? 0 : estimateSize(document));
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, entry);
+            bytes += entry.size;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+                bytes -= iterator.next().size;
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public void invalidate(List<Object> key) {
+        synchronized (entries) {
+            if(remove(key)) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            invalidations.add(entries.size());
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    public Document getStats() {
+        int size;
+        long currentBytes;
+        synchronized (entries) {
+            size = entries.size();
+            currentBytes = bytes;
+        }
+        return new Document()
+                .append("entries", size)
+                .append("bytes", currentBytes)
+                .append("hits", hits.sum())
+                .append("misses", misses.sum())
+                .append("evictions", evictions.sum())
+                .append("invalidations", invalidations.sum());
+    }
+
+    private boolean remove(List<Object> key) {
+        Entry entry = entries.remove(key);
+        if(entry != null) {
+            bytes -= entry.size;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Оценивает объем памяти, занимаемый деревом документа
+     */
+    static long estimateSize(Object value) {
+        if(value instanceof Map) {
+            long size = 48;
+            for(Map.Entry<?, ?> entry: ((Map<?, ?>) value).entrySet()) {
+                size += 32 + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            }
+            return size;
+        }
+        if(value instanceof List) {
+            long size = 24;
+            for(Object item: (List<?>) value) {
+                size += 8 + estimateSize(item);
+            }
+            return size;
+        }
+        if(value instanceof CharSequence) {
+            return 40 + 2L * ((CharSequence) value).length();
+        }
+        return 16;
+    }
+
+    private static class Entry {
+
+        final private Document document;
+
+        final private long expires;
+
+        final private long size;
+
+        Entry(Document document, long expires, long size) {
+            this.document = document;
+            this.expires = expires;
+            this.size = size;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package ru.mvz.elasticsearch.domain;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.sun.istack.internal.NotNull;
 import lombok.AllArgsConstructor;
@@ -7,12 +9,18 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.types.ObjectId;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import ru.mvz.elasticsearch.util.*;
 import ru.mvz.elasticsearch.util.Package;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -39,7 +47,20 @@ public class MongoElasticIndex extends MongoFields {
 
     final private Set<List<String>> allFields;
 
-    final private Set<List<String>> allFieldsPath;
+    /**
+     * Дерево путей полей индекса и присоединенных коллекций, используемое для отбора полей документа
+     */
+    final private FieldPathTrie allFieldsTrie;
+
+    final private FieldPathTrie summaryFieldsTrie;
+
+    final private byte[] indexActionPrefix;
+
+    final private byte[] deleteActionPrefix;
+
+    private static final byte[] ACTION_SUFFIX = "\"}}\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte NEW_LINE = '\n';
 
     public MongoElasticIndex(MongoElasticIndexParameters mongoElasticIndexParameters) {
 
@@ -60,10 +81,15 @@ public class MongoElasticIndex extends MongoFields {
 
         mongoElasticIndexParameters
                 .getJoinedCollections()
-                .forEach(p -> p.setProjection(Package.joinArrayList(p.getFields(), p.getSummaryFieldFields())));
+                .forEach(p -> {
+                    p.setProjection(Package.joinArrayList(p.getFields(), p.getSummaryFieldFields()));
+                    p.setFrom(Package.getStringWithDefault(p.getFrom(), this.collection));
+                });
 
         this.joinedCollections.addAll(mongoElasticIndexParameters.getJoinedCollections());
         this.joinedCollections.forEach(JoinedCollection::buildJoinedFields);
+        this.joinedCollections.forEach(JoinedCollection::buildSummaryFieldsTrie);
+        this.joinedCollections.forEach(JoinedCollection::buildCache);
 
         this.setSummaryFieldSeparator(mongoElasticIndexParameters.getSummaryFieldSeparator());
 
@@ -73,104 +99,174 @@ public class MongoElasticIndex extends MongoFields {
         this.allFields = new HashSet<>(Package.joinArrayList(this.getFields(),
                 extractFromJoinedCollection(JoinedCollection::getJoinedFields)));
 
-        this.allFieldsPath = generateSublistsFields(getAllFields());
+        this.allFieldsTrie = FieldPathTrie.compile(getAllFields());
+        this.summaryFieldsTrie = FieldPathTrie.compile(getSummaryFieldFields());
+
+        this.indexActionPrefix = actionPrefixBuild("index");
+        this.deleteActionPrefix = actionPrefixBuild("delete");
 
     }
 
-    public String deleteBuild(Document document)
-            throws ConvertDataException, JsonProcessingException{
-        StringBuilder stringBuilder = new StringBuilder();
-        actionBuild("delete", document, stringBuilder);
-        return stringBuilder.toString();
+    private MongoElasticIndex(MongoElasticIndex source, String index) {
+        this.documentTree = source.getDocumentTree();
+        this.documentHelper = source.getDocumentHelper();
+        this.index = index;
+        this.type = source.getType();
+        this.collection = source.getCollection();
+        this.setFields(source.getFields());
+        this.setSummaryFieldFields(source.getSummaryFieldFields());
+        this.setSummaryFieldName(source.getSummaryFieldName());
+        this.setSummaryFieldSeparator(source.getSummaryFieldSeparator());
+        this.joinedCollections.addAll(source.getJoinedCollections());
+        this.collectFieldAndJoinedFields = source.getCollectFieldAndJoinedFields();
+        this.allFields = source.getAllFields();
+        this.allFieldsTrie = source.getAllFieldsTrie();
+        this.summaryFieldsTrie = source.getSummaryFieldsTrie();
+        this.indexActionPrefix = actionPrefixBuild("index");
+        this.deleteActionPrefix = actionPrefixBuild("delete");
     }
 
-    public String indexBuild(Document document)
-            throws ConvertDataException, JsonProcessingException {
-       StringBuilder stringBuilder = new StringBuilder();
-       actionBuild("index", document, stringBuilder);
-
-       if(getSummaryFieldFields().size() > 0) {
-           stringBuilder.append("{");
-           appendKey(getSummaryFieldName(), stringBuilder);
-           stringBuilder.append("\"");
-           documentHelper.forEachTree(summaryReceiver(stringBuilder), document);
-           stringBuilder.append("\"");
-       }
-
-       Map<String, StringBuilder> joinedSummaryMap = null;
-       for(JoinedCollection joinedCollection: getJoinedCollections()) {
-           if(joinedCollection.getSummaryFieldFields().size() > 0) {
-               String summaryFieldName = Package.getStringWithDefault(joinedCollection.getSummaryFieldName(), getSummaryFieldName());
-               StringBuilder currentStringBuilder = stringBuilder;
-               if(!getSummaryFieldName().equals(summaryFieldName)) {
-                   if(isNull(joinedSummaryMap)) {
-                       joinedSummaryMap = new HashMap<>();
-                   }
-                   currentStringBuilder = joinedSummaryMap.get(summaryFieldName);
-                   if(isNull(currentStringBuilder)) {
-                       currentStringBuilder = new StringBuilder();
-                       appendKey(summaryFieldName, currentStringBuilder);
-                       currentStringBuilder.append("\"");
-                       joinedSummaryMap.put(summaryFieldName, currentStringBuilder);
-                   }
-               }
-               else if(currentStringBuilder.substring(stringBuilder.length()-1).equals("\"")) {
-                   currentStringBuilder.setLength(stringBuilder.length()-1);
-               }
-               documentHelper.forEachTree(summaryReceiver(currentStringBuilder), document.get(joinedCollection.getJoinedFieldName()));
-               currentStringBuilder.append("\"");
-           }
-       }
-
-       if(nonNull(joinedSummaryMap)) {
-           joinedSummaryMap.forEach((nameField, currentStringBuilder) -> {
-               if(stringBuilder.substring(stringBuilder.length()-1).equals("\"")) {
-                   stringBuilder.append(",");
-                   stringBuilder.append(currentStringBuilder);
-               }
-           });
-       }
-
-       documentHelper.scanRemoveTree(testRemoveBuilder(getAllFields(), getAllFieldsPath()), document);
-
-       int startSubstring = "\n".equals(stringBuilder.substring(stringBuilder.length()-1)) ? 0 : 1;
-
-       String mainFields = documentHelper.getObjectMapper().writeValueAsString(document);
-        if(mainFields.length() > 3) {
-            if(stringBuilder.substring(stringBuilder.length()-1).equals("\"")) {
-                stringBuilder.append(",");
+    /**
+     * Создает описание индекса, отличающееся от исходного только именем индекса ElasticSearch.
+     * Присоединяемые коллекции и их кэши используются совместно с исходным описанием
+     *
+     * @param index имя индекса ElasticSearch
+     * @return описание индекса
+     */
+    public MongoElasticIndex withIndex(String index) {
+        return new MongoElasticIndex(this, index);
+    }
+
+    public DataBuffer deleteBuild(Document document, DataBufferFactory bufferFactory) {
+        DataBuffer buffer = bufferFactory.allocateBuffer(getDeleteActionPrefix().length + 32);
+        actionBuild(getDeleteActionPrefix(), document.get("_id"), buffer);
+        return buffer;
+    }
+
+    public DataBuffer indexBuild(Document document, DataBufferFactory bufferFactory)
+            throws ConvertDataException, IOException {
+        DataBuffer buffer = bufferFactory.allocateBuffer();
+        try {
+            actionBuild(getIndexActionPrefix(), document.get("_id"), buffer);
+
+            Map<String, StringBuilder> summaryMap = summaryBuild(document);
+
+            allFieldsTrie.prune(document);
+
+            try (JsonGenerator generator = documentHelper.getObjectMapper()
+                    .createGenerator(buffer.asOutputStream(), JsonEncoding.UTF8)) {
+                generator.writeStartObject();
+                for(Map.Entry<String, StringBuilder> entry: summaryMap.entrySet()) {
+                    generator.writeStringField(entry.getKey(), entry.getValue().toString());
+                }
+                for(Map.Entry<String, Object> entry: document.entrySet()) {
+                    generator.writeFieldName(entry.getKey());
+                    generator.writeObject(entry.getValue());
+                }
+                generator.writeEndObject();
             }
-            stringBuilder.append(mainFields.substring(startSubstring));
+            buffer.write(NEW_LINE);
         }
-        else {
-            stringBuilder.append("}");
+        catch (ConvertDataException | IOException | RuntimeException e) {
+            DataBufferUtils.release(buffer);
+            throw e;
         }
+        return buffer;
+    }
 
-       stringBuilder.append("\n");
-       return stringBuilder.toString();
+    /**
+     * Формирует операцию индексации документа, полученного из MongoDB без декодирования.
+     * Поля отбираются и записываются в JSON непосредственно из байт документа,
+     * интегрированное поле записывается последним полем документа
+     *
+     * @param document документ
+     * @param bufferFactory фабрика буферов
+     * @return буфер операции
+     */
+    public DataBuffer indexBuild(RawBsonDocument document, DataBufferFactory bufferFactory) throws IOException {
+        DataBuffer buffer = bufferFactory.allocateBuffer();
+        try {
+            actionBuild(getIndexActionPrefix(), Package.fromBsonValue(document.get("_id")), buffer);
+
+            StringBuilder summary = getSummaryFieldFields().size() > 0 ? new StringBuilder() : null;
+
+            try (JsonGenerator generator = documentHelper.getObjectMapper()
+                    .createGenerator(buffer.asOutputStream(), JsonEncoding.UTF8)) {
+                generator.writeStartObject();
+                BsonJsonTranscoder.writeFields(document, generator, allFieldsTrie,
+                        nonNull(summary) ? summaryFieldsTrie : null,
+                        nonNull(summary) ? summaryReceiver(summary) : null);
+                if(nonNull(summary)) {
+                    generator.writeStringField(getSummaryFieldName(), summary.toString());
+                }
+                generator.writeEndObject();
+            }
+            buffer.write(NEW_LINE);
+        }
+        catch (IOException | RuntimeException e) {
+            DataBufferUtils.release(buffer);
+            throw e;
+        }
+        return buffer;
     }
 
-    private void actionBuild(String action, Document document, StringBuilder stringBuilder) {
-        String id = document.get("_id").toString();
-        stringBuilder.append("{" + "\"").append(action).append("\"").append(":{");
-        appendKeyValue("_index", getIndex(), stringBuilder);
-        String type = getType();
-        if(nonNull(type) && !type.isEmpty()) {
-            stringBuilder.append(',');
-            appendKeyValue("_type", type, stringBuilder);
+    /**
+     * Документы индекса без присоединяемых коллекций не изменяются перед записью в ElasticSearch,
+     * поэтому могут читаться из MongoDB без декодирования и преобразовываться в JSON непосредственно
+     */
+    public boolean isRawTranscodable() {
+        return getJoinedCollections().isEmpty();
+    }
+
+    /**
+     * Формирует значения интегрированных полей документа и присоединенных к нему документов.
+     * Значения присоединенных коллекций с совпадающим именем интегрированного поля объединяются
+     *
+     * @param document исходный документ
+     * @return значения интегрированных полей по их именам
+     */
+    private Map<String, StringBuilder> summaryBuild(Document document)
+            throws ConvertDataException, JsonProcessingException {
+        Map<String, StringBuilder> summaryMap = new LinkedHashMap<>();
+        if(getSummaryFieldFields().size() > 0) {
+            summaryFieldsTrie.forEachValue(document,
+                    summaryReceiver(summaryMap.computeIfAbsent(getSummaryFieldName(), k -> new StringBuilder())));
+        }
+        for(JoinedCollection joinedCollection: getJoinedCollections()) {
+            if(nonNull(joinedCollection.getSummaryFieldFields()) && joinedCollection.getSummaryFieldFields().size() > 0) {
+                String summaryFieldName = Package.getStringWithDefault(joinedCollection.getSummaryFieldName(),
+                        Package.getStringWithDefault(getSummaryFieldName(), "summaryField"));
+                joinedCollection.getSummaryFieldsTrie().forEachValue(document.get(joinedCollection.getJoinedFieldName()),
+                        summaryReceiver(summaryMap.computeIfAbsent(summaryFieldName, k -> new StringBuilder())));
+            }
         }
-        stringBuilder.append(',');
-        appendKeyValue("_id", id, stringBuilder);
-        stringBuilder.append("}}\n");
+        return summaryMap;
     }
 
-    static private void appendKey(String key, StringBuilder stringBuilder) {
-        stringBuilder.append("\"").append(key).append("\"").append(":");
+    private void actionBuild(byte[] actionPrefix, Object id, DataBuffer buffer) {
+        buffer.write(actionPrefix);
+        JsonBytes.writeEscaped(buffer, id.toString());
+        buffer.write(ACTION_SUFFIX);
     }
 
-    static private void appendKeyValue(String key, String value, StringBuilder stringBuilder) {
-        appendKey(key, stringBuilder);
-        stringBuilder.append("\"").append(value).append("\"");
+    /**
+     * Формирует начало строки действия _bulk-запроса в кодировке UTF-8, вида
+     * {@code {"index":{"_index":"name","_type":"type","_id":"}
+     *
+     * @param action действие
+     * @return массив байт
+     */
+    private byte[] actionPrefixBuild(String action) {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append("{\"").append(action).append("\":{\"_index\":\"")
+                .append(new String(JsonBytes.escape(getIndex()), StandardCharsets.UTF_8)).append("\"");
+        String type = getType();
+        if(nonNull(type) && !type.isEmpty()) {
+            stringBuilder.append(",\"_type\":\"")
+                    .append(new String(JsonBytes.escape(type), StandardCharsets.UTF_8)).append("\"");
+        }
+        stringBuilder.append(",\"_id\":\"");
+        return stringBuilder.toString().getBytes(StandardCharsets.UTF_8);
     }
 
     private Set<List<String>> extractFromJoinedCollection (Function<JoinedCollection,
@@ -217,40 +313,18 @@ public class MongoElasticIndex extends MongoFields {
                 .collect(Collectors.toList());
     }
 
-    private Set<List<String>> generateSublistsFields(Set<List<String>> fields) {
-        return fields.stream()
-                .flatMap(e -> Package.beginsSublists(e).stream())
-                .collect(Collectors.toSet());
-    }
-
-    private DocumentHelper.ValueReceiver summaryReceiver(StringBuilder stringBuilder) {
+    private Consumer<Object> summaryReceiver(StringBuilder stringBuilder) {
         String collectFieldSeparator = getSummaryFieldSeparator();
-        return new DocumentHelper.ValueReceiver() {
-            public DocumentHelper.ValueReceiver receive(ContextForEachTree ctx) {
-                ArrayList<String> currentPath = ctx.getCurrentPath(ctx.getKey());
-                Object value = ctx.getValue();
-                if (ctx.getTypeValue() == NodeType.VALUE &&
-                     (value instanceof String || value instanceof Integer || value instanceof Long) &&
-                     getSummaryFieldFields().contains(currentPath)) {
-                    if(!"\"".equals(stringBuilder.substring(stringBuilder.length()-1))) {
-                        stringBuilder.append(collectFieldSeparator);
-                    }
-                    stringBuilder.append(value);
+        return value -> {
+            if(value instanceof String || value instanceof Integer || value instanceof Long) {
+                if(stringBuilder.length() > 0) {
+                    stringBuilder.append(collectFieldSeparator);
                 }
-                return this;
+                stringBuilder.append(value);
             }
         };
     }
 
-    private BiFunction<ContextForEachTree, Map.Entry<String, Object>, TestRemoveResult> testRemoveBuilder(
-            Set<List<String>> notRemoved, Set<List<String>> tested) {
-        return (ContextForEachTree context, Map.Entry<String, Object> node) -> {
-            ArrayList<String> keyPath = context.getCurrentPath(node);
-            return tested.contains(keyPath) ? TestRemoveResult.NEXT
-                    : notRemoved.contains(keyPath)  ? TestRemoveResult.NO_REMOVE : TestRemoveResult.REMOVE;
-        };
-    }
-
     /**
      *
      *
@@ -276,6 +350,18 @@ public class MongoElasticIndex extends MongoFields {
 
         public Set<List<String>> joinedFields;
 
+        private int cacheMaxEntries;
+
+        private long cacheMaxBytes = Long.MAX_VALUE;
+
+        private long cacheTtl = 60000;
+
+        private boolean cacheInvalidateOnEvent = true;
+
+        private JoinedCollectionCache cache;
+
+        private FieldPathTrie summaryFieldsTrie;
+
         public void setLocalFields(@NotNull List<String> value) {
             this.localFields = Package.splitByDot(Stream.of(value));
         }
@@ -294,6 +380,17 @@ public class MongoElasticIndex extends MongoFields {
                                     .collect(Collectors.toList()))
                     .collect(Collectors.toSet()));
         }
+
+        public void buildSummaryFieldsTrie() {
+            setSummaryFieldsTrie(FieldPathTrie.compile(getSummaryFieldFields()));
+        }
+
+        public void buildCache() {
+            setCache(getCacheMaxEntries() > 0
+                    ? new JoinedCollectionCache(getCacheMaxEntries(), getCacheMaxBytes(), getCacheTtl(),
+                            isCacheInvalidateOnEvent())
+                    : null);
+        }
     }
 
     @Getter
@@ -7,6 +7,7 @@ import org.bson.Document;
 
 import java.util.*;
 
+import static java.util.Objects.isNull;
 import static ru.mvz.elasticsearch.util.Package.splitByDot;
 
 /**
@@ -62,12 +63,13 @@ public class MongoFields {
     }
     /**
      * Устанавливает значение поля {@code SummaryFieldFields}
-     * Перед зависью поля оно разбивается на составные части, разделенный точками
+     * Перед зависью поля оно разбивается на составные части, разделенный точками.
+     * Если поля не заданы, устанавливается пустой набор
      *
      * @param fields набор имен полей
      */
     public void setSummaryFieldFields(Collection<List<String>> fields) {
-        this.summaryFieldFields = new HashSet<>(splitByDot(fields.stream()));
+        this.summaryFieldFields = isNull(fields) ? new HashSet<>() : new HashSet<>(splitByDot(fields.stream()));
     }
 
 }
@@ -8,10 +8,6 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.text.SimpleDateFormat;
-import java.util.Collection;
-import java.util.Date;
-import java.util.Random;
 import java.util.stream.Stream;
 
 @Component
@@ -23,21 +19,12 @@ public class FileStorage {
         this.path = path;
     }
 
-    public void writeCollection2Files(Collection<Object> collection) {
-        String ext = ".dat";
-        Random random = new Random();
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-ddHH mm-ss-SSS_");
-        collection.forEach(data -> {
-            String fileName = String.format("%s%06d",simpleDateFormat.format(new Date()), random.nextInt(100000))+ext;
-                    try {
-                        Files.write(path.resolve(fileName), ((String)data).getBytes());
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-        );
-    }
-
+    /**
+     * Возвращает тела запросов, сохраненные в файлах предыдущими версиями сервиса, и удаляет прочитанные файлы.
+     * Новые тела запросов сохраняются в журнале упреждающей записи {@link WriteAheadLog}
+     *
+     * @return поток тел запросов
+     */
     public Flux<String> pullFileContents() {
         Stream<Path> directoryStream;
         try {
@@ -45,14 +32,16 @@ public class FileStorage {
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-        return Flux.fromStream(directoryStream).map(file -> {
-            try {
-                String data = new String(Files.readAllBytes(file));
-                Files.delete(file);
-                return data;
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
-        });
+        return Flux.fromStream(directoryStream)
+                .filter(file -> Files.isRegularFile(file) && file.getFileName().toString().endsWith(".dat"))
+                .map(file -> {
+                    try {
+                        String data = new String(Files.readAllBytes(file));
+                        Files.delete(file);
+                        return data;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
     }
 }
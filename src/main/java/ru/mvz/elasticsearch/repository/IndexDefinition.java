@@ -11,4 +11,9 @@ public interface IndexDefinition {
     Path getPath(String fileName);
 
     Charset getCharset();
+
+    /**
+     * @return отслеживать изменения файлов описаний индексов
+     */
+    boolean isWatch();
 }
@@ -1,22 +1,60 @@
 package ru.mvz.elasticsearch.repository;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
 import org.bson.Document;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.file.*;
 
+import static java.nio.file.StandardWatchEventKinds.*;
 import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 
 @Service
 @Getter
 public class IndexDefinitionFileRepository implements IndexDefinitionRepository {
 
     final private IndexDefinition indexDefinition;
+
+    /**
+     * Изменения файлов каталога описаний. Каталог отслеживается в отдельном потоке,
+     * пока на изменения есть подписчики
+     */
+    @Getter(AccessLevel.NONE)
+    final private Flux<String> changes;
+
+    /**
+     * Поток отслеживания каталога, null - каталог не отслеживается
+     */
+    @Getter(AccessLevel.NONE)
+    final private Scheduler watchScheduler;
+
     IndexDefinitionFileRepository (IndexDefinition indexDefinition) {
         this.indexDefinition = indexDefinition;
+        this.watchScheduler = indexDefinition.isWatch()
+                ? Schedulers.newSingle("index-definition-watch", true)
+                : null;
+        this.changes = nonNull(watchScheduler)
+                ? Flux.create(this::watch)
+                        .subscribeOn(watchScheduler)
+                        .share()
+                : Flux.empty();
+    }
+
+    @PreDestroy
+    public void stopWatching() {
+        if(nonNull(watchScheduler)) {
+            watchScheduler.dispose();
+        }
     }
 
     @Override
@@ -34,6 +72,63 @@ public class IndexDefinitionFileRepository implements IndexDefinitionRepository
         return false;
     }
 
+    @Override
+    public Flux<String> changes() {
+        return changes;
+    }
+
+    /**
+     * Передает имена созданных, измененных и удаленных файлов описаний до отмены подписки.
+     * При переполнении очереди событий передается пустое имя. Служба отслеживания закрывается
+     * только обработчиком {@code onDispose}, который вызывается при отмене подписки, ошибке и завершении
+     */
+    private void watch(FluxSink<String> sink) {
+        Path directory = indexDefinition.getPath("");
+        WatchService watchService;
+        try {
+            watchService = directory.getFileSystem().newWatchService();
+        }
+        catch (IOException e) {
+            sink.error(e);
+            return;
+        }
+        sink.onDispose(() -> {
+            try {
+                watchService.close();
+            }
+            catch (IOException ignored) {
+            }
+        });
+        try {
+            directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            while(!sink.isCancelled()) {
+                WatchKey key = watchService.take();
+                for(WatchEvent<?> event: key.pollEvents()) {
+                    if(event.kind() == OVERFLOW) {
+                        sink.next("");
+                    }
+                    else if(event.context().toString().endsWith(".json")) {
+                        sink.next(event.context().toString());
+                    }
+                }
+                if(!key.reset()) {
+                    sink.error(new IOException("Index definition directory is no longer accessible: " + directory));
+                    return;
+                }
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            sink.complete();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sink.complete();
+        }
+        catch (IOException e) {
+            sink.error(e);
+        }
+    }
+
     private String fileNameBuild(String indexName, String indexType) {
         return indexName
                 + (isNull(indexType) || indexType.isEmpty()
@@ -3,6 +3,7 @@ package ru.mvz.elasticsearch.repository;
 import java.io.IOException;
 import java.util.Optional;
 import org.bson.Document;
+import reactor.core.publisher.Flux;
 
 public interface IndexDefinitionRepository {
 
@@ -10,4 +11,13 @@ public interface IndexDefinitionRepository {
 
     boolean save(String name, String type, Document document);
 
+    /**
+     * Возвращает поток уведомлений об изменении описаний индексов в хранилище
+     *
+     * @return поток имен изменившихся описаний, пустой, если хранилище не отслеживает изменения
+     */
+    default Flux<String> changes() {
+        return Flux.empty();
+    }
+
 }
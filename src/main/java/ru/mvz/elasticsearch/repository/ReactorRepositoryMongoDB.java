@@ -1,14 +1,32 @@
 package ru.mvz.elasticsearch.repository;
 
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.reactivestreams.client.ChangeStreamPublisher;
 import com.mongodb.reactivestreams.client.MongoCollection;
 import com.mongodb.reactivestreams.client.MongoDatabase;
 import lombok.Getter;
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
 import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import ru.mvz.elasticsearch.util.IllegalObjectIdException;
 import ru.mvz.elasticsearch.util.Package;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static java.util.Objects.nonNull;
+
 @Repository
 @Getter
 public class ReactorRepositoryMongoDB {
@@ -18,6 +36,10 @@ public class ReactorRepositoryMongoDB {
         return getMongoDatabase().getCollection(collectionName);
     }
 
+    public MongoCollection<RawBsonDocument> getRawCollection(String collectionName) {
+        return getMongoDatabase().getCollection(collectionName, RawBsonDocument.class);
+    }
+
     public ReactorRepositoryMongoDB(MongoDatabase mongoDatabase) {
         this.mongoDatabase = mongoDatabase;
     }
@@ -25,6 +47,17 @@ public class ReactorRepositoryMongoDB {
     public Flux<Document> findById(String collectionName, String id, Document projections)  throws IllegalObjectIdException {
         return Flux.from(getCollection(collectionName).find(Package.idDocument(id)).projection(projections));
     }
+    public Flux<Document> findByIds(String collectionName, Collection<?> ids, Document projections) {
+        return Flux.from(getCollection(collectionName).find(Filters.in("_id", ids)).projection(projections));
+    }
+
+    /**
+     * Читает документы по списку _id без декодирования
+     */
+    public Flux<RawBsonDocument> findByIdsRaw(String collectionName, Collection<?> ids, Document projections) {
+        return Flux.from(getRawCollection(collectionName).find(Filters.in("_id", ids)).projection(projections));
+    }
+
     public Flux<Document> find(String collectionName, Document expression, Document projections) {
         return Flux.from(getCollection(collectionName).find(expression).projection(projections));
     }
@@ -33,4 +66,88 @@ public class ReactorRepositoryMongoDB {
         return Flux.from(getCollection(collectionName).find().projection(projection));
     }
 
+    public Mono<Document> findOne(String collectionName, Document expression) {
+        return Mono.from(getCollection(collectionName).find(expression).first());
+    }
+
+    /**
+     * Заменяет документ с тем же _id, при отсутствии документа он добавляется
+     */
+    public Mono<Void> upsert(String collectionName, Document document) {
+        return Mono.from(getCollection(collectionName).replaceOne(Filters.eq("_id", document.get("_id")),
+                        document, new ReplaceOptions().upsert(true)))
+                .then();
+    }
+
+    public Mono<Void> deleteById(String collectionName, Object id) {
+        return Mono.from(getCollection(collectionName).deleteOne(Filters.eq("_id", id))).then();
+    }
+
+    /**
+     * Читает документы диапазона значений _id в порядке возрастания _id
+     *
+     * @param filter условие отбора диапазона
+     * @param batchSize количество документов, получаемых курсором за одно обращение к серверу
+     */
+    public Flux<Document> findRange(String collectionName, Document filter, Document projection, int batchSize) {
+        return Flux.from(getCollection(collectionName).find(filter).projection(projection)
+                .sort(Sorts.ascending("_id")).batchSize(batchSize));
+    }
+
+    /**
+     * Читает документы диапазона значений _id в порядке возрастания _id без декодирования
+     */
+    public Flux<RawBsonDocument> findRangeRaw(String collectionName, Document filter, Document projection, int batchSize) {
+        return Flux.from(getRawCollection(collectionName).find(filter).projection(projection)
+                .sort(Sorts.ascending("_id")).batchSize(batchSize));
+    }
+
+    /**
+     * Открывает поток изменений коллекции. Для операций изменения поток содержит текущую версию документа
+     *
+     * @param pipeline стадии обработки событий
+     * @param resumeAfter токен возобновления или null
+     */
+    public Flux<ChangeStreamDocument<Document>> watch(String collectionName, List<Bson> pipeline,
+                                                      BsonDocument resumeAfter) {
+        ChangeStreamPublisher<Document> publisher = getCollection(collectionName).watch(pipeline)
+                .fullDocument(FullDocument.UPDATE_LOOKUP);
+        return Flux.from(nonNull(resumeAfter) ? publisher.resumeAfter(resumeAfter) : publisher);
+    }
+
+    /**
+     * Возвращает количество документов коллекции по метаданным без просмотра коллекции
+     */
+    public Mono<Long> estimatedDocumentCount(String collectionName) {
+        return Mono.from(getCollection(collectionName).estimatedDocumentCount());
+    }
+
+    /**
+     * Возвращает минимальное или максимальное значение _id коллекции
+     */
+    public Mono<Object> findBoundaryId(String collectionName, boolean ascending) {
+        return Mono.from(getCollection(collectionName).find()
+                        .projection(Projections.include("_id"))
+                        .sort(ascending ? Sorts.ascending("_id") : Sorts.descending("_id"))
+                        .first())
+                .map(p -> p.get("_id"));
+    }
+
+    /**
+     * Возвращает границы диапазонов _id, содержащих приблизительно равное количество документов.
+     * Границы вычисляются по случайной выборке документов коллекции
+     *
+     * @param partitions количество диапазонов
+     * @param sampleSize размер выборки
+     * @return нижние границы диапазонов, начиная со второго
+     */
+    public Flux<Object> findSampledBoundaries(String collectionName, int partitions, int sampleSize) {
+        return Flux.from(getCollection(collectionName).aggregate(Arrays.asList(
+                        Aggregates.sample(sampleSize),
+                        Aggregates.bucketAuto("$_id", partitions)))
+                        .allowDiskUse(true))
+                .map(p -> p.get("_id", Document.class).get("min"))
+                .skip(1);
+    }
+
 }
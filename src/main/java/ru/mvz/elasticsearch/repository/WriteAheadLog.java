@@ -0,0 +1,416 @@
+package ru.mvz.elasticsearch.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+import ru.mvz.elasticsearch.config.AppConfig;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал упреждающей записи тел _bulk-запросов. Журнал состоит из сегментов фиксированного размера,
+ * отображаемых в память, запись имеет вид {@code [длина][CRC32][данные]}, нулевая длина обозначает
+ * конец данных сегмента. Позиция записи в журнале (смещение) сквозная для всех сегментов.
+ * Записи сбрасываются на диск группами: подтверждение добавления записи выдается после
+ * ближайшей синхронизации. Подтвержденной позицией журнала является смещение первой
+ * неподтвержденной записи, она периодически сохраняется в файле {@code commit}, сегменты,
+ * целиком предшествующие подтвержденной позиции, удаляются. При запуске неподтвержденные
+ * записи читаются последовательно и повторно передаются в ElasticSearch
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Component
+public class WriteAheadLog {
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final String SEGMENT_EXT = ".wal";
+
+    private static final String COMMIT_FILE = "commit";
+
+    final private Path path;
+
+    final private int segmentSize;
+
+    final private TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    /**
+     * Неподтвержденные записи: смещение - смещение следующей записи
+     */
+    final private ConcurrentSkipListMap<Long, Long> pending = new ConcurrentSkipListMap<>();
+
+    /**
+     * Записи, не подтвержденные при предыдущем запуске: смещение - длина данных
+     */
+    final private List<Tuple2<Long, Integer>> recovered = new ArrayList<>();
+
+    final private List<Waiter> waiters = new ArrayList<>();
+
+    final private Set<Segment> dirty = new HashSet<>();
+
+    final private Disposable syncing;
+
+    private Segment current;
+
+    /**
+     * Смещение следующей записи
+     */
+    private long writeOffset;
+
+    private volatile long syncedOffset;
+
+    private long savedCommit = -1;
+
+    public WriteAheadLog(AppConfig appConfig) {
+        this.path = Paths.get(appConfig.getWalPath());
+        this.segmentSize = appConfig.getWalSegmentSize();
+        try {
+            Files.createDirectories(path);
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        syncing = Schedulers.boundedElastic().schedulePeriodically(this::sync,
+                appConfig.getWalSyncInterval(), appConfig.getWalSyncInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Добавляет запись в журнал
+     *
+     * @param content данные записи
+     * @return смещение записи, выдается после сброса записи на диск
+     */
+    public Mono<Long> append(DataBuffer content) {
+        int length = content.readableByteCount();
+        long offset;
+        long end;
+        synchronized (this) {
+            if(current.capacity - current.position < HEADER_SIZE + length + 4) {
+                current = createSegment(writeOffset + (current.capacity - current.position),
+                        Math.max(segmentSize, HEADER_SIZE + length + 4));
+            }
+            offset = current.base + current.position;
+            ByteBuffer buffer = current.buffer;
+            buffer.position(current.position + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            ByteBuffer data = content.asByteBuffer();
+            crc.update(data.duplicate());
+            buffer.put(data);
+            buffer.putInt(current.position + 4, (int) crc.getValue());
+                // Длина записывается последней, чтобы незавершенная запись не считалась корректной
+            buffer.putInt(current.position, length);
+            current.position += HEADER_SIZE + length;
+            end = current.base + current.position;
+            writeOffset = end;
+            dirty.add(current);
+            pending.put(offset, end);
+        }
+        return Mono.create(sink -> {
+            synchronized (waiters) {
+                if(syncedOffset >= end) {
+                    sink.success(offset);
+                }
+                else {
+                    waiters.add(new Waiter(end, offset, sink));
+                }
+            }
+        });
+    }
+
+    /**
+     * Подтверждает обработку записи
+     *
+     * @param offset смещение записи
+     */
+    public void commit(long offset) {
+        pending.remove(offset);
+    }
+
+    /**
+     * Возвращает записи, не подтвержденные при предыдущем запуске, в порядке их добавления
+     *
+     * @return поток пар смещение/данные записи
+     */
+    public Flux<Tuple2<Long, byte[]>> replay() {
+        List<Tuple2<Long, Integer>> records;
+        synchronized (this) {
+            records = new ArrayList<>(recovered);
+            recovered.clear();
+        }
+        return Flux.fromIterable(records)
+                .map(record -> {
+                    Segment segment;
+                    synchronized (this) {
+                        segment = segments.floorEntry(record.getT1()).getValue();
+                    }
+                    byte[] data = new byte[record.getT2()];
+                    ByteBuffer buffer = segment.buffer.duplicate();
+                    buffer.position((int) (record.getT1() - segment.base) + HEADER_SIZE);
+                    buffer.get(data);
+                    return Tuples.of(record.getT1(), data);
+                });
+    }
+
+    /**
+     * Смещение первой неподтвержденной записи
+     */
+    public long getCommitted() {
+        Map.Entry<Long, Long> first = pending.firstEntry();
+        if(first != null) {
+            return first.getKey();
+        }
+        synchronized (this) {
+            return writeOffset;
+        }
+    }
+
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Сбрасывает записи на диск, выдает подтверждения ожидающим добавления записей,
+     * сохраняет подтвержденную позицию и удаляет подтвержденные сегменты
+     */
+    void sync() {
+        try {
+            List<Segment> segmentsToForce;
+            long offset;
+            synchronized (this) {
+                segmentsToForce = new ArrayList<>(dirty);
+                dirty.clear();
+                offset = writeOffset;
+            }
+            segmentsToForce.forEach(segment -> segment.buffer.force());
+            List<Waiter> completed = new ArrayList<>();
+            synchronized (waiters) {
+                syncedOffset = offset;
+                Iterator<Waiter> iterator = waiters.iterator();
+                while(iterator.hasNext()) {
+                    Waiter waiter = iterator.next();
+                    if(waiter.end <= offset) {
+                        completed.add(waiter);
+                        iterator.remove();
+                    }
+                }
+            }
+            completed.forEach(waiter -> waiter.sink.success(waiter.offset));
+
+            long committed = Math.min(getCommitted(), offset);
+            if(committed != savedCommit) {
+                saveCommit(committed);
+                savedCommit = committed;
+                removeSegments(committed);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error("Write-ahead log sync error: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        syncing.dispose();
+        sync();
+    }
+
+    private void open() throws IOException {
+        long committed = readCommit();
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(path)) {
+            files = stream.filter(file -> file.getFileName().toString().endsWith(SEGMENT_EXT))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for(Path file: files) {
+            String name = file.getFileName().toString();
+            long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_EXT.length()));
+            long capacity = Files.size(file);
+            if(base + capacity <= committed) {
+                Files.delete(file);
+            }
+            else {
+                segments.put(base, mapSegment(file, base, (int) capacity));
+            }
+        }
+        if(segments.isEmpty()) {
+            current = createSegment(committed, segmentSize);
+            writeOffset = committed;
+        }
+        else {
+            scan(Math.max(committed, segments.firstKey()));
+        }
+        syncedOffset = writeOffset;
+        savedCommit = committed;
+        logger.info("Write-ahead log opened: {} segments, {} records to replay", segments.size(), recovered.size());
+    }
+
+    /**
+     * Читает заголовки записей от подтвержденной позиции до конца корректных данных.
+     * Сегменты после поврежденной записи удаляются, запись продолжается с ее позиции
+     */
+    private void scan(long from) throws IOException {
+        Iterator<Segment> iterator = new ArrayList<>(segments.tailMap(segments.floorKey(from), true).values()).iterator();
+        Segment segment = iterator.next();
+        int position = (int) (from - segment.base);
+        while(true) {
+            ByteBuffer buffer = segment.buffer;
+            int length = position + HEADER_SIZE <= segment.capacity ? buffer.getInt(position) : 0;
+            boolean valid = length > 0 && position + HEADER_SIZE + length <= segment.capacity;
+            if(valid) {
+                CRC32 crc = new CRC32();
+                ByteBuffer data = buffer.duplicate();
+                data.position(position + HEADER_SIZE).limit(position + HEADER_SIZE + length);
+                crc.update(data);
+                valid = (int) crc.getValue() == buffer.getInt(position + 4);
+                if(!valid) {
+                    logger.warn("Write-ahead log corrupted record at {}", segment.base + position);
+                }
+            }
+            if(valid) {
+                long offset = segment.base + position;
+                recovered.add(Tuples.of(offset, length));
+                position += HEADER_SIZE + length;
+                pending.put(offset, segment.base + position);
+                continue;
+            }
+            if(length == 0 && iterator.hasNext()) {
+                    // Конец данных сегмента, переход к следующему
+                segment = iterator.next();
+                position = 0;
+                continue;
+            }
+            break;
+        }
+            // Данные после последней корректной записи не используются
+        segment.position = position;
+        for(Segment next: new ArrayList<>(segments.tailMap(segment.base, false).values())) {
+            segments.remove(next.base);
+            Files.deleteIfExists(next.file);
+        }
+        ByteBuffer buffer = segment.buffer;
+        for(int i = position; i < Math.min(segment.capacity, position + HEADER_SIZE); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        current = segment;
+        writeOffset = segment.base + position;
+    }
+
+    private Segment createSegment(long base, int capacity) {
+        try {
+            Segment segment = mapSegment(path.resolve(String.format("%020d%s", base, SEGMENT_EXT)), base, capacity);
+            segments.put(base, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Segment mapSegment(Path file, long base, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(file, base, capacity, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    private synchronized void removeSegments(long committed) throws IOException {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while(iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if(segment == current || segment.base + segment.capacity > committed) {
+                break;
+            }
+            iterator.remove();
+            Files.deleteIfExists(segment.file);
+        }
+    }
+
+    private long readCommit() throws IOException {
+        Path file = path.resolve(COMMIT_FILE);
+        if(!Files.exists(file)) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if(buffer.remaining() < 12) {
+            return 0;
+        }
+        long committed = buffer.getLong();
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, 8);
+        return (int) crc.getValue() == buffer.getInt() ? committed : 0;
+    }
+
+    private void saveCommit(long committed) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putLong(committed);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, 8);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(path.resolve(COMMIT_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(buffer);
+            channel.force(false);
+        }
+    }
+
+    private static class Segment {
+
+        final private Path file;
+
+        final private long base;
+
+        final private int capacity;
+
+        final private MappedByteBuffer buffer;
+
+        private int position;
+
+        Segment(Path file, long base, int capacity, MappedByteBuffer buffer) {
+            this.file = file;
+            this.base = base;
+            this.capacity = capacity;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Waiter {
+
+        final private long end;
+
+        final private long offset;
+
+        final private MonoSink<Long> sink;
+
+        Waiter(long end, long offset, MonoSink<Long> sink) {
+            this.end = end;
+            this.offset = offset;
+            this.sink = sink;
+        }
+    }
+}
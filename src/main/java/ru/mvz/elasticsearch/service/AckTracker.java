@@ -0,0 +1,83 @@
+package ru.mvz.elasticsearch.service;
+
+import java.util.ArrayDeque;
+
+/**
+ * Класс отслеживает подтверждение обработки элементов, зарегистрированных в порядке поступления.
+ * Подтверждения могут приходить в произвольном порядке, подтвержденной считается позиция
+ * последнего элемента непрерывной последовательности подтвержденных элементов от начала
+ *
+ * @param <V> тип позиции элемента (значение _id документа, токен возобновления и т.п.)
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class AckTracker<V> {
+
+    final private ArrayDeque<Entry<V>> pending = new ArrayDeque<>();
+
+    private V committed;
+
+    private long committedCount;
+
+    public AckTracker() {
+    }
+
+    /**
+     * @param committed ранее подтвержденная позиция
+     */
+    public AckTracker(V committed) {
+        this.committed = committed;
+    }
+
+    /**
+     * Регистрирует элемент
+     *
+     * @param value позиция элемента
+     * @return функциональный объект, подтверждающий обработку элемента. Повторный вызов не выполняет действий
+     */
+    public Runnable register(V value) {
+        Entry<V> entry = new Entry<>(value);
+        synchronized (this) {
+            pending.addLast(entry);
+        }
+        return () -> ack(entry);
+    }
+
+    private synchronized void ack(Entry<V> entry) {
+        entry.acked = true;
+        while(!pending.isEmpty() && pending.peekFirst().acked) {
+            committed = pending.pollFirst().value;
+            committedCount++;
+        }
+    }
+
+    /**
+     * Возвращает позицию, до которой включительно все элементы подтверждены
+     */
+    public synchronized V getCommitted() {
+        return committed;
+    }
+
+    public synchronized long getCommittedCount() {
+        return committedCount;
+    }
+
+    /**
+     * Возвращает количество зарегистрированных, но не подтвержденных элементов
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    private static class Entry<V> {
+
+        final private V value;
+
+        private boolean acked;
+
+        Entry(V value) {
+            this.value = value;
+        }
+    }
+}
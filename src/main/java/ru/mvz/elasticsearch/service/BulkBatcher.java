@@ -0,0 +1,107 @@
+package ru.mvz.elasticsearch.service;
+
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Класс группирует буферы операций для _bulk-запроса в ElasticSearch. Группа закрывается при выполнении
+ * первого из условий: превышение объема в байтах, достижение количества операций или истечение
+ * времени ожидания с момента поступления первой операции группы. Операция, объем которой превышает
+ * допустимый, отправляется отдельным запросом
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class BulkBatcher implements Function<Flux<BulkItem>, Flux<List<BulkItem>>> {
+
+    private static final Object DEADLINE = new Object();
+
+    private static final long MIN_DEADLINE_CHECK = 10;
+
+    final private int maxItems;
+
+    final private long maxBytes;
+
+    final private Duration maxDuration;
+
+    public BulkBatcher(int maxItems, long maxBytes, Duration maxDuration) {
+        this.maxItems = Math.max(1, maxItems);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.maxDuration = maxDuration;
+    }
+
+    @Override
+    public Flux<List<BulkItem>> apply(Flux<BulkItem> source) {
+        return Flux.defer(() -> {
+            Batch batch = new Batch();
+            Duration deadlineCheck = Duration.ofMillis(Math.max(MIN_DEADLINE_CHECK, maxDuration.toMillis() / 4));
+            return source
+                    .<Object>publish(shared -> Flux.merge(shared,
+                            Flux.interval(deadlineCheck)
+                                .map(p -> DEADLINE)
+                                .onBackpressureDrop()
+                                .takeUntilOther(shared.ignoreElements())))
+                    .concatMapIterable(batch::offer)
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(batch.flush())))
+                        // При ошибке источника или отмене подписки освобождаются буферы незакрытой группы
+                    .doFinally(signal -> batch.release());
+        });
+    }
+
+    /**
+     * Текущая формируемая группа. Методы вызываются последовательно
+     */
+    private class Batch {
+
+        private List<BulkItem> items = new ArrayList<>();
+
+        private long bytes;
+
+        private long startTime;
+
+        List<List<BulkItem>> offer(Object item) {
+            if(item == DEADLINE) {
+                return !items.isEmpty() && System.currentTimeMillis() - startTime >= maxDuration.toMillis()
+                        ? flush()
+                        : Collections.emptyList();
+            }
+            BulkItem buffer = (BulkItem) item;
+            int size = buffer.size();
+            List<List<BulkItem>> result = Collections.emptyList();
+            if(!items.isEmpty() && bytes + size > maxBytes) {
+                result = new ArrayList<>(flush());
+            }
+            if(items.isEmpty()) {
+                startTime = System.currentTimeMillis();
+            }
+            items.add(buffer);
+            bytes += size;
+            if(items.size() >= maxItems || bytes >= maxBytes) {
+                if(result.isEmpty()) {
+                    result = new ArrayList<>();
+                }
+                result.addAll(flush());
+            }
+            return result;
+        }
+
+        List<List<BulkItem>> flush() {
+            if(items.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<BulkItem> result = items;
+            items = new ArrayList<>();
+            bytes = 0;
+            return Collections.singletonList(result);
+        }
+
+        void release() {
+            flush().forEach(list -> list.forEach(BulkItem::release));
+        }
+    }
+}
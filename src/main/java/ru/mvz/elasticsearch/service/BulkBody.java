@@ -0,0 +1,344 @@
+package ru.mvz.elasticsearch.service;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Класс содержит тело _bulk-запроса к ElasticSearch в кодировке UTF-8.
+ * Буферы отдельных операций объединяются без копирования, буфер освобождается
+ * методом {@code release} после получения ответа от ElasticSearch.
+ * Для каждой операции хранится ее смещение в теле запроса, что позволяет
+ * повторно отправить только отдельные операции, и состояние ее обработки, общее
+ * для исходного тела запроса и тел повторных запросов, созданных методом {@code select}.
+ * Сжатое содержимое создается один раз при первой отправке и освобождается вместе с телом запроса
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Getter
+public class BulkBody {
+
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    private static final int PENDING = 0;
+
+    private static final int SUCCEEDED = 1;
+
+    private static final int FAILED = 2;
+
+    final private DataBuffer content;
+
+    final private int[] itemOffsets;
+
+    /**
+     * Функциональные объекты, подтверждающие окончательную обработку операций, элементы могут быть null
+     */
+    final private Runnable[] itemAcks;
+
+    /**
+     * Состояния обработки операций исходного тела запроса
+     */
+    @Getter(AccessLevel.NONE)
+    final private AtomicIntegerArray itemStates;
+
+    /**
+     * Номера операций в {@link #itemStates}, null - номера совпадают
+     */
+    @Getter(AccessLevel.NONE)
+    final private int[] stateIndexes;
+
+    /**
+     * Сжатое gzip содержимое, null - содержимое еще не сжималось
+     */
+    @Getter(AccessLevel.NONE)
+    private DataBuffer compressed;
+
+    /**
+     * Смещение тела запроса в журнале упреждающей записи, -1 - тело запроса не записано в журнал
+     */
+    @Setter
+    private long logOffset = -1;
+
+    /**
+     * Очередь приоритета запроса
+     */
+    @Setter
+    private Lane lane = Lane.LIVE;
+
+    private BulkBody(DataBuffer content, int[] itemOffsets, Runnable[] itemAcks) {
+        this(content, itemOffsets, itemAcks, new AtomicIntegerArray(itemOffsets.length), null);
+    }
+
+    private BulkBody(DataBuffer content, int[] itemOffsets, Runnable[] itemAcks,
+                     AtomicIntegerArray itemStates, int[] stateIndexes) {
+        this.content = content;
+        this.itemOffsets = itemOffsets;
+        this.itemAcks = itemAcks;
+        this.itemStates = itemStates;
+        this.stateIndexes = stateIndexes;
+    }
+
+    /**
+     * Объединяет буферы операций в тело запроса. Буферы операций переходят во владение тела запроса,
+     * очередь приоритета запроса определяется первой операцией
+     *
+     * @param bufferFactory фабрика буферов
+     * @param items операции
+     * @return тело запроса
+     */
+    public static BulkBody join(DataBufferFactory bufferFactory, List<BulkItem> items) {
+        List<DataBuffer> buffers = new ArrayList<>(items.size());
+        Runnable[] itemAcks = new Runnable[items.size()];
+        for(int i = 0; i < itemAcks.length; i++) {
+            buffers.add(items.get(i).getContent());
+            itemAcks[i] = items.get(i).getAck();
+        }
+        BulkBody body = new BulkBody(bufferFactory.join(buffers), offsets(buffers), itemAcks);
+        if(!items.isEmpty()) {
+            body.setLane(items.get(0).getLane());
+        }
+        return body;
+    }
+
+    private static int[] offsets(List<DataBuffer> buffers) {
+        int[] itemOffsets = new int[buffers.size()];
+        int offset = 0;
+        for(int i = 0; i < itemOffsets.length; i++) {
+            itemOffsets[i] = offset;
+            offset += buffers.get(i).readableByteCount();
+        }
+        return itemOffsets;
+    }
+
+    /**
+     * Создает тело запроса из ранее сохраненного текста запроса. Границы операций определяются
+     * по строкам действий: после строки действия, кроме delete, следует строка документа
+     *
+     * @param bufferFactory фабрика буферов
+     * @param data текст запроса
+     * @return тело запроса
+     */
+    public static BulkBody wrap(DataBufferFactory bufferFactory, String data) {
+        return wrap(bufferFactory, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Создает тело запроса из ранее сохраненного текста запроса в кодировке UTF-8
+     *
+     * @param bufferFactory фабрика буферов
+     * @param bytes текст запроса
+     * @return тело запроса
+     */
+    public static BulkBody wrap(DataBufferFactory bufferFactory, byte[] bytes) {
+        List<Integer> offsets = new ArrayList<>();
+        boolean sourceLine = false;
+        for(int start = 0; start < bytes.length; ) {
+            int end = start;
+            while(end < bytes.length && bytes[end] != '\n') {
+                end++;
+            }
+            if(end > start) {
+                if(sourceLine) {
+                    sourceLine = false;
+                }
+                else {
+                    offsets.add(start);
+                    sourceLine = !new String(bytes, start, Math.min(end - start, 16), StandardCharsets.UTF_8)
+                            .startsWith("{\"delete\"");
+                }
+            }
+            start = end + 1;
+        }
+        return new BulkBody(bufferFactory.wrap(bytes), offsets.stream().mapToInt(Integer::intValue).toArray(),
+                new Runnable[offsets.size()]);
+    }
+
+    /**
+     * Создает тело запроса из выбранных операций. Новое тело запроса использует
+     * содержимое исходного без копирования и должно быть освобождено независимо от него,
+     * подтверждение операции нового тела запроса изменяет состояние операции исходного
+     *
+     * @param bufferFactory фабрика буферов
+     * @param items номера операций
+     * @return тело запроса
+     */
+    public BulkBody select(DataBufferFactory bufferFactory, List<Integer> items) {
+        List<DataBuffer> buffers = new ArrayList<>(items.size());
+        Runnable[] acks = new Runnable[items.size()];
+        int[] indexes = new int[items.size()];
+        for(int i = 0; i < acks.length; i++) {
+            buffers.add(content.retainedSlice(itemOffsets[items.get(i)], itemLength(items.get(i))));
+            acks[i] = itemAcks[items.get(i)];
+            indexes[i] = stateIndex(items.get(i));
+        }
+        BulkBody body = new BulkBody(bufferFactory.join(buffers), offsets(buffers), acks, itemStates, indexes);
+        body.setLane(lane);
+        return body;
+    }
+
+    /**
+     * Подтверждает успешную запись операции
+     *
+     * @param item номер операции
+     */
+    public void ack(int item) {
+        complete(item, SUCCEEDED);
+    }
+
+    /**
+     * Подтверждает окончательную обработку операции, не записанной в ElasticSearch
+     *
+     * @param item номер операции
+     */
+    public void ackFailed(int item) {
+        complete(item, FAILED);
+    }
+
+    /**
+     * Подтверждает успешную запись всех необработанных операций
+     */
+    public void ackAll() {
+        for(int i = 0; i < itemAcks.length; i++) {
+            ack(i);
+        }
+    }
+
+    /**
+     * Операция обработана: записана в ElasticSearch или окончательно отклонена
+     *
+     * @param item номер операции
+     */
+    public boolean isAcked(int item) {
+        return itemStates.get(stateIndex(item)) != PENDING;
+    }
+
+    public int getSucceededCount() {
+        return count(SUCCEEDED);
+    }
+
+    public int getFailedCount() {
+        return count(FAILED);
+    }
+
+    /**
+     * Изменяет состояние необработанной операции и вызывает ее подтверждение. Повторное подтверждение
+     * операции не выполняет действий
+     */
+    private void complete(int item, int state) {
+        if(itemStates.compareAndSet(stateIndex(item), PENDING, state) && itemAcks[item] != null) {
+            itemAcks[item].run();
+        }
+    }
+
+    private int count(int state) {
+        int count = 0;
+        for(int i = 0; i < itemOffsets.length; i++) {
+            if(itemStates.get(stateIndex(i)) == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int stateIndex(int item) {
+        return stateIndexes == null ? item : stateIndexes[item];
+    }
+
+    /**
+     * Возвращает содержимое для очередной отправки запроса. Каждая подписка получает
+     * собственное представление буфера, что позволяет повторять запрос
+     *
+     * @return содержимое тела запроса
+     */
+    public Mono<DataBuffer> retainedContent() {
+        return Mono.fromSupplier(() -> content.retainedSlice(0, content.readableByteCount()));
+    }
+
+    /**
+     * Возвращает сжатое gzip содержимое для очередной отправки запроса. Содержимое сжимается
+     * при первой подписке вне потока вызывающего, повторные отправки получают
+     * собственное представление ранее сжатого буфера
+     *
+     * @param bufferFactory фабрика буферов
+     * @return сжатое содержимое тела запроса
+     */
+    public Mono<DataBuffer> gzippedContent(DataBufferFactory bufferFactory) {
+        return Mono.defer(() -> isCompressed()
+                ? Mono.fromCallable(() -> compressedSlice(bufferFactory))
+                : Mono.fromCallable(() -> compressedSlice(bufferFactory)).subscribeOn(Schedulers.parallel()));
+    }
+
+    private synchronized boolean isCompressed() {
+        return compressed != null;
+    }
+
+    private synchronized DataBuffer compressedSlice(DataBufferFactory bufferFactory) throws IOException {
+        if(compressed == null) {
+            compressed = compress(bufferFactory);
+        }
+        return compressed.retainedSlice(0, compressed.readableByteCount());
+    }
+
+    private DataBuffer compress(DataBufferFactory bufferFactory) throws IOException {
+        DataBuffer buffer = bufferFactory.allocateBuffer(Math.max(256, content.readableByteCount() / 4));
+        try {
+            try(InputStream input = content.slice(0, content.readableByteCount()).asInputStream();
+                OutputStream output = new GZIPOutputStream(buffer.asOutputStream(), GZIP_BUFFER_SIZE)) {
+                byte[] chunk = new byte[GZIP_BUFFER_SIZE];
+                for(int read; (read = input.read(chunk)) > 0; ) {
+                    output.write(chunk, 0, read);
+                }
+            }
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            DataBufferUtils.release(buffer);
+            throw e;
+        }
+    }
+
+    public int getItemsCount() {
+        return itemOffsets.length;
+    }
+
+    public int size() {
+        return content.readableByteCount();
+    }
+
+    public String asString() {
+        return content.toString(StandardCharsets.UTF_8);
+    }
+
+    public String itemAsString(int item) {
+        return content.toString(itemOffsets[item], itemLength(item), StandardCharsets.UTF_8);
+    }
+
+    public boolean release() {
+        synchronized (this) {
+            if(compressed != null) {
+                DataBufferUtils.release(compressed);
+                compressed = null;
+            }
+        }
+        return DataBufferUtils.release(content);
+    }
+
+    private int itemLength(int item) {
+        return (item + 1 < itemOffsets.length ? itemOffsets[item + 1] : content.readableByteCount())
+                - itemOffsets[item];
+    }
+}
@@ -0,0 +1,48 @@
+package ru.mvz.elasticsearch.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+/**
+ * Принимает операции _bulk-запроса, которые ElasticSearch не смог выполнить и которые не подлежат
+ * повторной отправке. Операции записываются в журнал и передаются подписчикам {@code asFlux()}
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Component
+public class BulkFailureSink {
+    private static final Logger logger = LoggerFactory.getLogger(BulkFailureSink.class);
+
+    final private Sinks.Many<BulkFailure> sink = Sinks.many().multicast().directBestEffort();
+
+    public void emit(BulkFailure failure) {
+        logger.error("Bulk item failed: status {} {} {} item: {}", failure.getStatus(),
+                failure.getErrorType(), failure.getErrorReason(), failure.getItem());
+        synchronized (sink) {
+            sink.tryEmitNext(failure);
+        }
+    }
+
+    public Flux<BulkFailure> asFlux() {
+        return sink.asFlux();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static public class BulkFailure {
+
+        final private String item;
+
+        final private int status;
+
+        final private String errorType;
+
+        final private String errorReason;
+    }
+}
@@ -0,0 +1,44 @@
+package ru.mvz.elasticsearch.service;
+
+import lombok.Getter;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+/**
+ * Класс содержит буфер одной операции _bulk-запроса и функциональный объект, вызываемый
+ * после того, как ElasticSearch окончательно обработал операцию (успешно или с ошибкой,
+ * не подлежащей повторной отправке)
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Getter
+public class BulkItem {
+
+    final private DataBuffer content;
+
+    final private Runnable ack;
+
+    /**
+     * Очередь приоритета операции
+     */
+    final private Lane lane;
+
+    public BulkItem(DataBuffer content, Runnable ack) {
+        this(content, ack, Lane.LIVE);
+    }
+
+    public BulkItem(DataBuffer content, Runnable ack, Lane lane) {
+        this.content = content;
+        this.ack = ack;
+        this.lane = lane;
+    }
+
+    public int size() {
+        return content.readableByteCount();
+    }
+
+    public boolean release() {
+        return DataBufferUtils.release(content);
+    }
+}
@@ -0,0 +1,56 @@
+package ru.mvz.elasticsearch.service;
+
+import org.bson.Document;
+
+/**
+ * Ограничение скорости записи в ElasticSearch в документах и байтах в секунду
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class BulkRateLimit {
+
+    final private TokenBucket documents;
+
+    final private TokenBucket bytes;
+
+    /**
+     * @param documentsRate документов в секунду, 0 - без ограничения
+     * @param bytesRate байт в секунду, 0 - без ограничения
+     */
+    public BulkRateLimit(double documentsRate, double bytesRate) {
+        this.documents = new TokenBucket(documentsRate);
+        this.bytes = new TokenBucket(bytesRate);
+    }
+
+    /**
+     * Учитывает тело запроса
+     *
+     * @param body тело запроса
+     * @return время ожидания перед отправкой запроса в наносекундах
+     */
+    public long reserve(BulkBody body) {
+        return Math.max(documents.reserve(body.getItemsCount()), bytes.reserve(body.size()));
+    }
+
+    /**
+     * Изменяет ограничения, не заданное значение не изменяется
+     *
+     * @param documentsRate документов в секунду, 0 - без ограничения
+     * @param bytesRate байт в секунду, 0 - без ограничения
+     */
+    public void update(Double documentsRate, Double bytesRate) {
+        if(documentsRate != null) {
+            documents.setRate(documentsRate);
+        }
+        if(bytesRate != null) {
+            bytes.setRate(bytesRate);
+        }
+    }
+
+    public Document getState() {
+        return new Document()
+                .append("documentsPerSecond", documents.getRate())
+                .append("bytesPerSecond", bytes.getRate());
+    }
+}
@@ -0,0 +1,123 @@
+package ru.mvz.elasticsearch.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Класс содержит результаты выполнения операций _bulk-запроса к ElasticSearch.
+ * Запрос выполняется с параметром {@code filter_path=}{@link #FILTER_PATH}, поэтому ответ невелик:
+ * он полностью собирается в один буфер и затем разбирается парсером Jackson без построения дерева документа
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Getter
+public class BulkResponse {
+
+    public static final String FILTER_PATH = "errors,items.*.status,items.*.error.type,items.*.error.reason";
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private boolean errors;
+
+    final private List<Item> items = new ArrayList<>();
+
+    /**
+     * Разбирает ответ ElasticSearch на _bulk-запрос
+     *
+     * @param inputStream поток с ответом ElasticSearch
+     * @return результаты выполнения операций
+     */
+    public static BulkResponse parse(InputStream inputStream) throws IOException {
+        BulkResponse response = new BulkResponse();
+        try (JsonParser parser = jsonFactory.createParser(inputStream)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected _bulk response");
+            }
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if("errors".equals(name)) {
+                    response.errors = parser.getValueAsBoolean();
+                }
+                else if("items".equals(name) && parser.currentToken() == JsonToken.START_ARRAY) {
+                    while(parser.nextToken() == JsonToken.START_OBJECT) {
+                        // Элемент имеет вид {"<action>": {"status": ..., "error": {...}}}
+                        parser.nextToken();
+                        parser.nextToken();
+                        response.items.add(parseItem(parser));
+                        parser.nextToken();
+                    }
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return response;
+    }
+
+    private static Item parseItem(JsonParser parser) throws IOException {
+        Item item = new Item();
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if("status".equals(name)) {
+                item.status = parser.getValueAsInt();
+            }
+            else if("error".equals(name) && parser.currentToken() == JsonToken.START_OBJECT) {
+                item.errorType = "";
+                while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String errorField = parser.getCurrentName();
+                    parser.nextToken();
+                    if("type".equals(errorField)) {
+                        item.errorType = parser.getValueAsString();
+                    }
+                    else if("reason".equals(errorField)) {
+                        item.errorReason = parser.getValueAsString();
+                    }
+                    else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Результат выполнения одной операции
+     */
+    @Getter
+    static public class Item {
+
+        private int status;
+
+        private String errorType;
+
+        private String errorReason;
+
+        public boolean isFailed() {
+            return nonNull(errorType);
+        }
+
+        /**
+         * Операция отклонена из-за перегрузки ElasticSearch и может быть повторена
+         */
+        public boolean isRetryable() {
+            return status == 429 || status == 502 || status == 503 || status == 504;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package ru.mvz.elasticsearch.service;
+
+import lombok.Getter;
+
+/**
+ * Класс содержит итог обработки тела _bulk-запроса, включая повторные отправки
+ * отклоненных операций
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Getter
+public class BulkResult {
+
+    final private BulkBody body;
+
+    private int succeeded;
+
+    private int failed;
+
+    private int retried;
+
+    BulkResult(BulkBody body) {
+        this.body = body;
+    }
+
+    BulkResult addSucceeded(int count) {
+        succeeded += count;
+        return this;
+    }
+
+    BulkResult addFailed(int count) {
+        failed += count;
+        return this;
+    }
+
+    BulkResult addRetried(int count) {
+        retried += count;
+        return this;
+    }
+
+    BulkResult merge(BulkResult result) {
+        succeeded += result.succeeded;
+        failed += result.failed;
+        retried += result.retried;
+        return this;
+    }
+}
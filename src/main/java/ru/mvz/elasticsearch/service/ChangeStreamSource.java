@@ -0,0 +1,204 @@
+package ru.mvz.elasticsearch.service;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+import ru.mvz.elasticsearch.config.AppConfig;
+import ru.mvz.elasticsearch.domain.MongoElasticIndex;
+import ru.mvz.elasticsearch.repository.ReactorRepositoryMongoDB;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static ru.mvz.elasticsearch.util.Package.deepCopy;
+
+/**
+ * Источник событий изменения документов на основе потоков изменений (change streams) MongoDB.
+ * Для каждой коллекции, используемой описаниями индексов, открывается один поток изменений
+ * с получением текущей версии документа ({@code fullDocument: updateLookup}), поэтому повторное
+ * чтение документа не требуется. Токен возобновления события, все операции которого записаны
+ * в ElasticSearch, периодически сохраняется в контрольной точке и используется при перезапуске,
+ * при повторной подписке без перезапуска используется последний подтвержденный токен
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Component
+public class ChangeStreamSource {
+    private static final Logger logger = LoggerFactory.getLogger(ChangeStreamSource.class);
+
+    private static final DocumentCodec documentCodec = new DocumentCodec();
+
+    final private ReactorRepositoryMongoDB reactorRepositoryMongoDB;
+
+    final private CheckpointService checkpointService;
+
+    final private AppConfig appConfig;
+
+    /**
+     * Последние подтвержденные токены возобновления по имени коллекции. При повторной подписке
+     * поток изменений возобновляется с них, не дожидаясь сохранения контрольной точки
+     */
+    final private Map<String, BsonDocument> committedTokens = new ConcurrentHashMap<>();
+
+    public ChangeStreamSource(ReactorRepositoryMongoDB reactorRepositoryMongoDB,
+                              CheckpointService checkpointService,
+                              AppConfig appConfig) {
+        this.reactorRepositoryMongoDB = reactorRepositoryMongoDB;
+        this.checkpointService = checkpointService;
+        this.appConfig = appConfig;
+    }
+
+    /**
+     * Возвращает поток событий изменения документов коллекций индексов
+     *
+     * @param indexes описания индексов
+     * @return поток событий, по одному событию на каждый индекс коллекции
+     */
+    public Flux<ChangeEvent> watch(List<MongoElasticIndex> indexes) {
+        Map<String, List<MongoElasticIndex>> collections = new LinkedHashMap<>();
+        indexes.forEach(index -> collections.computeIfAbsent(index.getCollection(), key -> new ArrayList<>())
+                .add(index));
+        return Flux.fromIterable(collections.entrySet())
+                .flatMap(entry -> watchCollection(entry.getKey(), entry.getValue()), Math.max(1, collections.size()));
+    }
+
+    private Flux<ChangeEvent> watchCollection(String collection, List<MongoElasticIndex> indexes) {
+        String checkpointId = "changeStream:" + collection;
+        return Mono.fromSupplier(() -> Optional.ofNullable(committedTokens.get(collection)))
+                .filter(Optional::isPresent)
+                .switchIfEmpty(checkpointService.load(checkpointId)
+                        .map(checkpoint -> Optional.of(checkpoint.get("state", Document.class)
+                                .get("resumeToken", Document.class)
+                                .toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry())))
+                        .defaultIfEmpty(Optional.empty()))
+                .flatMapMany(resumeToken -> {
+                    logger.info("Change stream {} started, resume: {}", collection, resumeToken.isPresent());
+                    AckTracker<BsonDocument> tracker = new AckTracker<>(resumeToken.orElse(null));
+                    AtomicReference<BsonDocument> saved = new AtomicReference<>(resumeToken.orElse(null));
+                    Disposable checkpointing = Flux.interval(Duration.ofMillis(appConfig.getCheckpointInterval()))
+                            .concatMap(p -> saveResumeToken(checkpointId, tracker, saved))
+                            .subscribe();
+                    return reactorRepositoryMongoDB.watch(collection, pipeline(indexes), resumeToken.orElse(null))
+                            .concatMapIterable(change -> changeEvents(change, indexes, tracker))
+                            .doFinally(signal -> {
+                                checkpointing.dispose();
+                                BsonDocument committed = tracker.getCommitted();
+                                if(nonNull(committed)) {
+                                    committedTokens.put(collection, committed);
+                                }
+                                saveResumeToken(checkpointId, tracker, saved).subscribe();
+                            });
+                })
+                    // При ошибке поток изменений открывается заново с сохраненного токена,
+                    // повторно полученные события перезаписывают документы индекса
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofMinutes(1))
+                        .doBeforeRetry(signal -> logger.error("Change stream {} error: {}", collection,
+                                signal.failure().getMessage())));
+    }
+
+    /**
+     * Формирует стадии обработки потока изменений. Если для всех индексов коллекции задана проекция,
+     * документ события ограничивается полями проекций
+     */
+    private List<Bson> pipeline(List<MongoElasticIndex> indexes) {
+        if(indexes.stream().anyMatch(index -> isNull(index.getProjection()))) {
+            return Collections.emptyList();
+        }
+        Document projection = new Document()
+                .append("_id", 1)
+                .append("operationType", 1)
+                .append("ns", 1)
+                .append("documentKey", 1);
+        indexes.forEach(index -> index.getProjection().keySet()
+                .forEach(field -> projection.append("fullDocument." + field, 1)));
+        return Collections.singletonList(Aggregates.project(projection));
+    }
+
+    /**
+     * Преобразует событие потока изменений в события индексов коллекции. Токен возобновления
+     * подтверждается после записи в ElasticSearch операций всех индексов
+     */
+    private List<ChangeEvent> changeEvents(ChangeStreamDocument<Document> change,
+                                           List<MongoElasticIndex> indexes,
+                                           AckTracker<BsonDocument> tracker) {
+        Runnable ack = tracker.register(change.getResumeToken());
+        OperationType operationType = change.getOperationType();
+        if(operationType != OperationType.INSERT && operationType != OperationType.UPDATE
+                && operationType != OperationType.REPLACE && operationType != OperationType.DELETE) {
+            logger.warn("Change stream {} event skipped: {}", change.getNamespace(), operationType);
+            ack.run();
+            return Collections.emptyList();
+        }
+        Document fullDocument = change.getFullDocument();
+            // Документ, удаленный до получения события изменения, удаляется из индекса
+        String action = operationType == OperationType.DELETE || isNull(fullDocument) ? "delete" : "index";
+        Document document = "delete".equals(action)
+                ? documentCodec.decode(new BsonDocumentReader(change.getDocumentKey()), DecoderContext.builder().build())
+                : fullDocument;
+        AtomicInteger pending = new AtomicInteger(indexes.size());
+        Runnable indexAck = () -> {
+            if(pending.decrementAndGet() == 0) {
+                ack.run();
+            }
+        };
+        List<ChangeEvent> events = new ArrayList<>(indexes.size());
+        for(int i = 0; i < indexes.size(); i++) {
+                // Документ изменяется при обработке, поэтому каждому индексу передается своя копия
+            events.add(new ChangeEvent(action, i == 0 ? document : deepCopy(document), indexes.get(i), indexAck));
+        }
+        return events;
+    }
+
+    private Mono<Void> saveResumeToken(String checkpointId, AckTracker<BsonDocument> tracker,
+                                       AtomicReference<BsonDocument> saved) {
+        BsonDocument resumeToken = tracker.getCommitted();
+        if(isNull(resumeToken) || resumeToken.equals(saved.get())) {
+            return Mono.empty();
+        }
+        return checkpointService.save(checkpointId, new Document("resumeToken", resumeToken))
+                .doOnSuccess(p -> saved.set(resumeToken))
+                .onErrorResume(e -> {
+                    logger.error("Checkpoint {} error: {}", checkpointId, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Событие изменения документа для одного индекса
+     */
+    @Getter
+    @AllArgsConstructor
+    static public class ChangeEvent {
+
+        final private String action;
+
+        final private Document document;
+
+        final private MongoElasticIndex mongoElasticIndex;
+
+        final private Runnable ack;
+    }
+}
@@ -0,0 +1,43 @@
+package ru.mvz.elasticsearch.service;
+
+import org.bson.Document;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import ru.mvz.elasticsearch.config.AppConfig;
+import ru.mvz.elasticsearch.repository.ReactorRepositoryMongoDB;
+
+import java.util.Date;
+
+/**
+ * Сохраняет в коллекции MongoDB состояние длительных операций (контрольные точки),
+ * позволяющее продолжить операцию после перезапуска
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Component
+public class CheckpointService {
+
+    final private ReactorRepositoryMongoDB reactorRepositoryMongoDB;
+
+    final private AppConfig appConfig;
+
+    public CheckpointService(ReactorRepositoryMongoDB reactorRepositoryMongoDB, AppConfig appConfig) {
+        this.reactorRepositoryMongoDB = reactorRepositoryMongoDB;
+        this.appConfig = appConfig;
+    }
+
+    public Mono<Document> load(String id) {
+        return reactorRepositoryMongoDB.findOne(appConfig.getCheckpointCollection(), new Document("_id", id));
+    }
+
+    public Mono<Void> save(String id, Document state) {
+        return reactorRepositoryMongoDB.upsert(appConfig.getCheckpointCollection(), new Document("_id", id)
+                .append("updated", new Date())
+                .append("state", state));
+    }
+
+    public Mono<Void> remove(String id) {
+        return reactorRepositoryMongoDB.deleteById(appConfig.getCheckpointCollection(), id);
+    }
+}
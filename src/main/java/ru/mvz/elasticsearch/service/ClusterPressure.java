@@ -0,0 +1,118 @@
+package ru.mvz.elasticsearch.service;
+
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Класс оценивает нагрузку записи на узлы ElasticSearch по ответам {@code _nodes/stats} и {@code _nodes/thread_pool}.
+ * Нагрузка узла - наибольшее из заполнения очереди пула потоков write и заполнения памяти indexing_pressure,
+ * нагрузка кластера - наибольшая нагрузка узлов. Рост количества отклоненных операций записи
+ * с предыдущего опроса означает полную нагрузку. Коэффициент ограничения запросов равен 1 при нагрузке
+ * не выше нижнего порога, {@code minFactor} - при нагрузке не ниже верхнего и изменяется линейно между порогами
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class ClusterPressure {
+
+    public static final String STATS_URI = "/_nodes/stats/thread_pool,indexing_pressure"
+            + "?filter_path=nodes.*.thread_pool.write,nodes.*.indexing_pressure.memory";
+
+    public static final String THREAD_POOL_URI = "/_nodes/thread_pool"
+            + "?filter_path=nodes.*.thread_pool.write.queue_size";
+
+    final private double low;
+
+    final private double high;
+
+    final private double minFactor;
+
+    /**
+     * Количество отклоненных операций записи по идентификатору узла на момент предыдущего опроса
+     */
+    final private Map<String, Long> rejected = new HashMap<>();
+
+    private volatile double pressure;
+
+    private volatile double factor = 1;
+
+    private volatile long rejectedDelta;
+
+    public ClusterPressure(double low, double high, double minFactor) {
+        this.low = low;
+        this.high = Math.max(low, high);
+        this.minFactor = Math.min(1, Math.max(0, minFactor));
+    }
+
+    /**
+     * Пересчитывает нагрузку по результатам опроса
+     *
+     * @param stats ответ {@link #STATS_URI}
+     * @param threadPools ответ {@link #THREAD_POOL_URI}
+     * @return коэффициент ограничения количества одновременных запросов
+     */
+    synchronized public double update(Document stats, Document threadPools) {
+        Document nodes = stats.get("nodes", new Document());
+        Document nodePools = threadPools.get("nodes", new Document());
+        double current = 0;
+        long rejectedTotal = 0;
+        for(String id: nodes.keySet()) {
+            Document node = nodes.get(id, Document.class);
+            Document write = node.getEmbedded(Arrays.asList("thread_pool", "write"), new Document());
+            Number queueSize = nodePools.getEmbedded(Arrays.asList(id, "thread_pool", "write", "queue_size"),
+                    Number.class);
+            if(isNull(queueSize) || queueSize.longValue() <= 0) {
+                    // Очередь без ограничения, используется значение по умолчанию
+                queueSize = 10000;
+            }
+            current = Math.max(current, number(write, "queue") / queueSize.doubleValue());
+
+            Document memory = node.getEmbedded(Arrays.asList("indexing_pressure", "memory"), new Document());
+            double limit = number(memory, "limit_in_bytes");
+            if(limit > 0) {
+                current = Math.max(current,
+                        number(memory.get("current", new Document()), "all_in_bytes") / limit);
+            }
+
+            long nodeRejected = (long) number(write, "rejected");
+            Long previous = rejected.put(id, nodeRejected);
+            if(previous != null && nodeRejected > previous) {
+                rejectedTotal += nodeRejected - previous;
+            }
+        }
+        rejected.keySet().retainAll(nodes.keySet());
+        rejectedDelta = rejectedTotal;
+        pressure = rejectedTotal > 0 ? 1 : current;
+        factor = pressure <= low ? 1
+                : pressure >= high ? minFactor
+                : 1 - (1 - minFactor) * (pressure - low) / (high - low);
+        return factor;
+    }
+
+    private static double number(Document document, String key) {
+        Object value = document.get(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    public double getPressure() {
+        return pressure;
+    }
+
+    public double getFactor() {
+        return factor;
+    }
+
+    public Document getState() {
+        return new Document()
+                .append("pressure", pressure)
+                .append("factor", factor)
+                .append("rejected", rejectedDelta)
+                .append("low", low)
+                .append("high", high);
+    }
+}
@@ -0,0 +1,320 @@
+package ru.mvz.elasticsearch.service;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Неблокирующий ограничитель количества одновременно выполняемых запросов к ElasticSearch.
+ * Предел изменяется по алгоритму AIMD: увеличивается на единицу за "окно" успешных запросов
+ * при стабильной задержке и уменьшается в {@code backoffRatio} раз при перегрузке
+ * (ответы 429/5xx, таймауты) или росте 99-го процентиля задержки относительно базового значения.
+ * Ожидающие запросы разделены на очереди приоритета {@link Lane}, освободившееся разрешение выдается
+ * очереди, выбранной плавным взвешенным циклическим алгоритмом среди непустых очередей.
+ * Действующий предел дополнительно умножается на коэффициент нагрузки кластера, устанавливаемый
+ * по статистике узлов до появления отказов, при ограничении по нагрузке предел не увеличивается
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class ConcurrencyLimiter {
+
+    private static final int LATENCY_WINDOW = 100;
+
+    /**
+     * Индекс 99-го процентиля в упорядоченном окне задержек, наибольшее значение окна не учитывается
+     */
+    private static final int LATENCY_P99 = (int) Math.ceil(LATENCY_WINDOW * 0.99) - 1;
+
+    private static final double BASELINE_SMOOTHING = 0.05;
+
+    /**
+     * Нижняя граница базовой задержки при сравнении, колебания задержки быстрого кластера
+     * в пределах миллисекунды не считаются перегрузкой
+     */
+    private static final long MIN_BASELINE_LATENCY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    final private int minLimit;
+
+    final private int maxLimit;
+
+    final private double backoffRatio;
+
+    final private double latencyTolerance;
+
+    final private Map<Lane, Deque<Waiter>> waiting = new EnumMap<>(Lane.class);
+
+    /**
+     * Веса очередей приоритета
+     */
+    final private int[] weights = new int[Lane.values().length];
+
+    /**
+     * Текущие значения взвешенного циклического выбора очереди
+     */
+    final private int[] currentWeights = new int[Lane.values().length];
+
+    private int waitingCount;
+
+    /**
+     * Задержки запросов в наносекундах
+     */
+    final private long[] latencies = new long[LATENCY_WINDOW];
+
+    private int latencyCount;
+
+    /**
+     * Базовая задержка в наносекундах, -1 - задержки еще не измерялись
+     */
+    private double baselineLatency = -1;
+
+    private double limit;
+
+    /**
+     * Коэффициент нагрузки кластера от 0 до 1
+     */
+    private double pressureFactor = 1;
+
+    private int inFlight;
+
+    /**
+     * @param laneWeights веса очередей приоритета, вес отсутствующей очереди равен 1
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit,
+                              double backoffRatio, double latencyTolerance, Map<Lane, Integer> laneWeights) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        for(Lane lane: Lane.values()) {
+            waiting.put(lane, new ArrayDeque<>());
+            weights[lane.ordinal()] = Math.max(1, laneWeights.getOrDefault(lane, 1));
+        }
+    }
+
+    /**
+     * Возвращает разрешение на выполнение запроса. Если предел исчерпан, разрешение будет выдано
+     * после завершения одного из выполняемых запросов. Поток выполнения не блокируется
+     *
+     * @param lane очередь приоритета запроса
+     * @return разрешение на выполнение запроса
+     */
+    public Mono<Permit> acquire(Lane lane) {
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(sink);
+            sink.onCancel(() -> {
+                Permit permit;
+                synchronized (this) {
+                    if(waiting.get(lane).remove(waiter)) {
+                        waitingCount--;
+                        permit = null;
+                    }
+                    else {
+                        permit = waiter.permit;
+                    }
+                }
+                // Разрешение могло быть выдано одновременно с отменой подписки
+                if(permit != null) {
+                    permit.release();
+                }
+            });
+            synchronized (this) {
+                if(inFlight < getLimit()) {
+                    inFlight++;
+                    waiter.permit = new Permit();
+                }
+                else {
+                    waiting.get(lane).addLast(waiter);
+                    waitingCount++;
+                }
+            }
+            if(waiter.permit != null) {
+                sink.success(waiter.permit);
+            }
+        });
+    }
+
+    /**
+     * Возвращает действующий предел с учетом нагрузки кластера
+     */
+    synchronized public int getLimit() {
+        return (int) Math.max(minLimit, limit * pressureFactor);
+    }
+
+    synchronized public double getPressureFactor() {
+        return pressureFactor;
+    }
+
+    /**
+     * Устанавливает коэффициент нагрузки кластера. При увеличении действующего предела
+     * ожидающим запросам выдаются разрешения
+     *
+     * @param pressureFactor коэффициент от 0 до 1
+     */
+    public void setPressureFactor(double pressureFactor) {
+        List<Waiter> granted;
+        synchronized (this) {
+            this.pressureFactor = Math.min(1, Math.max(0, pressureFactor));
+            granted = grant();
+        }
+        granted.forEach(waiter -> waiter.sink.success(waiter.permit));
+    }
+
+    synchronized public int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized public int getWaiting() {
+        return waitingCount;
+    }
+
+    synchronized public int getWaiting(Lane lane) {
+        return waiting.get(lane).size();
+    }
+
+    public int getWeight(Lane lane) {
+        return weights[lane.ordinal()];
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    private void onComplete(long latency, boolean dropped) {
+        List<Waiter> granted;
+        synchronized (this) {
+            inFlight--;
+            if(dropped) {
+                decrease();
+            }
+            else if(latency >= 0) {
+                addLatency(latency);
+            }
+            granted = grant();
+        }
+        granted.forEach(waiter -> waiter.sink.success(waiter.permit));
+    }
+
+    /**
+     * Выдает разрешения ожидающим запросам в пределах действующего предела
+     *
+     * @return ожидающие, получившие разрешения
+     */
+    private List<Waiter> grant() {
+        List<Waiter> granted = new ArrayList<>();
+        while(inFlight < getLimit() && waitingCount > 0) {
+            inFlight++;
+            waitingCount--;
+            Waiter waiter = waiting.get(nextLane()).pollFirst();
+            waiter.permit = new Permit();
+            granted.add(waiter);
+        }
+        return granted;
+    }
+
+    /**
+     * Выбирает непустую очередь: вес каждой непустой очереди добавляется к ее текущему значению,
+     * выбирается очередь с наибольшим значением, которое уменьшается на сумму весов непустых очередей
+     */
+    private Lane nextLane() {
+        Lane selected = null;
+        int total = 0;
+        for(Lane lane: Lane.values()) {
+            if(waiting.get(lane).isEmpty()) {
+                continue;
+            }
+            int i = lane.ordinal();
+            currentWeights[i] += weights[i];
+            total += weights[i];
+            if(selected == null || currentWeights[i] > currentWeights[selected.ordinal()]) {
+                selected = lane;
+            }
+        }
+        currentWeights[selected.ordinal()] -= total;
+        return selected;
+    }
+
+    private void addLatency(long latency) {
+        baselineLatency = baselineLatency < 0
+                ? latency
+                : baselineLatency * (1 - BASELINE_SMOOTHING) + latency * BASELINE_SMOOTHING;
+        latencies[latencyCount++] = latency;
+        if(latencyCount == LATENCY_WINDOW) {
+            latencyCount = 0;
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            if(sorted[LATENCY_P99] > Math.max(baselineLatency, MIN_BASELINE_LATENCY) * latencyTolerance) {
+                decrease();
+                return;
+            }
+        }
+        // Предел увеличивается, только если он действительно используется и не ограничен нагрузкой кластера
+        if(inFlight + 1 >= getLimit() && pressureFactor >= 1) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    private void decrease() {
+        limit = Math.max(minLimit, limit * backoffRatio);
+        latencyCount = 0;
+    }
+
+    private class Waiter {
+
+        final private MonoSink<Permit> sink;
+
+        private volatile Permit permit;
+
+        Waiter(MonoSink<Permit> sink) {
+            this.sink = sink;
+        }
+    }
+
+    /**
+     * Разрешение на выполнение одного запроса. Должно быть освобождено одним из методов
+     * {@code success}, {@code dropped} или {@code release}, повторное освобождение игнорируется
+     */
+    public class Permit {
+
+        final private long startTime = System.nanoTime();
+
+        final private AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Запрос выполнен успешно, задержка учитывается при расчете предела
+         */
+        public void success() {
+            if(released.compareAndSet(false, true)) {
+                onComplete(System.nanoTime() - startTime, false);
+            }
+        }
+
+        /**
+         * Запрос отклонен из-за перегрузки ElasticSearch, предел уменьшается
+         */
+        public void dropped() {
+            if(released.compareAndSet(false, true)) {
+                onComplete(-1, true);
+            }
+        }
+
+        /**
+         * Запрос прерван, предел не изменяется
+         */
+        public void release() {
+            if(released.compareAndSet(false, true)) {
+                onComplete(-1, false);
+            }
+        }
+    }
+}
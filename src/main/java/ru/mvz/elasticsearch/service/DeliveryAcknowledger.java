@@ -0,0 +1,47 @@
+package ru.mvz.elasticsearch.service;
+
+import reactor.rabbitmq.AcknowledgableDelivery;
+
+/**
+ * Класс подтверждает брокеру сообщения, операции которых записаны в ElasticSearch.
+ * Сообщения подтверждаются одним вызовом {@code ack(multiple=true)} до последнего сообщения
+ * непрерывной последовательности обработанных сообщений
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class DeliveryAcknowledger {
+
+    final private AckTracker<AcknowledgableDelivery> tracker = new AckTracker<>();
+
+    private AcknowledgableDelivery acknowledged;
+
+    /**
+     * Регистрирует полученное сообщение
+     *
+     * @param delivery сообщение
+     * @return функциональный объект, подтверждающий обработку сообщения
+     */
+    public Runnable register(AcknowledgableDelivery delivery) {
+        return tracker.register(delivery);
+    }
+
+    /**
+     * Отправляет брокеру подтверждение сообщений, обработанных после предыдущего вызова
+     */
+    public synchronized void flush() {
+        AcknowledgableDelivery committed = tracker.getCommitted();
+        if(committed != null && committed != acknowledged) {
+            committed.ack(true);
+            acknowledged = committed;
+        }
+    }
+
+    public long getAcknowledged() {
+        return tracker.getCommittedCount();
+    }
+
+    public int getPending() {
+        return tracker.getPending();
+    }
+}
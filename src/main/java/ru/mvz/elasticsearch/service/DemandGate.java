@@ -0,0 +1,122 @@
+package ru.mvz.elasticsearch.service;
+
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Приостанавливает поток, не передавая источнику запросы элементов подписчика.
+ * Подписка при этом сохраняется: курсоры MongoDB и соединения не закрываются, после возобновления
+ * источнику передаются накопленные за время паузы запросы. Элементы, запрошенные до приостановки,
+ * продолжают поступать, поэтому поток останавливается после исчерпания уже переданного запроса
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class DemandGate {
+
+    final private Set<GateSubscriber<?>> subscribers = new CopyOnWriteArraySet<>();
+
+    private volatile boolean paused;
+
+    /**
+     * Подключает поток к управлению запросами
+     *
+     * @param source поток
+     * @return поток, запросы к которому задерживаются на время паузы
+     */
+    public <T> Flux<T> apply(Flux<T> source) {
+        return source.transform(Operators.<T, T>lift((scannable, actual) -> new GateSubscriber<>(this, actual)));
+    }
+
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+        subscribers.forEach(GateSubscriber::drain);
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Запрос элементов, задержанный на время паузы
+     */
+    public long getWithheld() {
+        return subscribers.stream().mapToLong(subscriber -> subscriber.withheld.get()).sum();
+    }
+
+    static private class GateSubscriber<T> implements CoreSubscriber<T>, Subscription {
+
+        final private DemandGate gate;
+
+        final private CoreSubscriber<? super T> actual;
+
+        final private AtomicLong withheld = new AtomicLong();
+
+        private Subscription upstream;
+
+        GateSubscriber(DemandGate gate, CoreSubscriber<? super T> actual) {
+            this.gate = gate;
+            this.actual = actual;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            if(Operators.validate(upstream, subscription)) {
+                upstream = subscription;
+                gate.subscribers.add(this);
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T value) {
+            actual.onNext(value);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            gate.subscribers.remove(this);
+            actual.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            gate.subscribers.remove(this);
+            actual.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            if(Operators.validate(n)) {
+                    // Запрос передается источнику только вне паузы, при возобновлении - методом drain
+                withheld.getAndUpdate(current -> Operators.addCap(current, n));
+                if(!gate.paused) {
+                    drain();
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            gate.subscribers.remove(this);
+            upstream.cancel();
+        }
+
+        void drain() {
+            long requested = withheld.getAndSet(0);
+            if(requested > 0) {
+                upstream.request(requested);
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package ru.mvz.elasticsearch.service;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Класс распределяет запросы к ElasticSearch между узлами кластера. Узел выбирается циклически
+ * или по наименьшему количеству выполняемых запросов. Узел исключается из выбора на время
+ * {@code ejectDuration} после {@code ejectFailures} последовательных ошибок соединения, таймаутов
+ * или ответов 502/503/504, а также при ошибке периодической проверки доступности. Успешная проверка
+ * возвращает узел в выбор. Если исключены все узлы, выбирается узел, исключение которого истекает раньше.
+ * Список узлов может периодически обновляться по ответу {@code _nodes/http}
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class ElasticNodes {
+    private static final Logger logger = LoggerFactory.getLogger(ElasticNodes.class);
+
+    public static final String ROUND_ROBIN = "round-robin";
+
+    public static final String LEAST_IN_FLIGHT = "least-in-flight";
+
+    /**
+     * Текущий список узлов, заменяется целиком при обновлении
+     */
+    private volatile List<Node> nodes;
+
+    final private boolean leastInFlight;
+
+    final private int ejectFailures;
+
+    final private Duration ejectDuration;
+
+    final private AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Клиент проверок доступности и обновления списка узлов, запросы которого не распределяются
+     */
+    private WebClient probeClient;
+
+    private Disposable probing;
+
+    private Disposable discovering;
+
+    /**
+     * @param urls адреса узлов в виде scheme://host:port
+     * @param strategy способ выбора узла: round-robin или least-in-flight
+     * @param ejectFailures количество последовательных ошибок, после которого узел исключается из выбора
+     * @param ejectDuration время исключения узла
+     */
+    public ElasticNodes(List<String> urls, String strategy, int ejectFailures, Duration ejectDuration) {
+        if(urls.isEmpty()) {
+            throw new IllegalArgumentException("Elasticsearch nodes are not specified");
+        }
+        this.nodes = Collections.unmodifiableList(urls.stream().map(Node::new).collect(Collectors.toList()));
+        this.leastInFlight = LEAST_IN_FLIGHT.equals(strategy);
+        this.ejectFailures = Math.max(1, ejectFailures);
+        this.ejectDuration = ejectDuration;
+    }
+
+    /**
+     * Возвращает функцию, направляющую запрос на выбранный узел. Узел выбирается при каждой
+     * подписке, поэтому повторный запрос может быть выполнен другим узлом
+     *
+     * @return фильтр WebClient
+     */
+    public ExchangeFilterFunction filter() {
+        return (ClientRequest request, ExchangeFunction next) -> Mono.defer(() -> {
+            Node node = select();
+            ClientRequest routed = ClientRequest.from(request).url(node.resolve(request.url())).build();
+            node.inFlight.incrementAndGet();
+            node.requests.incrementAndGet();
+            return next.exchange(routed)
+                    .doOnNext(response -> {
+                        int status = response.rawStatusCode();
+                        if(status == 502 || status == 503 || status == 504) {
+                            node.failure(ejectFailures, ejectDuration, "status " + status);
+                        }
+                        else {
+                            node.success();
+                        }
+                    })
+                    .doOnError(e -> node.failure(ejectFailures, ejectDuration, e.toString()))
+                    .doFinally(signal -> node.inFlight.decrementAndGet());
+        });
+    }
+
+    /**
+     * Выбирает узел для очередного запроса
+     */
+    Node select() {
+        List<Node> current = nodes;
+        long now = System.currentTimeMillis();
+        Node selected = null;
+        if(leastInFlight) {
+            int start = Math.floorMod(next.getAndIncrement(), current.size());
+            for(int i = 0; i < current.size(); i++) {
+                Node node = current.get((start + i) % current.size());
+                if(node.isAvailable(now) && (isNull(selected) || node.inFlight.get() < selected.inFlight.get())) {
+                    selected = node;
+                }
+            }
+        }
+        else {
+            for(int i = 0; i < current.size() && isNull(selected); i++) {
+                Node node = current.get(Math.floorMod(next.getAndIncrement(), current.size()));
+                if(node.isAvailable(now)) {
+                    selected = node;
+                }
+            }
+        }
+        if(isNull(selected)) {
+            selected = current.stream().min(Comparator.comparingLong(node -> node.ejectedUntil)).get();
+        }
+        return selected;
+    }
+
+    /**
+     * Запускает периодические проверки доступности узлов и обновление списка узлов
+     *
+     * @param probeClient клиент без распределения запросов между узлами
+     * @param probeInterval интервал проверки доступности, 0 - не проверяется
+     * @param probeTimeout таймаут проверки
+     * @param discoveryInterval интервал обновления списка узлов, 0 - не обновляется
+     */
+    public void start(WebClient probeClient, Duration probeInterval, Duration probeTimeout, Duration discoveryInterval) {
+        this.probeClient = probeClient;
+        if(!probeInterval.isZero()) {
+            probing = Flux.interval(probeInterval, probeInterval)
+                    .concatMap(p -> Flux.fromIterable(nodes)
+                            .flatMap(node -> probe(node, probeTimeout))
+                            .then())
+                    .subscribe();
+        }
+        if(!discoveryInterval.isZero()) {
+            discovering = Flux.interval(Duration.ZERO, discoveryInterval)
+                    .concatMap(p -> discover(probeTimeout))
+                    .subscribe();
+        }
+    }
+
+    public void stop() {
+        if(nonNull(probing)) {
+            probing.dispose();
+        }
+        if(nonNull(discovering)) {
+            discovering.dispose();
+        }
+    }
+
+    /**
+     * Проверяет доступность узла запросом {@code GET /}
+     */
+    Mono<Void> probe(Node node, Duration timeout) {
+        return probeClient.get()
+                .uri(node.resolve(URI.create("/")))
+                .retrieve()
+                .toBodilessEntity()
+                .timeout(timeout)
+                .doOnNext(p -> {
+                    if(node.restore()) {
+                        logger.info("Elasticsearch node {} is available", node.getUrl());
+                    }
+                })
+                .doOnError(e -> node.eject(ejectDuration, "health check: " + e))
+                .onErrorResume(e -> Mono.empty())
+                .then();
+    }
+
+    /**
+     * Обновляет список узлов по адресам HTTP-интерфейсов, полученным запросом {@code GET _nodes/http}
+     * к доступному узлу. Состояние узлов, оставшихся в списке, сохраняется
+     */
+    Mono<Void> discover(Duration timeout) {
+        Node source = select();
+        return probeClient.get()
+                .uri(source.resolve(URI.create("/_nodes/http?filter_path=nodes.*.http.publish_address")))
+                .retrieve()
+                .bodyToMono(String.class)
+                .timeout(timeout)
+                .map(Document::parse)
+                .doOnNext(response -> {
+                    Document discovered = response.get("nodes", new Document());
+                    Map<String, Node> known = nodes.stream().collect(Collectors.toMap(Node::getUrl, node -> node));
+                    List<Node> updated = new ArrayList<>();
+                    for(String id: discovered.keySet()) {
+                        String address = discovered.getEmbedded(Arrays.asList(id, "http", "publish_address"),
+                                String.class);
+                        if(isNull(address)) {
+                            continue;
+                        }
+                            // Адрес публикуется в виде host/ip:port либо ip:port
+                        String url = source.getScheme() + "://" + address.substring(address.indexOf('/') + 1);
+                        updated.add(known.getOrDefault(url, new Node(url)));
+                    }
+                    if(!updated.isEmpty() && !updated.stream().map(Node::getUrl).collect(Collectors.toSet())
+                            .equals(known.keySet())) {
+                        logger.info("Elasticsearch nodes: {}", updated.stream().map(Node::getUrl)
+                                .collect(Collectors.toList()));
+                        nodes = Collections.unmodifiableList(updated);
+                    }
+                })
+                .doOnError(e -> logger.warn("Elasticsearch nodes discovery from {} failed: {}", source.getUrl(), e.toString()))
+                .onErrorResume(e -> Mono.empty())
+                .then();
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Возвращает состояние узлов
+     *
+     * @return документ со списком узлов
+     */
+    public Document getState() {
+        long now = System.currentTimeMillis();
+        return new Document("nodes", nodes.stream()
+                .map(node -> new Document()
+                        .append("url", node.getUrl())
+                        .append("available", node.isAvailable(now))
+                        .append("inFlight", node.inFlight.get())
+                        .append("requests", node.requests.get())
+                        .append("failures", node.failures.get())
+                        .append("ejectedUntil", node.ejectedUntil > now ? new Date(node.ejectedUntil).toString() : null))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Узел кластера и его состояние
+     */
+    @Getter
+    public static class Node {
+
+        final private String url;
+
+        final private String scheme;
+
+        final private String host;
+
+        final private int port;
+
+        @Getter(AccessLevel.NONE)
+        final private AtomicInteger inFlight = new AtomicInteger();
+
+        @Getter(AccessLevel.NONE)
+        final private AtomicLong requests = new AtomicLong();
+
+        /**
+         * Количество последовательных ошибок
+         */
+        @Getter(AccessLevel.NONE)
+        final private AtomicInteger failures = new AtomicInteger();
+
+        private volatile long ejectedUntil;
+
+        Node(String url) {
+            URI uri = URI.create(url);
+            this.scheme = isNull(uri.getScheme()) ? "http" : uri.getScheme();
+            this.host = uri.getHost();
+            this.port = uri.getPort() < 0 ? 9200 : uri.getPort();
+            this.url = scheme + "://" + host + ":" + port;
+        }
+
+        URI resolve(URI uri) {
+            return UriComponentsBuilder.fromUri(uri).scheme(scheme).host(host).port(port).build(true).toUri();
+        }
+
+        boolean isAvailable(long now) {
+            return ejectedUntil <= now;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        void success() {
+            failures.set(0);
+        }
+
+        void failure(int ejectFailures, Duration ejectDuration, String reason) {
+            if(failures.incrementAndGet() >= ejectFailures) {
+                eject(ejectDuration, reason);
+            }
+        }
+
+        void eject(Duration duration, String reason) {
+            if(isAvailable(System.currentTimeMillis())) {
+                logger.warn("Elasticsearch node {} ejected for {} ms: {}", url, duration.toMillis(), reason);
+            }
+            ejectedUntil = System.currentTimeMillis() + duration.toMillis();
+        }
+
+        /**
+         * Возвращает узел в выбор
+         *
+         * @return узел был исключен
+         */
+        boolean restore() {
+            failures.set(0);
+            boolean ejected = !isAvailable(System.currentTimeMillis());
+            ejectedUntil = 0;
+            return ejected;
+        }
+    }
+}
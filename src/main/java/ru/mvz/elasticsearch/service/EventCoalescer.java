@@ -0,0 +1,122 @@
+package ru.mvz.elasticsearch.service;
+
+import lombok.Getter;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Класс объединяет события с одинаковым ключом, поступившие в течение окна. Окно открывается
+ * первым событием и закрывается по истечении времени или при достижении количества различных ключей.
+ * Из событий с одним ключом остается результат функции объединения (по умолчанию последнее событие)
+ * на позиции первого события, при закрытии окна события передаются в порядке поступления ключей
+ *
+ * @param <T> тип события
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Getter
+public class EventCoalescer<T> implements Function<Flux<T>, Flux<T>> {
+
+    private static final Object DEADLINE = new Object();
+
+    private static final long MIN_DEADLINE_CHECK = 5;
+
+    final private Function<T, Object> getKey;
+
+    final private BinaryOperator<T> merge;
+
+    final private int maxKeys;
+
+    final private Duration window;
+
+    final private LongAdder received = new LongAdder();
+
+    final private LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param getKey функциональный объект, возвращающий ключ события
+     * @param merge функциональный объект, объединяющий предыдущее и новое события с одним ключом
+     * @param maxKeys количество различных ключей, при достижении которого окно закрывается
+     * @param window время ожидания с момента поступления первого события окна
+     */
+    public EventCoalescer(Function<T, Object> getKey, BinaryOperator<T> merge, int maxKeys, Duration window) {
+        this.getKey = getKey;
+        this.merge = merge;
+        this.maxKeys = Math.max(1, maxKeys);
+        this.window = window;
+    }
+
+    public EventCoalescer(Function<T, Object> getKey, int maxKeys, Duration window) {
+        this(getKey, (previous, latest) -> latest, maxKeys, window);
+    }
+
+    @Override
+    public Flux<T> apply(Flux<T> source) {
+        if(window.isZero() || window.isNegative()) {
+            return source;
+        }
+        return Flux.defer(() -> {
+            Window events = new Window();
+            Duration deadlineCheck = Duration.ofMillis(Math.max(MIN_DEADLINE_CHECK, window.toMillis() / 4));
+            return source
+                    .<Object>publish(shared -> Flux.merge(shared,
+                            Flux.interval(deadlineCheck)
+                                .map(p -> DEADLINE)
+                                .onBackpressureDrop()
+                                .takeUntilOther(shared.ignoreElements())))
+                    .concatMapIterable(events::offer)
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(events.flush())));
+        });
+    }
+
+    /**
+     * Текущее окно. Методы вызываются последовательно
+     */
+    private class Window {
+
+        private LinkedHashMap<Object, T> events = new LinkedHashMap<>();
+
+        private long startTime;
+
+        @SuppressWarnings("unchecked")
+        List<T> offer(Object item) {
+            if(item == DEADLINE) {
+                return !events.isEmpty() && System.currentTimeMillis() - startTime >= window.toMillis()
+                        ? flush()
+                        : Collections.emptyList();
+            }
+            T event = (T) item;
+            received.increment();
+            if(events.isEmpty()) {
+                startTime = System.currentTimeMillis();
+            }
+            Object key = getKey.apply(event);
+            T previous = events.get(key);
+            if(previous != null) {
+                events.put(key, merge.apply(previous, event));
+                coalesced.increment();
+                return Collections.emptyList();
+            }
+            events.put(key, event);
+            return events.size() >= maxKeys ? flush() : Collections.emptyList();
+        }
+
+        List<T> flush() {
+            if(events.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<T> result = new ArrayList<>(events.values());
+            events = new LinkedHashMap<>();
+            return result;
+        }
+    }
+}
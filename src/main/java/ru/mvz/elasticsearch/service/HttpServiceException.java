@@ -6,4 +6,8 @@ public class HttpServiceException extends RuntimeException {
         super(message);
         this.statusCode = statusCode;
     }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
 }
\ No newline at end of file
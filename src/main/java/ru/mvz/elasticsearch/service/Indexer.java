@@ -1,34 +1,57 @@
 package ru.mvz.elasticsearch.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.rabbitmq.client.Delivery;
+import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.handler.timeout.WriteTimeoutException;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
 import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.ParallelFlux;
+import reactor.core.publisher.SignalType;
+import reactor.core.publisher.Sinks;
 import reactor.core.scheduler.Schedulers;
 import reactor.rabbitmq.*;
 import reactor.util.function.Tuple2;
+import reactor.util.function.Tuple3;
+import reactor.util.function.Tuples;
 import reactor.util.retry.Retry;
 import ru.mvz.elasticsearch.config.AppConfig;
 import ru.mvz.elasticsearch.config.RabbitMQConfig;
+import ru.mvz.elasticsearch.config.WebClientConfig;
+import ru.mvz.elasticsearch.domain.JoinedCollectionCache;
 import ru.mvz.elasticsearch.domain.MongoElasticIndex;
 import ru.mvz.elasticsearch.repository.FileStorage;
 import ru.mvz.elasticsearch.repository.ReactorRepositoryMongoDB;
+import ru.mvz.elasticsearch.repository.WriteAheadLog;
 import ru.mvz.elasticsearch.util.ConvertDataException;
 import ru.mvz.elasticsearch.util.IllegalObjectIdException;
 
@@ -38,11 +61,18 @@ import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
-import static java.lang.Thread.sleep;
 import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 import static ru.mvz.elasticsearch.util.Package.*;
@@ -64,92 +94,397 @@ public class Indexer {
 
     final private WebClient webClientElastic;
 
+    /**
+     * Тела _bulk-запросов сжимаются gzip
+     */
+    final private boolean compressBulk;
+
     final private ReactiveQueue reactiveQueue;
 
     final private FileStorage fileStorage;
 
+    final private WriteAheadLog writeAheadLog;
+
+    final private IndexerMetrics indexerMetrics;
+
     final private AppConfig appConfig;
 
     final private AtomicLong sendRequest = new AtomicLong();
 
     final private AtomicLong receiveResponse = new AtomicLong();
 
+    final private ConcurrencyLimiter bulkLimiter;
+
+    /**
+     * Нагрузка записи на узлы кластера, ограничивающая количество одновременных запросов
+     */
+    final private ClusterPressure clusterPressure;
+
+    /**
+     * Ограничения скорости записи очередей приоритета, общие для всех задач
+     */
+    final private Map<Lane, BulkRateLimit> laneRates = new EnumMap<>(Lane.class);
+
     private Task rabbitMQTask;
 
-    final private Set<Object> waitingForResponse = ConcurrentHashMap.newKeySet();
+    private Task changeStreamTask;
+
+    /**
+     * Объединяет события очереди, относящиеся к одному документу индекса
+     */
+    final private EventCoalescer<Tuple3<Delivery, IndexEvent, Runnable>> queueCoalescer;
+
+    private static final Runnable NO_ACK = () -> {};
+
+    /**
+     * Количество тел запросов, принимаемых от источника сверх отправляемых, для всех очередей приоритета задачи
+     */
+    private static final int LANE_PREFETCH = 8;
+
+
+    final private DataBufferFactory bulkBufferFactory;
+
+    final private BulkFailureSink bulkFailureSink;
+
+    final private CheckpointService checkpointService;
+
+    final private ChangeStreamSource changeStreamSource;
+
+    /**
+     * Новые версии индексов, в которые выполняется переиндексация, по имени и типу индекса.
+     * События очереди для таких индексов записываются также в новую версию
+     */
+    final private Map<List<String>, MongoElasticIndex> reindexTargets = new ConcurrentHashMap<>();
 
     /**
-     * Список активных задач индексатора
+     * Активные задачи индексатора по идентификатору задачи
      */
-    final private List<Task> activeTasks = new ArrayList<>();
+    final private Map<Long, Task> activeTasks = new ConcurrentSkipListMap<>();
 
     public Indexer(ReactorRepositoryMongoDB reactorRepositoryMongoDB,
                    MongoElasticIndexService mongoElasticIndexService,
                    @Qualifier("elastic") WebClient.Builder webClientElastic,
+                   WebClientConfig webClientConfig,
                    ReactiveQueue reactiveQueue,
                    FileStorage fileStorage,
-                   AppConfig appConfig) {
+                   WriteAheadLog writeAheadLog,
+                   AppConfig appConfig,
+                   @Qualifier("bulk") DataBufferFactory bulkBufferFactory,
+                   BulkFailureSink bulkFailureSink,
+                   CheckpointService checkpointService,
+                   ChangeStreamSource changeStreamSource,
+                   IndexerMetrics indexerMetrics) {
         this.reactorRepositoryMongoDB = reactorRepositoryMongoDB;
         this.mongoElasticIndexService = mongoElasticIndexService;
         this.webClientElastic = webClientElastic
                 .filter(onRequest())
                 .filter(onResponse())
                 .build();
+        this.compressBulk = webClientConfig.isCompressRequests();
         this.reactiveQueue = reactiveQueue;
         this.fileStorage = fileStorage;
+        this.writeAheadLog = writeAheadLog;
         this.appConfig = appConfig;
-
+        this.bulkBufferFactory = bulkBufferFactory;
+        this.bulkFailureSink = bulkFailureSink;
+        this.checkpointService = checkpointService;
+        this.changeStreamSource = changeStreamSource;
+        this.indexerMetrics = indexerMetrics;
+        this.queueCoalescer = new EventCoalescer<>(
+                event -> Arrays.asList(event.getT2().getIndexName(), event.getT2().getIndexType(), event.getT2().getId()),
+                    // Предшествующее событие подтверждается сразу: подтверждения передаются брокеру
+                    // только до первого необработанного сообщения, которым остается последнее событие
+                (previous, latest) -> {
+                    previous.getT3().run();
+                    return latest;
+                },
+                appConfig.getCoalesceMaxKeys(),
+                Duration.ofMillis(appConfig.getCoalesceWindow()));
+        this.bulkLimiter = new ConcurrencyLimiter(appConfig.getInitialProcessingRequest(),
+                appConfig.getMinProcessingRequest(),
+                appConfig.getMaxProcessingRequest(),
+                appConfig.getProcessingRequestBackoffRatio(),
+                appConfig.getProcessingRequestLatencyTolerance(),
+                appConfig.getLaneWeights());
+        this.clusterPressure = new ClusterPressure(appConfig.getPressureLow(), appConfig.getPressureHigh(),
+                appConfig.getPressureMinFactor());
+        for(Lane lane: Lane.values()) {
+            laneRates.put(lane, new BulkRateLimit(appConfig.getLaneDocumentsRate().getOrDefault(lane, 0.0),
+                    appConfig.getLaneBytesRate().getOrDefault(lane, 0.0)));
+        }
+        indexerMetrics.gauge("indexer.bulk.inflight", this, Indexer::getProcessingRequest);
+        indexerMetrics.gauge("indexer.cluster.pressure", clusterPressure, ClusterPressure::getPressure);
     }
 
     @EventListener(ApplicationReadyEvent.class)
     public void runAfterStartup() {
         startQueueTask();
+        startChangeStreamTask();
+        startPressurePolling();
     }
 
+    /**
+     * Запускает периодический опрос статистики пулов потоков write и indexing_pressure узлов кластера.
+     * Коэффициент нагрузки уменьшает предел одновременных запросов до переполнения очередей записи.
+     * При ошибке опроса ограничение по нагрузке снимается, перегрузка в этом случае определяется по ответам 429
+     */
+    private void startPressurePolling() {
+        if(appConfig.getPressurePollInterval() <= 0) {
+            return;
+        }
+        Flux.interval(Duration.ZERO, Duration.ofMillis(appConfig.getPressurePollInterval()))
+                .onBackpressureDrop()
+                .concatMap(p -> Mono.zip(elasticRequest(HttpMethod.GET, ClusterPressure.STATS_URI, null),
+                                elasticRequest(HttpMethod.GET, ClusterPressure.THREAD_POOL_URI, null))
+                        .map(stats -> clusterPressure.update(stats.getT1(), stats.getT2()))
+                        .onErrorResume(e -> {
+                            logger.warn("Cluster stats error: {}", e.getMessage());
+                            return Mono.just(1.0);
+                        }))
+                .subscribe(factor -> {
+                    if(factor != bulkLimiter.getPressureFactor()) {
+                        logger.info("Cluster pressure {}, limit factor {}",
+                                String.format("%.2f", clusterPressure.getPressure()), String.format("%.2f", factor));
+                    }
+                    bulkLimiter.setPressureFactor(factor);
+                });
+    }
+
+    /**
+     * Запускает задачу индексации по событиям очереди. В режиме ручного подтверждения сообщение
+     * подтверждается брокеру после записи в ElasticSearch операций, сформированных по событию,
+     * тела запросов при этом не записываются в журнал упреждающей записи.
+     * При ошибке обработки задача подписывается на очередь заново: сообщения, не подтвержденные
+     * в прерванном подключении, повторно доставляются брокером
+     */
     private void startQueueTask() {
 
+        boolean manualAck = reactiveQueue.isManualAck();
+        rabbitMQTask = new Task("queue", Lane.LIVE, null, !manualAck, indexerMetrics);
+        Timer decodeTimer = indexerMetrics.timer(IndexerMetrics.QUEUE_DECODE, rabbitMQTask.getTags());
+        Timer fetchTimer = indexerMetrics.timer(IndexerMetrics.MONGO_FETCH, rabbitMQTask.getTags());
+        Flux<BulkResult> processingData = Flux.defer(() -> queueProcessingData(manualAck, decodeTimer, fetchTimer))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofMinutes(1))
+                        .transientErrors(true)
+                        .doBeforeRetry(signal -> logger.error("Queue task error: {}, restarting",
+                                signal.failure().getMessage())));
+        rabbitMQTask.setDispose(subscribe(processingData, rabbitMQTask));
+        rabbitMQTask.setStartDate(new Date());
+        addTask(rabbitMQTask);
+    }
 
-        rabbitMQTask = new Task(null);
-        ParallelFlux dataEventsFlux = reactiveQueue.inboundFlux()
-                .parallel(appConfig.getIndexParallelism())
-                .runOn(Schedulers.boundedElastic())
-                .map(msg -> {
+    /**
+     * Создает поток обработки одной подписки на очередь. Подтверждения сообщений относятся
+     * к каналу подписки, поэтому для каждой подписки создается новый объект подтверждений
+     *
+     * @param manualAck режим ручного подтверждения сообщений
+     * @param decodeTimer таймер разбора сообщения
+     * @param fetchTimer таймер загрузки документов из MongoDB
+     * @return поток результатов _bulk-запросов
+     */
+    private Flux<BulkResult> queueProcessingData(boolean manualAck, Timer decodeTimer, Timer fetchTimer) {
+        DeliveryAcknowledger acknowledger = new DeliveryAcknowledger();
+        Flux<? extends Delivery> deliveries = manualAck
+                ? reactiveQueue.inboundManualAckFlux()
+                : reactiveQueue.inboundFlux();
+        ParallelFlux dataEventsFlux = deliveries
+                .transform(rabbitMQTask.getGate()::apply)
+                .<Tuple3<Delivery, IndexEvent, Runnable>>handle((msg, sink) -> {
+                    Runnable ack = msg instanceof AcknowledgableDelivery
+                            ? acknowledger.register((AcknowledgableDelivery) msg)
+                            : NO_ACK;
+                    long start = System.nanoTime();
                     IndexEvent indexEvent = reactiveQueue.msg2IndexEvent(msg);
+                    decodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    if(nonNull(indexEvent)) {
+                        sink.next(Tuples.of(msg, indexEvent, ack));
+                    }
+                    else {
+                        logger.error("Can't deserialize message: {}", new String(msg.getBody(), StandardCharsets.UTF_8));
+                        ack.run();
+                    }
+                })
+                    // Объединение повторных событий одного документа
+                .transform(queueCoalescer)
+                .map(event -> {
                     try {
-                        return CreateIndexItem(indexEvent);
+                        return CreateIndexItem(event.getT2(), event.getT3());
                     } catch (IllegalObjectIdException | IOException | ConvertDataException e) {
                         logger.error("{} For message: {}", String.join(", ",throwable2ListMessage(e)),
-                                new String(msg.getBody(), StandardCharsets.UTF_8));
-                        return new IndexItem(null, null, null);
+                                new String(event.getT1().getBody(), StandardCharsets.UTF_8));
+                        event.getT3().run();
+                        return new IndexItem(null, null, null, null);
                     }
                 })
                 .filter(e -> nonNull(e.getAction()))
-                .flatMap(item ->
-                    Flux.zip("delete".equals(item.getAction())
-                                // Для операции удаления создаётся Document, содержащий _id удаляемого документа
-                            ? Flux.just(new Document().append("_id", item.getIdDocument().get("_id")))
-                                // Для операции обновления индекса Document загружается из базы данных
-                            : reactorRepositoryMongoDB.find(
-                                item.getMongoElasticIndex().getCollection(),
-                                item.getIdDocument(),
-                                item.getMongoElasticIndex().getProjection()),
-                        Flux.just(item)
-                    )
-                    .map(d -> new EventDocument(d.getT2().getAction(),
-                            d.getT1(),
-                            d.getT2().getMongoElasticIndex()))
-                );
-
-        Flux<Tuple2<String,Document>> processingData = processingData(dataEventsFlux,
+                .doOnNext(item -> invalidateJoinCaches(item.getMongoElasticIndex().getCollection(),
+                        item.getIdDocument().get("_id")))
+                .concatMapIterable(this::withReindexTargets)
+                    // Накопление событий для загрузки документов одним запросом к MongoDB
+                .bufferTimeout(appConfig.getFetchBatchSize(), Duration.ofMillis(appConfig.getFetchBatchDuration()))
+                .flatMapSequential(items -> indexerMetrics.time(fetchTimer, fetchDocuments(items)),
+                        appConfig.getIndexParallelism())
+                .parallel(appConfig.getIndexParallelism())
+                .runOn(Schedulers.boundedElastic());
+
+        Flux<BulkResult> processingData = processingData(dataEventsFlux,
                 EventDocument::getAction,
                 EventDocument::getDocument,
                 EventDocument::getMongoElasticIndex,
-                fileStorage.pullFileContents(),
+                EventDocument::getAck,
+                    // Тела запросов, не подтвержденные ElasticSearch до остановки
+                Flux.defer(fileStorage::pullFileContents).map(data -> BulkBody.wrap(bulkBufferFactory, data))
+                    .concatWith(writeAheadLog.replay().map(record -> {
+                        BulkBody body = BulkBody.wrap(bulkBufferFactory, record.getT2());
+                        body.setLogOffset(record.getT1());
+                        return body;
+                    }))
+                    .doOnNext(body -> body.setLane(Lane.REPLAY)),
                 rabbitMQTask);
 
-        rabbitMQTask.setDispose(subscribe(processingData, rabbitMQTask));
-        rabbitMQTask.setStartDate(new Date());
-        addTask(rabbitMQTask);
+        if(manualAck) {
+                // Подтверждения отправляются брокеру периодически одним вызовом на группу сообщений
+            Disposable acknowledging = Flux.interval(Duration.ofMillis(reactiveQueue.getAckInterval()))
+                    .subscribe(p -> acknowledger.flush());
+            processingData = processingData.doFinally(signal -> {
+                acknowledging.dispose();
+                acknowledger.flush();
+            });
+            rabbitMQTask.setAcknowledger(acknowledger);
+        }
+        return processingData;
+    }
+
+    /**
+     * Запускает задачу индексации по событиям потоков изменений MongoDB для индексов,
+     * заданных параметром {@code app.change-stream-indexes} в виде имя или имя/тип.
+     * Документ события содержит текущую версию документа, повторное чтение из MongoDB не выполняется.
+     * Тела запросов не записываются в журнал упреждающей записи, после перезапуска поток изменений
+     * возобновляется с последнего подтвержденного события. При ошибке обработки задача подписывается
+     * на потоки изменений заново с сохраненных токенов возобновления
+     */
+    private void startChangeStreamTask() {
+        List<List<String>> keys = new ArrayList<>();
+        for(String name: appConfig.getChangeStreamIndexes()) {
+            String[] nameType = name.split("/", 2);
+            try {
+                mongoElasticIndexService.getWithException(nameType[0], nameType.length > 1 ? nameType[1] : null);
+                keys.add(Arrays.asList(nameType[0], nameType.length > 1 ? nameType[1] : null));
+            } catch (IOException | ConvertDataException | NotFoundIndexDefinitionException e) {
+                logger.error("Change stream index {}: {}", name, String.join(", ", throwable2ListMessage(e)));
+            }
+        }
+        if(keys.isEmpty()) {
+            return;
+        }
+        changeStreamTask = new Task("changeStream", Lane.LIVE, null, false, indexerMetrics);
+            // При изменении описаний потоки изменений открываются заново с подтвержденных токенов
+        ParallelFlux<ChangeStreamSource.ChangeEvent> dataEventsFlux = mongoElasticIndexService.definitions(keys)
+                .doOnNext(indexes -> logger.info("Change stream indexes: {}", indexes.stream()
+                        .map(MongoElasticIndex::getIndex)
+                        .collect(Collectors.toList())))
+                .switchMap(changeStreamSource::watch)
+                .transform(changeStreamTask.getGate()::apply)
+                .doOnNext(event -> invalidateJoinCaches(event.getMongoElasticIndex().getCollection(),
+                        event.getDocument().get("_id")))
+                .concatMapIterable(this::withReindexTargets)
+                .parallel(appConfig.getIndexParallelism())
+                .runOn(Schedulers.boundedElastic());
+
+        Flux<BulkResult> processingData = processingData(dataEventsFlux,
+                ChangeStreamSource.ChangeEvent::getAction,
+                ChangeStreamSource.ChangeEvent::getDocument,
+                ChangeStreamSource.ChangeEvent::getMongoElasticIndex,
+                ChangeStreamSource.ChangeEvent::getAck,
+                Flux.just(),
+                changeStreamTask);
+
+            // Ошибка любой стадии обработки не завершает задачу: неподтвержденные события
+            // повторно читаются из потоков изменений
+        processingData = processingData
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofMinutes(1))
+                        .transientErrors(true)
+                        .doBeforeRetry(signal -> logger.error("Change stream task error: {}, restarting",
+                                signal.failure().getMessage())));
+        changeStreamTask.setDispose(subscribe(processingData, changeStreamTask));
+        changeStreamTask.setStartDate(new Date());
+        addTask(changeStreamTask);
+    }
+
+    /**
+     * Загружает документы для группы событий. Для событий обновления индекса выполняется один запрос
+     * {@code {_id: {$in: [...]}}} на каждую пару коллекция/проекция, документ события берется из результатов
+     * запроса его пары. Из нескольких событий одного документа и индекса передается только последнее,
+     * предшествующие подтверждаются. Для операции удаления создаётся Document, содержащий _id удаляемого документа
+     *
+     * @param items группа событий
+     * @return поток документов в порядке поступления событий
+     */
+    private Flux<EventDocument> fetchDocuments(List<IndexItem> items) {
+        Map<List<Object>, Integer> last = new HashMap<>();
+        for(int i = 0; i < items.size(); i++) {
+            last.put(eventKey(items.get(i)), i);
+        }
+        Map<List<Object>, List<IndexItem>> groups = new LinkedHashMap<>();
+        for(int i = 0; i < items.size(); i++) {
+            IndexItem item = items.get(i);
+            if(!"delete".equals(item.getAction()) && last.get(eventKey(item)) == i) {
+                groups.computeIfAbsent(groupKey(item), key -> new ArrayList<>()).add(item);
+            }
+        }
+
+        return Flux.fromIterable(groups.entrySet())
+                .flatMap(group -> findGroupDocuments(group.getValue())
+                        .map(documents -> Tuples.of(group.getKey(), documents)))
+                .collectMap(Tuple2::getT1, Tuple2::getT2)
+                .flatMapIterable(groupDocuments -> {
+                    List<EventDocument> result = new ArrayList<>(items.size());
+                    Set<Bson> used = Collections.newSetFromMap(new IdentityHashMap<>());
+                    for(int i = 0; i < items.size(); i++) {
+                        IndexItem item = items.get(i);
+                        Object id = item.getIdDocument().get("_id");
+                        if(last.get(eventKey(item)) != i) {
+                                // Итог определяется последним событием документа в группе
+                            item.getAck().run();
+                            continue;
+                        }
+                        if("delete".equals(item.getAction())) {
+                            result.add(new EventDocument(item.getAction(), new Document("_id", id),
+                                    item.getMongoElasticIndex(), item.getAck()));
+                            continue;
+                        }
+                        Bson document = groupDocuments.getOrDefault(groupKey(item), Collections.emptyMap()).get(id);
+                        if(isNull(document)) {
+                            logger.warn("Document not found: {} {} index {}", item.getMongoElasticIndex().getCollection(),
+                                    id, item.getMongoElasticIndex().getIndex());
+                            item.getAck().run();
+                        }
+                        else {
+                                // Документ изменяется при обработке, поэтому каждому индексу передается своя копия
+                            result.add(new EventDocument(item.getAction(),
+                                    used.add(document) || !(document instanceof Document) ? document
+                                            : deepCopy((Document) document),
+                                    item.getMongoElasticIndex(), item.getAck()));
+                        }
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * Ключ события: описание индекса и _id документа
+     */
+    private static List<Object> eventKey(IndexItem item) {
+        return Arrays.asList(item.getMongoElasticIndex(), item.getIdDocument().get("_id"));
+    }
+
+    /**
+     * Ключ запроса документов: коллекция и проекция индекса
+     */
+    private static List<Object> groupKey(IndexItem item) {
+        return Arrays.asList(item.getMongoElasticIndex().getCollection(), item.getMongoElasticIndex().getProjection());
     }
 
     public Mono<Document> sendIndexEvent(IndexEvent indexEvent)
@@ -166,81 +501,280 @@ public class Indexer {
                 .append("type", isNull(indexEvent.getIndexType()) ? "" : indexEvent.getIndexType()));
     }
 
-    public Mono<Document> refresh(String indexName, String indexType) throws IOException, ConvertDataException, NotFoundIndexDefinitionException {
+    /**
+     * Запускает переиндексацию коллекции. Коллекция читается параллельно по диапазонам _id,
+     * подтвержденные позиции диапазонов периодически сохраняются в контрольной точке
+     *
+     * @param indexName имя индекса
+     * @param indexType тип индекса
+     * @param resume продолжить переиндексацию с сохраненной контрольной точки, если она существует
+     * @return описание запущенной задачи
+     */
+    public Mono<Document> refresh(String indexName, String indexType, boolean resume)
+            throws IOException, ConvertDataException, NotFoundIndexDefinitionException {
 
         Document result = new Document();
         MongoElasticIndex mongoElasticIndex = mongoElasticIndexService.getWithException(indexName, indexType);
 
         if(nonNull(mongoElasticIndex)) {
-            Task task = new Task(mongoElasticIndex);
-            ParallelFlux dataEventsFlux = reactorRepositoryMongoDB
-                    .findAll(mongoElasticIndex.getCollection(), mongoElasticIndex.getProjection())
-                    .parallel(appConfig.getIndexParallelism())
-                    .runOn(Schedulers.boundedElastic());
-            Flux<Tuple2<String,Document>> processingData = processingData(dataEventsFlux, (p) -> "index",
-                    (p) -> (Document)p,
-                    (p) -> mongoElasticIndex,
-                    Flux.just(),
-                    task);
-
-            task.setDispose(subscribe(processingData, task));
-            task.setStartDate(new Date());
-            addTask(task);
+            Task task = startRefresh(mongoElasticIndex,
+                    mongoElasticIndexService.versions(mongoElasticIndex, indexName, indexType),
+                    "refresh:" + indexName + (isNull(indexType) ? "" : "/" + indexType), resume);
             result.append("Index refresh", new Document()
                     .append("Index", "name: " + indexName + (Objects.isNull(indexType) ? "" : "type: " + indexType))
                     .append("started", task.getStartDate().toString())
+                    .append("resume", resume)
             );
         }
         return Mono.just(result);
     }
 
-    private <T> Flux<Tuple2<String,Document>>
+    /**
+     * Создает и запускает задачу загрузки всех документов коллекции в индекс. При изменении описания
+     * индекса загрузка начинается заново с новым описанием, контрольная точка при этом не используется
+     *
+     * @param mongoElasticIndex описание индекса
+     * @param versions описание индекса и его новые версии
+     * @param checkpointId идентификатор контрольной точки
+     * @param resume продолжить загрузку с сохраненной контрольной точки, если она существует
+     * @return запущенная задача
+     */
+    private Task startRefresh(MongoElasticIndex mongoElasticIndex, Flux<MongoElasticIndex> versions,
+                              String checkpointId, boolean resume) {
+        Task task = new Task("refresh", Lane.REFRESH, mongoElasticIndex, indexerMetrics);
+        AtomicBoolean restarted = new AtomicBoolean();
+        ParallelFlux<Tuple3<Bson, Runnable, MongoElasticIndex>> dataEventsFlux = versions
+                .switchMap(index -> (restarted.getAndSet(true)
+                            ? Mono.<List<RefreshPartition>>empty()
+                                .doOnSubscribe(p -> logger.info("Index: {} definition reloaded, refresh restarted",
+                                        index.getIndex()))
+                            : resume
+                                ? checkpointService.load(checkpointId).map(this::partitionsFromCheckpoint)
+                                : Mono.<List<RefreshPartition>>empty())
+                        .switchIfEmpty(Mono.defer(() -> partitions(index.getCollection())))
+                        .doOnNext(task::setPartitions)
+                        .flatMapMany(partitions -> Flux.fromIterable(partitions)
+                                .flatMap(partition -> scanPartition(index, partition),
+                                        appConfig.getRefreshConcurrency()))
+                        .map(document -> Tuples.of(document.getT1(), document.getT2(), index))
+                            // Завершение загрузки передается через switchMap, поток версий не завершается
+                        .materialize())
+                .<Tuple3<Bson, Runnable, MongoElasticIndex>>dematerialize()
+                    // Приостановка переиндексации задерживает запросы к курсорам диапазонов
+                .transform(task.getGate()::apply)
+                .parallel(appConfig.getIndexParallelism())
+                .runOn(Schedulers.boundedElastic());
+        Flux<BulkResult> processingData = processingData(dataEventsFlux, (p) -> "index",
+                Tuple3::getT1,
+                Tuple3::getT3,
+                Tuple3::getT2,
+                Flux.just(),
+                task);
+            // Периодическое сохранение подтвержденных позиций диапазонов
+        Disposable checkpointing = Flux.interval(Duration.ofMillis(appConfig.getCheckpointInterval()))
+                .concatMap(p -> saveRefreshCheckpoint(checkpointId, task))
+                .subscribe();
+
+        task.setDispose(subscribe(processingData
+                .doFinally(signal -> {
+                    checkpointing.dispose();
+                    (signal == SignalType.ON_COMPLETE
+                            ? checkpointService.remove(checkpointId)
+                            : saveRefreshCheckpoint(checkpointId, task))
+                        .subscribe(null, e -> logger.error("Checkpoint {} error: {}", checkpointId, e.getMessage()));
+                    if(signal == SignalType.ON_COMPLETE) {
+                        task.getCompletion().tryEmitEmpty();
+                    }
+                    else {
+                        task.getCompletion().tryEmitError(new IllegalStateException("Refresh " + checkpointId
+                                + " interrupted: " + signal));
+                    }
+                }), task));
+        reactorRepositoryMongoDB.estimatedDocumentCount(mongoElasticIndex.getCollection())
+                .subscribe(task::setEstimatedDocuments,
+                        e -> logger.warn("Index: {} document count error: {}", mongoElasticIndex.getIndex(), e.getMessage()));
+        task.setStartDate(new Date());
+        addTask(task);
+        return task;
+    }
+
+    /**
+     * Запускает переиндексацию в новую версию индекса {@code <index>_v<N>} без прерывания поиска.
+     * Новый индекс создается с настройками и отображениями текущего, на время загрузки
+     * отключаются обновление (refresh_interval: -1) и реплики. После загрузки настройки
+     * восстанавливаются, псевдоним с именем индекса атомарно переключается на новую версию.
+     * Во время загрузки события очереди записываются в обе версии индекса. Предыдущие версии индекса
+     * {@code <index>_v<N>} не удаляются. Если имя индекса до первой переиндексации принадлежит самому индексу,
+     * а не псевдониму, этот индекс удаляется при переключении (действие remove_index), так как псевдоним
+     * не может иметь имя существующего индекса.
+     * При ошибке или прерывании загрузки и переключения новая версия удаляется, псевдоним остается на прежней
+     *
+     * @param indexName имя индекса (псевдонима)
+     * @param indexType тип индекса
+     * @param forceMerge выполнить слияние сегментов нового индекса перед переключением псевдонима
+     * @return описание запущенной задачи
+     */
+    public Mono<Document> reindex(String indexName, String indexType, boolean forceMerge)
+            throws IOException, ConvertDataException, NotFoundIndexDefinitionException {
+        MongoElasticIndex mongoElasticIndex = mongoElasticIndexService.getWithException(indexName, indexType);
+        String alias = mongoElasticIndex.getIndex();
+
+        return elasticRequest(HttpMethod.GET, "/" + alias + "," + alias + "_v*"
+                    + "?ignore_unavailable=true&allow_no_indices=true", null)
+            .flatMap(indices -> {
+                    // Индексы, на которые указывает псевдоним, либо индекс с именем псевдонима
+                List<String> current = new ArrayList<>();
+                int version = 0;
+                for(String name: indices.keySet()) {
+                    Document aliases = indices.get(name, Document.class).get("aliases", Document.class);
+                    if(name.equals(alias) || (nonNull(aliases) && aliases.containsKey(alias))) {
+                        current.add(name);
+                    }
+                    if(name.matches(Pattern.quote(alias) + "_v\\d+")) {
+                        version = Math.max(version, Integer.parseInt(name.substring(alias.length() + 2)));
+                    }
+                }
+                String target = alias + "_v" + (version + 1);
+                Document source = current.isEmpty() ? new Document() : indices.get(current.get(0), Document.class);
+                Document sourceSettings = source.getEmbedded(Arrays.asList("settings", "index"), new Document());
+                Document restoreSettings = new Document("index", new Document()
+                        .append("refresh_interval", sourceSettings.get("refresh_interval", "1s"))
+                        .append("number_of_replicas", sourceSettings.get("number_of_replicas", "1")));
+
+                Document createSettings = new Document()
+                        .append("refresh_interval", "-1")
+                        .append("number_of_replicas", 0);
+                if(sourceSettings.containsKey("number_of_shards")) {
+                    createSettings.append("number_of_shards", sourceSettings.get("number_of_shards"));
+                }
+                if(sourceSettings.containsKey("analysis")) {
+                    createSettings.append("analysis", sourceSettings.get("analysis"));
+                }
+                Document create = new Document("settings", new Document("index", createSettings));
+                if(source.containsKey("mappings")) {
+                    create.append("mappings", source.get("mappings"));
+                }
+
+                    // Индекс с именем псевдонима удаляется в том же атомарном запросе
+                List<Document> actions = new ArrayList<>();
+                current.forEach(name -> actions.add(name.equals(alias)
+                        ? new Document("remove_index", new Document("index", name))
+                        : new Document("remove", new Document("index", name).append("alias", alias))));
+                actions.add(new Document("add", new Document("index", target).append("alias", alias)));
+
+                List<String> key = Arrays.asList(alias, mongoElasticIndex.getType());
+                MongoElasticIndex targetIndex = mongoElasticIndex.withIndex(target);
+                    // Событиям потоков изменений передается версия описания, с которой загружается новый индекс
+                AtomicReference<MongoElasticIndex> loading = new AtomicReference<>(targetIndex);
+                Flux<MongoElasticIndex> versions = mongoElasticIndexService.versions(mongoElasticIndex, indexName, indexType)
+                        .map(index -> index == mongoElasticIndex ? targetIndex : index.withIndex(target))
+                        .doOnNext(index -> reindexTargets.replace(key, loading.getAndSet(index), index));
+                return elasticRequest(HttpMethod.PUT, "/" + target, create)
+                    .doOnNext(p -> reindexTargets.put(key, targetIndex))
+                    .map(p -> startRefresh(targetIndex, versions, "reindex:" + target, false))
+                    .doOnNext(task -> task.getCompletion().asMono()
+                        .then(Mono.defer(() -> elasticRequest(HttpMethod.PUT, "/" + target + "/_settings",
+                                restoreSettings)))
+                        .then(Mono.defer(() -> elasticRequest(HttpMethod.POST, "/" + target + "/_refresh", null)))
+                        .then(forceMerge
+                                ? Mono.defer(() -> elasticRequest(HttpMethod.POST,
+                                        "/" + target + "/_forcemerge?max_num_segments=1", null))
+                                : Mono.empty())
+                        .then(Mono.defer(() -> elasticRequest(HttpMethod.POST, "/_aliases",
+                                new Document("actions", actions))))
+                            // Недогруженная версия с отключенными обновлением и репликами не сохраняется
+                        .onErrorResume(e -> Mono.defer(() -> {
+                                    reindexTargets.remove(key, loading.get());
+                                    return elasticRequest(HttpMethod.DELETE, "/" + target, null);
+                                })
+                                .doOnNext(p -> logger.info("Index: {} deleted after failed reindex", target))
+                                .doOnError(deleteError -> logger.error("Index: {} delete error: {}", target,
+                                        deleteError.getMessage()))
+                                .onErrorResume(deleteError -> Mono.empty())
+                                .then(Mono.error(e)))
+                        .doFinally(signal -> reindexTargets.remove(key, loading.get()))
+                        .subscribe(
+                            p -> logger.info("Index: {} alias switched to {}", alias, target),
+                            e -> logger.error("Reindex {} failed: {}", target, e.getMessage())))
+                    .map(task -> new Document("Index reindex", new Document()
+                            .append("alias", alias)
+                            .append("index", target)
+                            .append("previous", current)
+                            .append("started", task.getStartDate().toString())));
+            });
+    }
+
+    /**
+     * Выполняет служебный запрос к ElasticSearch
+     *
+     * @param method HTTP-метод
+     * @param uri путь и параметры запроса
+     * @param body тело запроса или null
+     * @return ответ ElasticSearch
+     */
+    private Mono<Document> elasticRequest(HttpMethod method, String uri, Document body) {
+        WebClient.RequestBodySpec request = webClientElastic.method(method).uri(uri);
+        return (nonNull(body)
+                    ? request.contentType(MediaType.APPLICATION_JSON).bodyValue(body.toJson())
+                    : request)
+                .retrieve()
+                .bodyToMono(String.class)
+                .map(Document::parse)
+                .defaultIfEmpty(new Document());
+    }
+
+    private <T> Flux<BulkResult>
         processingData(ParallelFlux<T> events,
                 Function<T, String> getAction,
-                       Function<T, Document> getDocument,
+                       Function<T, ? extends Bson> getDocument,
                        Function<T, MongoElasticIndex> getMongoElasticIndex,
-                       Flux<String> mergeFlux,
+                       Function<T, Runnable> getAck,
+                       Flux<BulkBody> replayFlux,
                        Task task) {
-        return  events
+        Flux<BulkResult> live = events
                 // Добавление данных к исходному документу из присоединяемых коллекций
-            .transform(joinData(getDocument, getMongoElasticIndex))
+            .transform(joinData(getDocument, getMongoElasticIndex, task.getJoinTimer()))
                 // Генерация данных для передачи в ElasticSearch
-            .transform(document2ElasticJson(getAction, getDocument, getMongoElasticIndex))
+            .transform(document2ElasticJson(getAction, getDocument, getMongoElasticIndex, getAck, task))
             .sequential()
                 // Агрегирование данных для _bulk
             .transform(grouping(task))
-                // Добавление потока данных, на которые не получен ответ от ElasticSearch
-            .mergeWith(mergeFlux)
                 // Отправка запросов в ElasticSearch
+            .transform(postBulk(task));
+            // Данные, на которые не получен ответ от ElasticSearch, отправляются полностью до подписки
+            // на новые события, иначе устаревшая версия документа может перезаписать более новую
+        return  replayFlux
             .transform(postBulk(task))
+            .concatWith(live)
             .subscribeOn(Schedulers.single())
-            .doOnNext(testAliveResponses(task))
             .doOnSubscribe(p-> p.request(appConfig.getMaxSizeBuffer() * 2))
-            .doOnComplete(() -> { logger.info("Start: {} End: {} read {} write {}",
+            .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+            .doOnDiscard(BulkItem.class, BulkItem::release)
+            .doOnDiscard(BulkBody.class, BulkBody::release)
+            .doOnComplete(() -> { logger.info("Start: {} End: {} read {} write {} limit {}",
                     formatDate(task.getStartDate()),
                     formatDate(new Date()),
-                    task.getDocumentsRead(),
-                    task.getIndexesWrite(), getMaxProcessingRequest());
-                fileStorage.writeCollection2Files(waitingForResponse);
+                    task.getDocumentsRead().sum(),
+                    task.getIndexesWrite().sum(), bulkLimiter.getLimit());
                 removeTask(task);
             });
     }
 
-    private Disposable subscribe(Flux<Tuple2<String,Document>> events, Task task) {
+    private Disposable subscribe(Flux<BulkResult> events, Task task) {
         return  events
             .subscribe(
                 p -> {
-                    if(isNull(task.getMongoElasticIndex())) { // Если задача не переиндексация
-                        waitingForResponse.remove(p.getT1());
+                    if(p.getBody().getLogOffset() >= 0) {
+                        writeAheadLog.commit(p.getBody().getLogOffset());
                     }
-                    int count = Optional.ofNullable(p.getT2().get("items", List.class))
-                            .map(List::size)
-                            .orElse(0);
-                    task.addIndexesWrite(count);
+                    task.addIndexesWrite(p.getSucceeded(), p.getBody().size());
+                    p.getBody().release();
+                    task.getItemsSucceeded().increment(p.getSucceeded());
+                    task.getItemsFailed().increment(p.getFailed());
+                    task.getItemsRetried().increment(p.getRetried());
                 },
                 e -> {
                     if(task != rabbitMQTask)removeTask(task);
-                    fileStorage.writeCollection2Files(waitingForResponse);
                     logger.error("Error: {}", e.getMessage());
                 }
             );
@@ -249,146 +783,536 @@ public class Indexer {
     /**
      * Создает функциональные объект, добавляющий к документу данные из присоединяемых коллекций
      * В качестве параметра функциональный объект принимает поток {@code ParallelFlux<Document>}
-     * и возвращает поток {@code ParallelFlux<Document>}
+     * и возвращает поток {@code ParallelFlux<Document>}.
+     * Документы каждого потока обрабатываются группами, ограниченными количеством и временем ожидания,
+     * для группы выполняется один запрос к каждой присоединяемой коллекции
      *
      * @param getDocument функциональный объект, возвращающий/извлекающий из сообщения докумнт
      * @param getMongoElasticIndex функциональный объект, возвращающий/извлекающий из сообщения описания индекса
+     * @param joinTimer таймер обработки группы
      * @return функциональный объект, модифицирующий документ
      */
 
     private <T> Function<ParallelFlux<T>, ParallelFlux<T>>
-        joinData(Function<T, Document> getDocument,
-                Function<T, MongoElasticIndex> getMongoElasticIndex) {
+        joinData(Function<T, ? extends Bson> getDocument,
+                Function<T, MongoElasticIndex> getMongoElasticIndex,
+                Timer joinTimer) {
         return (ParallelFlux<T> items) ->
-            items.flatMap(p -> {
-            if(getDocument.apply(p).size() == 1) {
-                return Flux.just(p);
+            items.transformGroups(rail -> rail
+                .bufferTimeout(appConfig.getJoinBatchSize(), Duration.ofMillis(appConfig.getJoinBatchDuration()))
+                .concatMap(batch -> indexerMetrics.time(joinTimer,
+                        joinBatch(batch, getDocument, getMongoElasticIndex))));
+    }
+
+    /**
+     * Добавляет к документам группы данные из присоединяемых коллекций. Условия соединения документов
+     * группы объединяются в один запрос {@code $in} (или {@code $or} для составных ключей)
+     * к каждой присоединяемой коллекции, результаты сопоставляются с документами по значению ключа.
+     * Каждому документу присоединяется первый найденный документ с его значением ключа
+     *
+     * @param batch группа документов
+     * @param getDocument функциональный объект, возвращающий/извлекающий из сообщения докумнт
+     * @param getMongoElasticIndex функциональный объект, возвращающий/извлекающий из сообщения описания индекса
+     * @return поток документов группы в исходном порядке
+     */
+    private <T> Flux<T> joinBatch(List<T> batch,
+                                  Function<T, ? extends Bson> getDocument,
+                                  Function<T, MongoElasticIndex> getMongoElasticIndex) {
+        Map<MongoElasticIndex.JoinedCollection, Map<List<Object>, List<Document>>> joins = new LinkedHashMap<>();
+        for(T item: batch) {
+            Bson bson = getDocument.apply(item);
+                // Документ, содержащий только _id, соответствует операции удаления,
+                // документ, прочитанный без декодирования, не имеет присоединяемых коллекций
+            if(!(bson instanceof Document) || ((Document) bson).size() == 1) {
+                continue;
             }
-            return
-                Flux.fromIterable(getMongoElasticIndex.apply((T) p).getJoinConditions(getDocument.apply(p)))
-                    .flatMap(it -> Flux.zip(Flux.just(it.getCollection().getJoinedFieldName()),
-                        reactorRepositoryMongoDB.find(getMongoElasticIndex.apply((T) p).getCollection(),
-                                it.getCondition(),
-                                it.getCollection().getProjection())))
-                    .reduce(p, (acc, t) -> {
-                        getDocument.apply(acc).put(t.getT1(), t.getT2());
-                        return acc;
-                    });
+            Document document = (Document) bson;
+            for(MongoElasticIndex.JoinCondition condition:
+                    getMongoElasticIndex.apply(item).getJoinConditions(document)) {
+                if(condition.getCondition().isEmpty()) {
+                    continue;
+                }
+                joins.computeIfAbsent(condition.getCollection(), key -> new LinkedHashMap<>())
+                        .computeIfAbsent(condition.getCondition().values().stream()
+                                .map(Indexer::joinValue)
+                                .collect(Collectors.toList()), key -> new ArrayList<>())
+                        .add(document);
+            }
+        }
+        if(joins.isEmpty()) {
+            return Flux.fromIterable(batch);
+        }
+            // Документ, найденный по нескольким значениям ключа, передается без копирования только один раз
+        Set<Document> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+        return Flux.fromIterable(joins.entrySet())
+                .flatMap(join -> resolveJoined(join.getKey(), join.getValue().keySet())
+                        .map(joined -> Tuples.of(join, joined)))
+                .doOnNext(t -> {
+                    MongoElasticIndex.JoinedCollection joinedCollection = t.getT1().getKey();
+                    List<Document> documents = t.getT1().getValue().get(t.getT2().getT1());
+                    if(nonNull(documents)) {
+                            // Присоединенный документ изменяется при обработке, поэтому каждому
+                            // документу группы передается своя копия, документ из кэша не изменяется
+                        boolean cached = nonNull(joinedCollection.getCache());
+                        for(int i = 0; i < documents.size(); i++) {
+                            documents.get(i).put(joinedCollection.getJoinedFieldName(),
+                                    i == 0 && !cached && assigned.add(t.getT2().getT2())
+                                            ? t.getT2().getT2()
+                                            : deepCopy(t.getT2().getT2()));
+                        }
+                    }
+                })
+                .thenMany(Flux.fromIterable(batch));
+    }
+
+    /**
+     * Возвращает документы присоединяемой коллекции с ключами соединения. Если для коллекции
+     * задан кэш, запрос к MongoDB выполняется только для отсутствующих в кэше ключей,
+     * загруженные документы и отсутствие документа по ключу сохраняются в кэше. Для каждого ключа
+     * возвращается первый найденный документ
+     *
+     * @param joinedCollection описание присоединяемой коллекции
+     * @param keys значения ключа соединения
+     * @return поток пар ключ соединения/документ
+     */
+    private Flux<Tuple2<List<Object>, Document>> resolveJoined(MongoElasticIndex.JoinedCollection joinedCollection,
+                                                             Set<List<Object>> keys) {
+        JoinedCollectionCache cache = joinedCollection.getCache();
+        if(isNull(cache)) {
+            return Flux.defer(() -> {
+                Set<List<Object>> matched = new HashSet<>();
+                return findJoined(joinedCollection, keys)
+                        .flatMapIterable(joined -> joinKeys(joinedCollection, joined).stream()
+                                .filter(key -> keys.contains(key) && matched.add(key))
+                                .map(key -> Tuples.of(key, joined))
+                                .collect(Collectors.toList()));
+            });
+        }
+        List<Tuple2<List<Object>, Document>> cached = new ArrayList<>();
+        Set<List<Object>> missing = new HashSet<>();
+        for(List<Object> key: keys) {
+            Document document = cache.get(key);
+            if(isNull(document)) {
+                missing.add(key);
+            }
+            else if(document != JoinedCollectionCache.NOT_FOUND) {
+                cached.add(Tuples.of(key, document));
+            }
+        }
+        if(missing.isEmpty()) {
+            return Flux.fromIterable(cached);
+        }
+        return Flux.fromIterable(cached)
+                .concatWith(findJoined(joinedCollection, missing)
+                        .collect(() -> new LinkedHashMap<List<Object>, Document>(), (found, joined) ->
+                                joinKeys(joinedCollection, joined).forEach(key -> {
+                                    if(missing.contains(key)) {
+                                        found.putIfAbsent(key, joined);
+                                    }
+                                }))
+                        .doOnNext(found -> missing.forEach(key ->
+                                cache.put(key, found.getOrDefault(key, JoinedCollectionCache.NOT_FOUND))))
+                        .flatMapIterable(Map::entrySet)
+                        .map(entry -> Tuples.of(entry.getKey(), entry.getValue())));
+    }
+
+    /**
+     * Сбрасывает записи кэшей присоединяемых коллекций, связанные с изменившимся документом.
+     * Если соединение выполняется по _id, сбрасывается одна запись, иначе весь кэш коллекции
+     *
+     * @param collection коллекция изменившегося документа
+     * @param id _id изменившегося документа
+     */
+    private void invalidateJoinCaches(String collection, Object id) {
+        List<Object> key = Collections.singletonList(joinValue(id));
+        mongoElasticIndexService.getLoaded().forEach(mongoElasticIndex ->
+            mongoElasticIndex.getJoinedCollections().forEach(joinedCollection -> {
+                JoinedCollectionCache cache = joinedCollection.getCache();
+                if(nonNull(cache) && cache.isInvalidateOnEvent() && collection.equals(joinedCollection.getFrom())) {
+                    if(joinedCollection.getForeignFields().size() == 1
+                            && joinedCollection.getForeignFields().get(0).equals(Collections.singletonList("_id"))) {
+                        cache.invalidate(key);
+                    }
+                    else {
+                        cache.clear();
+                    }
+                }
+            }));
+    }
+
+    /**
+     * Возвращает статистику кэшей присоединяемых коллекций индекса
+     *
+     * @param indexName имя индекса
+     * @param indexType тип индекса
+     * @return документ со статистикой по именам присоединяемых полей
+     */
+    public Mono<Document> joinCacheStats(String indexName, String indexType)
+            throws IOException, ConvertDataException, NotFoundIndexDefinitionException {
+        Document result = new Document();
+        mongoElasticIndexService.getWithException(indexName, indexType).getJoinedCollections()
+                .forEach(joinedCollection -> result.append(joinedCollection.getJoinedFieldName(),
+                        nonNull(joinedCollection.getCache()) ? joinedCollection.getCache().getStats() : "disabled"));
+        return Mono.just(result);
+    }
+
+    /**
+     * Загружает документы присоединяемой коллекции по набору значений ключа соединения
+     *
+     * @param joinedCollection описание присоединяемой коллекции
+     * @param keys значения ключа соединения
+     * @return поток документов присоединяемой коллекции
+     */
+    private Flux<Document> findJoined(MongoElasticIndex.JoinedCollection joinedCollection, Set<List<Object>> keys) {
+        List<String> foreignFields = joinedCollection.getForeignFields().stream()
+                .map(field -> String.join(".", field))
+                .collect(Collectors.toList());
+        Document expression;
+        if(foreignFields.size() == 1) {
+            expression = new Document(foreignFields.get(0), new Document("$in",
+                    keys.stream().map(key -> key.get(0)).collect(Collectors.toList())));
+        }
+        else {
+            expression = new Document("$or", keys.stream()
+                    .map(key -> {
+                        Document condition = new Document();
+                        for(int i = 0; i < foreignFields.size(); i++) {
+                            condition.append(foreignFields.get(i), key.get(i));
+                        }
+                        return condition;
+                    })
+                    .collect(Collectors.toList()));
+        }
+        Document projection = new Document(joinedCollection.getProjection());
+        foreignFields.forEach(field -> projection.append(field, 1));
+        return reactorRepositoryMongoDB.find(joinedCollection.getFrom(), expression, projection);
+    }
+
+    /**
+     * Возвращает значения ключа соединения присоединяемого документа. Как и в {@code $lookup},
+     * поле-массив совпадает с каждым своим элементом, поэтому для массивов возвращаются
+     * все сочетания элементов
+     *
+     * @param joinedCollection описание присоединяемой коллекции
+     * @param joined документ присоединяемой коллекции
+     * @return значения ключа соединения
+     */
+    private static List<List<Object>> joinKeys(MongoElasticIndex.JoinedCollection joinedCollection, Document joined) {
+        List<List<Object>> keys = Collections.singletonList(Collections.emptyList());
+        for(List<String> field: joinedCollection.getForeignFields()) {
+            Object value = joined.getEmbedded(field, Object.class);
+            Collection<?> values = value instanceof List ? new LinkedHashSet<>((List<?>) value)
+                    : Collections.singletonList(value);
+            List<List<Object>> expanded = new ArrayList<>(keys.size() * values.size());
+            for(List<Object> key: keys) {
+                for(Object element: values) {
+                    List<Object> next = new ArrayList<>(key);
+                    next.add(joinValue(element));
+                    expanded.add(next);
                 }
-        );
+            }
+            keys = expanded;
+        }
+        return keys;
     }
+
+    /**
+     * Приводит значение ключа соединения к виду, в котором значения сравниваются MongoDB:
+     * целые числа приводятся к Long, дробные с целым значением - к Long, остальные - к Double
+     */
+    static Object joinValue(Object value) {
+        if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if(value instanceof Double || value instanceof Float || value instanceof Decimal128) {
+            double number = ((Number) value).doubleValue();
+            return number == Math.rint(number) && Math.abs(number) < 0x1p63 ? (Object) (long) number : (Object) number;
+        }
+        return value;
+    }
+
     /**
      * Создает функциональные объект, генерирующий данные для отправки в Elastic Search
      * В качестве параметра функциональный объект принимает поток {@code ParallelFlux<Document>}
-     * и возвращает поток {@code ParallelFlux<String>}
+     * и возвращает поток {@code ParallelFlux<BulkItem>}
      *
      * @param getAction функциональный объект, возвращающий/извлекающий из сообщения действие
      * @param getDocument функциональный объект, возвращающий/извлекающий из сообщения докумнт
      * @param getMongoElasticIndex функциональный объект, возвращающий/извлекающий из сообщения описания индекса
+     * @param getAck функциональный объект, возвращающий подтверждение обработки сообщения или null
+     * @param task контекст текущей задачи
      * @return функциональный объект, генерирующий данные
      */
-    private <T> Function<ParallelFlux<T>, ParallelFlux<String>>
+    private <T> Function<ParallelFlux<T>, ParallelFlux<BulkItem>>
         document2ElasticJson(
                 Function<T, String> getAction,
-                Function<T, Document> getDocument,
-                Function<T, MongoElasticIndex> getMongoElasticIndex) {
+                Function<T, ? extends Bson> getDocument,
+                Function<T, MongoElasticIndex> getMongoElasticIndex,
+                Function<T, Runnable> getAck,
+                Task task) {
+        Map<MongoElasticIndex, Timer> serializeTimers = new ConcurrentHashMap<>();
         return (ParallelFlux<T> items) -> items.map(item -> {
-            String elasticSend;
+            DataBuffer elasticSend;
             try {
-                Document document = getDocument.apply(item);
+                Bson document = getDocument.apply(item);
                 MongoElasticIndex mongoElasticIndex = getMongoElasticIndex.apply(item);
+                long start = System.nanoTime();
                 elasticSend = "delete".equals(getAction.apply(item))
-                        ? mongoElasticIndex.deleteBuild(document)
-                        : mongoElasticIndex.indexBuild(document);
+                        ? mongoElasticIndex.deleteBuild((Document) document, bulkBufferFactory)
+                        : document instanceof RawBsonDocument
+                            ? mongoElasticIndex.indexBuild((RawBsonDocument) document, bulkBufferFactory)
+                            : mongoElasticIndex.indexBuild((Document) document, bulkBufferFactory);
+                serializeTimers.computeIfAbsent(mongoElasticIndex,
+                                index -> indexerMetrics.timer(IndexerMetrics.SERIALIZE,
+                                        "task", task.getName(), "index", index.getIndex()))
+                        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
             } catch (ConvertDataException e) {
                 throw new RuntimeException(e);
-            } catch (JsonProcessingException e) {
+            } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
-            return elasticSend;
+            return new BulkItem(elasticSend, getAck.apply(item),
+                    task.getLane() == Lane.LIVE && "delete".equals(getAction.apply(item)) ? Lane.DELETE : task.getLane());
         });
     }
     /**
-     * Создает функциональные объект, группирующий данные для bulk-запроса в ElasticSearch
-     * В качестве параметра функциональный объект принимает поток {@code Flux<String>}
-     * и возвращает поток {@code Flux<String>}
+     * Создает функциональные объект, группирующий данные для bulk-запроса в ElasticSearch.
+     * Группа ограничивается количеством операций, объемом в байтах и временем ожидания,
+     * операции разных очередей приоритета группируются раздельно
+     * В качестве параметра функциональный объект принимает поток {@code Flux<BulkItem>}
+     * и возвращает поток {@code Flux<BulkBody>}
      *
      * @param task контекст текущей задачи
      * @return функциональный объект, группирующий данные
      */
-    Function<Flux<String>, Flux<String>> grouping(Task task) {
-        return (Flux<String> source) -> source
-                .bufferTimeout(appConfig.getMaxSizeBuffer(),
-                        Duration.ofMillis(appConfig.getMaxDurationBuffer()))
+    Function<Flux<BulkItem>, Flux<BulkBody>> grouping(Task task) {
+        DistributionSummary bulkDocuments = indexerMetrics.summary(IndexerMetrics.BULK_DOCUMENTS, "documents",
+                task.getTags());
+        DistributionSummary bulkBytes = indexerMetrics.summary(IndexerMetrics.BULK_BYTES, "bytes", task.getTags());
+        BulkBatcher batcher = new BulkBatcher(appConfig.getMaxSizeBuffer(),
+                appConfig.getMaxBulkBytes(),
+                Duration.ofMillis(appConfig.getMaxDurationBuffer()));
+        return (Flux<BulkItem> source) -> source
+                .groupBy(BulkItem::getLane)
+                .flatMap(lane -> lane.transform(batcher))
                 .doOnNext(p -> task.addDocumentsRead(p.size()))
-                .map(p -> String.join("\n", p)
-                );
+                .map(p -> BulkBody.join(bulkBufferFactory, p))
+                .doOnNext(body -> {
+                    bulkDocuments.record(body.getItemsCount());
+                    bulkBytes.record(body.getContent().readableByteCount());
+                });
     }
     /**
-     * Создает функциональные объект, отправляющий HTTP-запросы к ElasticSearch
-     * В качестве параметра функциональный объект принимает поток {@code Flux<String>}
-     * и возвращает поток {@code Flux<Document>}
+     * Создает функциональные объект, отправляющий HTTP-запросы к ElasticSearch.
+     * Перед отправкой запрос ожидает маркеры ограничений скорости очереди приоритета и задачи,
+     * на время ожидания следующие запросы той же очереди приоритета не принимаются, запросы остальных
+     * очередей ожидают независимо. Тела запросов поступают из одного источника, поэтому очередь приоритета,
+     * ожидающая маркеры, накапливает не более {@code LANE_PREFETCH} тел запросов, после чего источник
+     * приостанавливается до освобождения места. Операции тела, записанного в журнал упреждающей записи и не отправленного
+     * после всех повторов, передаются в {@code BulkFailureSink}, запись журнала при этом подтверждается.
+     * В качестве параметра функциональный объект принимает поток {@code Flux<BulkBody>}
+     * и возвращает поток {@code Flux<BulkResult>}
      *
      * @param task контекст текущей задачи
      * @return функциональный объект, выполнняющий HTTP-запросы к ElasticSearch
      */
-    public Function<Flux<String>, Flux<Tuple2<String, Document>>> postBulk(Task task) {
-        return (Flux<String> source) -> source
-            .flatMap(buffer -> {
-                if(isNull(task.getMongoElasticIndex())) { // Если задача не переиндексация
-                    waitingForResponse.add(buffer);
+    public Function<Flux<BulkBody>, Flux<BulkResult>> postBulk(Task task) {
+        return (Flux<BulkBody> source) -> source
+                // Очередь приоритета, ожидающая маркеры, задерживает запросы остальных очередей
+                // только после накопления LANE_PREFETCH тел запросов
+            .groupBy(BulkBody::getLane, LANE_PREFETCH)
+            .flatMap(lane -> lane.concatMap(buffer -> throttle(buffer, task).thenReturn(buffer)
+                    .doOnCancel(buffer::release), 1), Lane.values().length)
+            .flatMap(buffer -> (task.isWriteAhead() && buffer.getLogOffset() < 0
+                        // Тело запроса записывается в журнал до отправки
+                    ? writeAheadLog.append(buffer.getContent()).doOnNext(buffer::setLogOffset).then(sendBulk(buffer, 0, task))
+                    : sendBulk(buffer, 0, task))
+                .onErrorResume(e -> buffer.getLogOffset() >= 0, e -> Mono.fromSupplier(() -> deadLetter(buffer, e)))
+                .doOnSubscribe(p -> task.getInFlightBulks().incrementAndGet())
+                .doFinally(signal -> {
+                    task.getInFlightBulks().decrementAndGet();
+                    if(signal != SignalType.ON_COMPLETE) {
+                        buffer.release();
+                    }
+                }));
+    }
+
+    /**
+     * Передает в {@code BulkFailureSink} операции тела запроса, окончательно не принятого ElasticSearch.
+     * Операции, записанные или отклоненные до ошибки, в том числе в повторных запросах, не передаются
+     *
+     * @param body тело запроса
+     * @param e ошибка последней попытки отправки
+     * @return итог обработки запроса по состояниям его операций
+     */
+    private BulkResult deadLetter(BulkBody body, Throwable e) {
+        int status = e instanceof HttpServiceException ? ((HttpServiceException) e).getStatusCode() : 0;
+        int pending = 0;
+        for(int i = 0; i < body.getItemsCount(); i++) {
+            if(!body.isAcked(i)) {
+                bulkFailureSink.emit(new BulkFailureSink.BulkFailure(body.itemAsString(i), status,
+                        e.getClass().getSimpleName(), e.getMessage()));
+                body.ackFailed(i);
+                pending++;
+            }
+        }
+        logger.error("Bulk request failed after retries, {} items passed to failure sink: {}", pending, e.getMessage());
+        return new BulkResult(body).addSucceeded(body.getSucceededCount()).addFailed(body.getFailedCount());
+    }
+
+    /**
+     * Учитывает запрос в ограничениях скорости очереди приоритета и задачи
+     *
+     * @return завершается по истечении времени ожидания
+     */
+    private Mono<Void> throttle(BulkBody body, Task task) {
+        long delay = Math.max(laneRates.get(body.getLane()).reserve(body), task.getRateLimit().reserve(body));
+        return delay > 0 ? Mono.delay(Duration.ofNanos(delay)).then() : Mono.empty();
+    }
+
+    /**
+     * Отправляет _bulk-запрос и обрабатывает результаты отдельных операций. Операции, отклоненные
+     * из-за перегрузки ElasticSearch, повторно отправляются отдельным запросом с нарастающей задержкой,
+     * остальные ошибочные операции передаются в {@code BulkFailureSink}. Если количество результатов
+     * не совпадает с количеством операций, тело запроса повторяется целиком, после исчерпания попыток
+     * запрос завершается ошибкой без подтверждения операций
+     *
+     * @param body тело запроса
+     * @param attempt номер повторной отправки
+     * @param task контекст текущей задачи
+     * @return итог обработки запроса
+     */
+    private Mono<BulkResult> sendBulk(BulkBody body, int attempt, Task task) {
+        return indexerMetrics.time(task.getBulkLatency(), bulkRequest(body))
+            .flatMap(response -> {
+                BulkResult result = new BulkResult(body);
+                List<BulkResponse.Item> items = response.getItems();
+                if(!response.isErrors()) {
+                    body.ackAll();
+                    return Mono.just(result.addSucceeded(body.getItemsCount()));
+                }
+                if(items.size() != body.getItemsCount()) {
+                        // Результаты нельзя сопоставить с операциями, тело запроса повторяется целиком
+                    logger.error("Bulk response has {} items for {} operations, attempt {}",
+                            items.size(), body.getItemsCount(), attempt + 1);
+                    if(attempt >= appConfig.getWebClientRetryMaxAttempts()) {
+                        return Mono.error(new HttpServiceException("Bulk response doesn't match the request",
+                                HttpStatus.BAD_GATEWAY.value()));
+                    }
+                    task.getBulkRetries().increment();
+                    return Mono.delay(Duration.ofSeconds(appConfig.getWebClientRetryMinBackoff()).multipliedBy(1L << attempt))
+                            .then(Mono.defer(() -> sendBulk(body, attempt + 1, task)))
+                            .map(retryResult -> retryResult.addRetried(body.getItemsCount()));
                 }
-                return Flux.zip(Flux.just(buffer),
-                    webClientElastic.post()
-                        .uri("/_bulk")
-                        .body(BodyInserters.fromValue(buffer))
-                        .retrieve()
-                        .onStatus(httpStatus -> httpStatus.equals(HttpStatus.TOO_MANY_REQUESTS),
-                                response -> Mono.error(new HttpServiceException("System is overloaded",
-                                        response.rawStatusCode())))
-                        .onStatus(httpStatus -> httpStatus.is4xxClientError() && !httpStatus.equals(HttpStatus.TOO_MANY_REQUESTS),
-                                response -> Mono.error(new RuntimeException("API not found")))
-                        .onStatus(HttpStatus::is5xxServerError,
-                                response -> Mono.error(new HttpServiceException("Server is not responding",
-                                        response.rawStatusCode())))
-                        .bodyToFlux(Document.class)
-                        .retryWhen(Retry.backoff(appConfig.getWebClientRetryMaxAttempts(),
-                                    Duration.ofSeconds(appConfig.getWebClientRetryMinBackoff()))
-                            .filter(throwable -> throwable instanceof HttpServiceException)
-                            .onRetryExhaustedThrow((retryBackoffSpec, retrySignal) -> {
-                                throw new HttpServiceException("External Service failed to process after max retries",
-                                        HttpStatus.SERVICE_UNAVAILABLE.value());
-                            }))
-                );
+                List<Integer> retryItems = new ArrayList<>();
+                for(int i = 0; i < items.size(); i++) {
+                    BulkResponse.Item item = items.get(i);
+                    if(!item.isFailed()) {
+                        body.ack(i);
+                        result.addSucceeded(1);
+                    }
+                    else if(item.isRetryable() && attempt < appConfig.getWebClientRetryMaxAttempts()) {
+                        retryItems.add(i);
+                    }
+                    else {
+                        bulkFailureSink.emit(new BulkFailureSink.BulkFailure(body.itemAsString(i),
+                                item.getStatus(), item.getErrorType(), item.getErrorReason()));
+                        body.ackFailed(i);
+                        result.addFailed(1);
+                    }
+                }
+                if(retryItems.isEmpty()) {
+                    return Mono.just(result);
+                }
+                logger.info("Bulk items rejected: {}, retry {}", retryItems.size(), attempt + 1);
+                task.getBulkRetries().increment();
+                BulkBody retryBody = body.select(bulkBufferFactory, retryItems);
+                return Mono.delay(Duration.ofSeconds(appConfig.getWebClientRetryMinBackoff()).multipliedBy(1L << attempt))
+                        .then(Mono.defer(() -> sendBulk(retryBody, attempt + 1, task)))
+                        .doFinally(signal -> retryBody.release())
+                        .map(retryResult -> result.addRetried(retryItems.size()).merge(retryResult));
             });
+    }
 
+    /**
+     * Выполняет HTTP-запрос _bulk к ElasticSearch. Запрос целиком повторяется при ответах 429/5xx, пустом ответе,
+     * таймаутах и ошибках соединения, повторный запрос может быть направлен другому узлу кластера
+     *
+     * @param body тело запроса
+     * @return результаты выполнения операций
+     */
+    private Mono<BulkResponse> bulkRequest(BulkBody body) {
+        return bulkLimiter.acquire(body.getLane()).flatMap(permit -> DataBufferUtils.join(webClientElastic.post()
+                .uri(uriBuilder -> uriBuilder.path("/_bulk")
+                        .queryParam("filter_path", BulkResponse.FILTER_PATH)
+                        .build())
+                .headers(headers -> {
+                    if(compressBulk) {
+                        headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+                    }
+                })
+                .body(BodyInserters.fromDataBuffers(compressBulk
+                        ? body.gzippedContent(bulkBufferFactory)
+                        : body.retainedContent()))
+                .retrieve()
+                .onStatus(httpStatus -> httpStatus.equals(HttpStatus.TOO_MANY_REQUESTS),
+                        response -> Mono.error(new HttpServiceException("System is overloaded",
+                                response.rawStatusCode())))
+                .onStatus(httpStatus -> httpStatus.is4xxClientError() && !httpStatus.equals(HttpStatus.TOO_MANY_REQUESTS),
+                        response -> Mono.error(new RuntimeException("API not found")))
+                .onStatus(HttpStatus::is5xxServerError,
+                        response -> Mono.error(new HttpServiceException("Server is not responding",
+                                response.rawStatusCode())))
+                .bodyToFlux(DataBuffer.class))
+                .map(dataBuffer -> {
+                    try {
+                        return BulkResponse.parse(dataBuffer.asInputStream(true));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                    // Пустой ответ не подтверждает ни одной операции, запрос повторяется
+                .switchIfEmpty(Mono.error(() -> new HttpServiceException("Empty _bulk response",
+                        HttpStatus.BAD_GATEWAY.value())))
+                .doOnSuccess(response -> permit.success())
+                .doOnError(e -> {
+                    if(e instanceof HttpServiceException || isTimeout(e)) {
+                        permit.dropped();
+                    }
+                    else {
+                        permit.release();
+                    }
+                })
+                .doOnCancel(permit::release))
+            .retryWhen(Retry.backoff(appConfig.getWebClientRetryMaxAttempts(),
+                        Duration.ofSeconds(appConfig.getWebClientRetryMinBackoff()))
+                .filter(throwable -> throwable instanceof HttpServiceException
+                        || throwable instanceof WebClientRequestException || isTimeout(throwable))
+                .onRetryExhaustedThrow((retryBackoffSpec, retrySignal) -> {
+                    throw new HttpServiceException("External Service failed to process after max retries",
+                            HttpStatus.SERVICE_UNAVAILABLE.value());
+                }));
     }
 
-    Consumer<Object> testAliveResponses(Task task) {
-        return (Object object) -> {
-            if (getProcessingRequest() > getMaxProcessingRequest() * 2) {
-                task.dispose();
+    /**
+     * Проверяет, вызвана ли ошибка таймаутом. Ошибки транспорта передаются WebClient
+     * в виде причины WebClientRequestException
+     */
+    private static boolean isTimeout(Throwable e) {
+        for(Throwable cause = e; nonNull(cause); cause = cause.getCause()) {
+            if(cause instanceof TimeoutException || cause instanceof ReadTimeoutException
+                    || cause instanceof WriteTimeoutException) {
+                return true;
             }
-        };
+        }
+        return false;
     }
 
     private ExchangeFilterFunction onRequest() {
         return ExchangeFilterFunction.ofRequestProcessor(clientRequest -> {
             addSendRequest();
-            int sleepCycleCount = 0;
-            while (getProcessingRequest() > getMaxProcessingRequest()) {
-                try {
-                    logger.info("Sleep: {} ProcessingRequest reached {} (MaxProcessingRequest {})", getSleepOverRequest(),
-                            getProcessingRequest() - 1, getMaxProcessingRequest());
-                    sleep(getSleepOverRequest());
-                    if (sleepCycleCount++ > appConfig.getSleepCycleCountMax()) {
-                        break;
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            logger.info("Request: {} {}", clientRequest.method(), clientRequest.url());
+            logger.debug("Request: {} {} (limit {})", clientRequest.method(), clientRequest.url(),
+                    bulkLimiter.getLimit());
             return Mono.just(clientRequest);
         });
     }
@@ -396,7 +1320,7 @@ public class Indexer {
     private ExchangeFilterFunction onResponse() {
         return ExchangeFilterFunction.ofResponseProcessor(clientResponse -> {
             addReceiveResponse();
-            logger.info("Response Status {}", clientResponse.statusCode());
+            logger.debug("Response Status {}", clientResponse.statusCode());
             return Mono.just(clientResponse);
         });
     }
@@ -413,23 +1337,195 @@ public class Indexer {
         return sendRequest.get() - receiveResponse.get();
     }
 
-    public int getMaxProcessingRequest() {
-        return appConfig.getMaxProcessingRequest();
+    /**
+     * Возвращает текущие параметры ограничителя количества одновременных запросов к ElasticSearch
+     *
+     * @return документ с текущим пределом и количеством выполняемых и ожидающих запросов
+     */
+    public Mono<Document> bulkLimiterState() {
+        Document lanes = new Document();
+        for(Lane lane: Lane.values()) {
+            lanes.append(lane.name().toLowerCase(), new Document()
+                    .append("weight", bulkLimiter.getWeight(lane))
+                    .append("waiting", bulkLimiter.getWaiting(lane))
+                    .append("rate", laneRates.get(lane).getState()));
+        }
+        return Mono.just(new Document()
+                .append("limit", bulkLimiter.getLimit())
+                .append("minLimit", appConfig.getMinProcessingRequest())
+                .append("maxLimit", bulkLimiter.getMaxLimit())
+                .append("inFlight", bulkLimiter.getInFlight())
+                .append("waiting", bulkLimiter.getWaiting())
+                .append("clusterPressure", clusterPressure.getState())
+                .append("lanes", lanes));
     }
-    public int getSleepOverRequest() {
-        return appConfig.getSleepOverRequest();
+
+    /**
+     * Изменяет ограничение скорости записи очереди приоритета
+     *
+     * @param lane очередь приоритета
+     * @param documentsRate документов в секунду, 0 - без ограничения, null - не изменяется
+     * @param bytesRate байт в секунду, 0 - без ограничения, null - не изменяется
+     * @return текущее состояние ограничителя
+     */
+    public Mono<Document> updateLaneRate(Lane lane, Double documentsRate, Double bytesRate) {
+        laneRates.get(lane).update(documentsRate, bytesRate);
+        logger.info("Lane {} rate: {}", lane, laneRates.get(lane).getState().toJson());
+        return bulkLimiterState();
+    }
+
+    /**
+     * Возвращает статистику объединения событий очереди
+     *
+     * @return документ с количеством полученных и объединенных событий
+     */
+    public Mono<Document> queueCoalescerState() {
+        return Mono.just(new Document()
+                .append("window", appConfig.getCoalesceWindow())
+                .append("maxKeys", appConfig.getCoalesceMaxKeys())
+                .append("received", queueCoalescer.getReceived().sum())
+                .append("coalesced", queueCoalescer.getCoalesced().sum()));
     }
 
     private void addTask(Task task) {
-        synchronized (activeTasks) {
-            activeTasks.add(task);
-        }
+        activeTasks.put(task.getId(), task);
     }
 
     private void removeTask(Task task) {
-        synchronized (activeTasks) {
-            activeTasks.remove(task);
+        activeTasks.remove(task.getId(), task);
+    }
+
+    /**
+     * Возвращает состояние активных задач
+     *
+     * @return документ со списком задач в порядке запуска
+     */
+    public Mono<Document> tasksState() {
+        return Mono.just(new Document("tasks", activeTasks.values().stream()
+                .map(this::taskState)
+                .collect(Collectors.toList())));
+    }
+
+    public Mono<Document> taskState(long id) throws NotFoundTaskException {
+        return Mono.just(taskState(getTask(id)));
+    }
+
+    /**
+     * Прерывает задачу переиндексации. Подтвержденные позиции диапазонов сохраняются в контрольной точке,
+     * переиндексация может быть продолжена запросом refresh с параметром resume
+     *
+     * @param id идентификатор задачи
+     * @return состояние задачи на момент прерывания
+     */
+    public Mono<Document> cancelTask(long id) throws NotFoundTaskException, TaskStateException {
+        Task task = getRefreshTask(id, "cancelled");
+        task.dispose();
+        removeTask(task);
+        logger.info("Task {} cancelled, documents write {}", id, task.getIndexesWrite().sum());
+        return Mono.just(taskState(task));
+    }
+
+    /**
+     * Приостанавливает чтение источника задачи переиндексации. Подписка сохраняется, задача завершает
+     * уже прочитанные документы и ожидает возобновления. Задача очереди не приостанавливается:
+     * сообщения, полученные с автоматическим подтверждением, накапливались бы в памяти и терялись при остановке
+     *
+     * @param id идентификатор задачи
+     * @return состояние задачи
+     */
+    public Mono<Document> pauseTask(long id) throws NotFoundTaskException, TaskStateException {
+        Task task = getRefreshTask(id, "paused");
+        task.getGate().pause();
+        logger.info("Task {} paused", id);
+        return Mono.just(taskState(task));
+    }
+
+    /**
+     * Изменяет ограничение скорости записи задачи. Ограничение действует дополнительно
+     * к ограничению очереди приоритета задачи
+     *
+     * @param id идентификатор задачи
+     * @param documentsRate документов в секунду, 0 - без ограничения, null - не изменяется
+     * @param bytesRate байт в секунду, 0 - без ограничения, null - не изменяется
+     * @return состояние задачи
+     */
+    public Mono<Document> updateTaskRate(long id, Double documentsRate, Double bytesRate) throws NotFoundTaskException {
+        Task task = getTask(id);
+        task.getRateLimit().update(documentsRate, bytesRate);
+        logger.info("Task {} rate: {}", id, task.getRateLimit().getState().toJson());
+        return Mono.just(taskState(task));
+    }
+
+    public Mono<Document> resumeTask(long id) throws NotFoundTaskException, TaskStateException {
+        Task task = getRefreshTask(id, "resumed");
+        task.getGate().resume();
+        logger.info("Task {} resumed", id);
+        return Mono.just(taskState(task));
+    }
+
+    private Task getTask(long id) throws NotFoundTaskException {
+        Task task = activeTasks.get(id);
+        if(isNull(task)) {
+            throw new NotFoundTaskException("Task not found: " + id);
         }
+        return task;
+    }
+
+    /**
+     * Возвращает задачу переиндексации
+     *
+     * @param id идентификатор задачи
+     * @param operation операция над задачей для сообщения об ошибке
+     * @return задача
+     * @throws TaskStateException задача не является задачей переиндексации
+     */
+    private Task getRefreshTask(long id, String operation) throws NotFoundTaskException, TaskStateException {
+        Task task = getTask(id);
+        if(!"refresh".equals(task.getName())) {
+            throw new TaskStateException("Task " + id + " (" + task.getName() + ") can't be " + operation);
+        }
+        return task;
+    }
+
+    private Document taskState(Task task) {
+        task.updateRates();
+        Document state = new Document()
+                .append("id", task.getId())
+                .append("name", task.getName())
+                .append("lane", task.getLane().name().toLowerCase())
+                .append("index", isNull(task.getMongoElasticIndex()) ? null : task.getMongoElasticIndex().getIndex())
+                .append("status", task.getGate().isPaused() ? "paused" : "running")
+                .append("started", nonNull(task.getStartDate()) ? task.getStartDate().toString() : null)
+                .append("lastActivity", nonNull(task.getLastActivity()) ? task.getLastActivity().toString() : null)
+                .append("documentsRead", task.getDocumentsRead().sum())
+                .append("documentsWrite", task.getIndexesWrite().sum())
+                .append("bytesWrite", task.getBytesWrite().sum())
+                .append("documentsPerSecond", Double.isNaN(task.getDocumentsRate()) ? null
+                        : Math.round(task.getDocumentsRate()))
+                .append("bytesPerSecond", Double.isNaN(task.getBytesRate()) ? null : Math.round(task.getBytesRate()))
+                .append("inFlightBulks", task.getInFlightBulks().get())
+                .append("rate", task.getRateLimit().getState());
+        if(nonNull(task.getEstimatedDocuments())) {
+            long eta = task.getEstimatedSeconds();
+            state.append("estimatedDocuments", task.getEstimatedDocuments())
+                    .append("etaSeconds", eta < 0 ? null : eta);
+        }
+        if(!task.getPartitions().isEmpty()) {
+            state.append("partitions", task.getPartitions().stream()
+                    .map(RefreshPartition::getState)
+                    .collect(Collectors.toList()));
+        }
+        if(nonNull(task.getAcknowledger())) {
+            state.append("acknowledger", new Document()
+                    .append("acknowledged", task.getAcknowledger().getAcknowledged())
+                    .append("pending", task.getAcknowledger().getPending()));
+        }
+        if(task.isWriteAhead()) {
+            state.append("writeAheadLog", new Document()
+                    .append("committed", writeAheadLog.getCommitted())
+                    .append("pending", writeAheadLog.getPending()));
+        }
+        return state;
     }
     
     @Getter
@@ -441,13 +1537,49 @@ public class Indexer {
         final private Document idDocument;
 
         final private MongoElasticIndex mongoElasticIndex;
+
+        /**
+         * Подтверждение обработки сообщения, из которого получено событие
+         */
+        final private Runnable ack;
+    }
+
+    /**
+     * Дополняет событие событием для новой версии индекса, если для индекса выполняется переиндексация
+     */
+    private List<IndexItem> withReindexTargets(IndexItem item) {
+        MongoElasticIndex target = reindexTargets.get(Arrays.asList(item.getMongoElasticIndex().getIndex(),
+                item.getMongoElasticIndex().getType()));
+        return isNull(target)
+                ? Collections.singletonList(item)
+                : Arrays.asList(item, new IndexItem(item.getAction(), item.getIdDocument(), target, NO_ACK));
+    }
+
+    /**
+     * Дополняет событие потока изменений событием для новой версии индекса, если для индекса выполняется
+     * переиндексация. Документ изменяется при обработке, поэтому новой версии передается копия
+     */
+    private List<ChangeStreamSource.ChangeEvent> withReindexTargets(ChangeStreamSource.ChangeEvent event) {
+        MongoElasticIndex target = reindexTargets.get(Arrays.asList(event.getMongoElasticIndex().getIndex(),
+                event.getMongoElasticIndex().getType()));
+        return isNull(target)
+                ? Collections.singletonList(event)
+                : Arrays.asList(event, new ChangeStreamSource.ChangeEvent(event.getAction(),
+                        deepCopy(event.getDocument()), target, NO_ACK));
     }
 
     IndexItem CreateIndexItem(IndexEvent indexEvent)
             throws IllegalObjectIdException, IOException, ConvertDataException {
 
+        return CreateIndexItem(indexEvent, NO_ACK);
+
+    }
+
+    IndexItem CreateIndexItem(IndexEvent indexEvent, Runnable ack)
+            throws IllegalObjectIdException, IOException, ConvertDataException {
+
         return new IndexItem(indexEvent.getAction(), idDocument(indexEvent.getId()),
-                mongoElasticIndexService.get(indexEvent.getIndexName(), indexEvent.getIndexType()));
+                mongoElasticIndexService.get(indexEvent.getIndexName(), indexEvent.getIndexType()), ack);
 
     }
     
@@ -457,15 +1589,17 @@ public class Indexer {
 
         final private String action;
 
-        final private Document document;
+        final private Bson document;
 
         final private MongoElasticIndex mongoElasticIndex;
 
+        final private Runnable ack;
+
         static public String getAction(Object p) {
             return isNull(p) ? null : ((EventDocument)p).getAction();
         }
 
-        static public Document getDocument(Object p) {
+        static public Bson getDocument(Object p) {
             return isNull(p) ? null : ((EventDocument)p).getDocument();
         }
 
@@ -473,6 +1607,158 @@ public class Indexer {
             return isNull(p) ? null : ((EventDocument)p).getMongoElasticIndex();
         }
 
+        static public Runnable getAck(Object p) {
+            return isNull(p) ? null : ((EventDocument)p).getAck();
+        }
+
+    }
+
+    /**
+     * Читает документы группы событий одной коллекции и проекции. Если для всех индексов группы
+     * допускается преобразование без декодирования, документы читаются как RawBsonDocument
+     *
+     * @param group группа событий
+     * @return документы по значению _id
+     */
+    private Mono<Map<Object, Bson>> findGroupDocuments(List<IndexItem> group) {
+        MongoElasticIndex mongoElasticIndex = group.get(0).getMongoElasticIndex();
+        Set<Object> ids = group.stream().map(item -> item.getIdDocument().get("_id")).collect(Collectors.toSet());
+        return group.stream().allMatch(item -> isRawTranscoding(item.getMongoElasticIndex()))
+                ? reactorRepositoryMongoDB.findByIdsRaw(mongoElasticIndex.getCollection(), ids,
+                            mongoElasticIndex.getProjection())
+                        .collectMap(document -> fromBsonValue(document.get("_id")), document -> (Bson) document)
+                : reactorRepositoryMongoDB.findByIds(mongoElasticIndex.getCollection(), ids,
+                            mongoElasticIndex.getProjection())
+                        .collectMap(document -> document.get("_id"), document -> (Bson) document);
+    }
+
+    private boolean isRawTranscoding(MongoElasticIndex mongoElasticIndex) {
+        return appConfig.isRawBsonTranscoding() && mongoElasticIndex.isRawTranscodable();
+    }
+
+    /**
+     * Разбивает множество значений _id коллекции на диапазоны для параллельного чтения.
+     * Для ObjectId диапазоны строятся равными интервалами времени создания,
+     * для прочих типов - по случайной выборке значений _id. MongoDB сравнивает в условиях
+     * {@code $gte/$lt} только значения одного типа BSON, поэтому коллекция, значения _id которой
+     * имеют разные типы, читается одним диапазоном
+     *
+     * @param collection имя коллекции
+     * @return список диапазонов, первый и последний диапазоны не ограничены снизу и сверху соответственно
+     */
+    Mono<List<RefreshPartition>> partitions(String collection) {
+        int count = appConfig.getRefreshPartitions();
+        if(count <= 1) {
+            return Mono.just(Collections.singletonList(new RefreshPartition(0, null, null)));
+        }
+        return Mono.zip(reactorRepositoryMongoDB.findBoundaryId(collection, true),
+                        reactorRepositoryMongoDB.findBoundaryId(collection, false))
+                .flatMap(p -> {
+                        // Наименьшее и наибольшее значения одного типа означают, что все значения _id этого типа
+                    if(!isSameBsonType(p.getT1(), p.getT2())) {
+                        logger.warn("Collection {}: _id values have different BSON types, refresh is not partitioned",
+                                collection);
+                        return Mono.just(Collections.emptyList());
+                    }
+                    return p.getT1() instanceof ObjectId
+                            ? Mono.just(objectIdBoundaries((ObjectId) p.getT1(), (ObjectId) p.getT2(), count))
+                            : reactorRepositoryMongoDB
+                                    .findSampledBoundaries(collection, count, appConfig.getRefreshSampleSize())
+                                    .collectList()
+                                    .map(boundaries -> boundaries.stream().allMatch(boundary ->
+                                                isSameBsonType(boundary, p.getT1()))
+                                            ? boundaries
+                                            : Collections.emptyList());
+                })
+                .defaultIfEmpty(Collections.emptyList())
+                .map(boundaries -> {
+                    List<RefreshPartition> partitions = new ArrayList<>(boundaries.size() + 1);
+                    Object lower = null;
+                    for(Object upper: boundaries) {
+                        partitions.add(new RefreshPartition(partitions.size(), lower, upper));
+                        lower = upper;
+                    }
+                    partitions.add(new RefreshPartition(partitions.size(), lower, null));
+                    return partitions;
+                });
+    }
+
+    /**
+     * Проверяет, сравниваются ли значения в условиях запроса MongoDB. Числа разных типов сравниваются между собой
+     */
+    static boolean isSameBsonType(Object first, Object second) {
+        if(first instanceof Number && second instanceof Number) {
+            return true;
+        }
+        return nonNull(first) && nonNull(second) && first.getClass() == second.getClass();
+    }
+
+    /**
+     * Вычисляет границы диапазонов ObjectId, равномерно разбивая интервал времени создания документов
+     */
+    static List<Object> objectIdBoundaries(ObjectId min, ObjectId max, int count) {
+        long from = min.getTimestamp() & 0xFFFFFFFFL;
+        long step = ((max.getTimestamp() & 0xFFFFFFFFL) - from) / count;
+        List<Object> boundaries = new ArrayList<>(count - 1);
+        for(int i = 1; step > 0 && i < count; i++) {
+                // Минимальный ObjectId с заданным временем создания
+            boundaries.add(new ObjectId(String.format("%08x%016x", from + step * i, 0)));
+        }
+        return boundaries;
+    }
+
+    private List<RefreshPartition> partitionsFromCheckpoint(Document checkpoint) {
+        return checkpoint.get("state", Document.class).getList("partitions", Document.class).stream()
+                .map(RefreshPartition::fromCheckpoint)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Сохраняет подтвержденные позиции диапазонов задачи переиндексации
+     *
+     * @param checkpointId идентификатор контрольной точки
+     * @param task задача переиндексации
+     */
+    private Mono<Void> saveRefreshCheckpoint(String checkpointId, Task task) {
+        List<RefreshPartition> partitions = task.getPartitions();
+        if(partitions.isEmpty()) {
+            return Mono.empty();
+        }
+        return checkpointService.save(checkpointId, new Document("partitions", partitions.stream()
+                        .map(RefreshPartition::getCheckpoint)
+                        .collect(Collectors.toList())))
+                .onErrorResume(e -> {
+                    logger.error("Checkpoint {} error: {}", checkpointId, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Читает документы диапазона и регистрирует их для подтверждения записи в ElasticSearch.
+     * Прочитанный ранее и подтвержденный диапазон не читается
+     */
+    private Flux<Tuple2<Bson, Runnable>> scanPartition(MongoElasticIndex mongoElasticIndex,
+                                                       RefreshPartition partition) {
+        if(partition.isCompleted()) {
+            return Flux.empty();
+        }
+        Flux<Tuple2<Bson, Runnable>> documents = isRawTranscoding(mongoElasticIndex)
+                ? reactorRepositoryMongoDB
+                    .findRangeRaw(mongoElasticIndex.getCollection(), partition.getFilter(),
+                            mongoElasticIndex.getProjection(), appConfig.getRefreshBatchSize())
+                    .map(p -> Tuples.of(p, partition.register(fromBsonValue(p.get("_id")))))
+                : reactorRepositoryMongoDB
+                    .findRange(mongoElasticIndex.getCollection(), partition.getFilter(),
+                            mongoElasticIndex.getProjection(), appConfig.getRefreshBatchSize())
+                    .map(p -> Tuples.of(p, partition.register(p.get("_id"))));
+        return documents
+                .doOnSubscribe(p -> partition.start())
+                .doOnComplete(() -> {
+                    partition.complete();
+                    logger.info("Index: {} partition {} completed, documents read: {}",
+                            mongoElasticIndex.getIndex(), partition.getNumber(),
+                            partition.getDocumentsRead().sum());
+                });
     }
 
     /**
@@ -485,30 +1771,203 @@ public class Indexer {
     @Setter
     static public class Task {
 
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+
+        /**
+         * Интервал сглаживания скорости обработки, секунд
+         */
+        private static final double RATE_WINDOW = 10;
+
+        final private long id = SEQUENCE.incrementAndGet();
+
+        /**
+         * Вид задачи: queue, changeStream, refresh
+         */
+        final private String name;
+
+        /**
+         * Очередь приоритета запросов задачи
+         */
+        final private Lane lane;
+
+        /**
+         * Метки метрик задачи
+         */
+        final private String[] tags;
+
+        /**
+         * Ограничение скорости записи задачи, изменяется во время выполнения
+         */
+        final private BulkRateLimit rateLimit = new BulkRateLimit(0, 0);
+
         private Disposable dispose;
 
         final private MongoElasticIndex mongoElasticIndex;
 
         private Date startDate;
 
-        private Date lastActivity;
+        private volatile Date lastActivity;
+
+        final private LongAdder documentsRead = new LongAdder();
+
+        final private LongAdder indexesWrite = new LongAdder();
+
+        final private LongAdder bytesWrite = new LongAdder();
+
+        /**
+         * Количество выполняемых _bulk-запросов задачи
+         */
+        final private AtomicInteger inFlightBulks = new AtomicInteger();
+
+        /**
+         * Приблизительное количество документов коллекции переиндексации, null - неизвестно
+         */
+        private volatile Long estimatedDocuments;
+
+        /**
+         * Приостанавливает чтение источника задачи
+         */
+        final private DemandGate gate = new DemandGate();
+
+        /**
+         * Диапазоны _id коллекции, читаемые при переиндексации
+         */
+        private List<RefreshPartition> partitions = Collections.emptyList();
+
+        /**
+         * Завершается при успешном окончании задачи, ошибкой - при прерывании
+         */
+        final private Sinks.Empty<Void> completion = Sinks.empty();
+
+        /**
+         * Подтверждение сообщений для задачи обработки событий очереди в режиме ручного подтверждения
+         */
+        private DeliveryAcknowledger acknowledger;
+
+        /**
+         * Тела запросов записываются в журнал упреждающей записи до отправки
+         */
+        final private boolean writeAhead;
 
-        private int documentsRead;
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private long sampleTime = System.nanoTime();
 
-        private int indexesWrite;
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private long sampleDocuments;
 
-        synchronized public int addDocumentsRead(int count) {
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private long sampleBytes;
+
+        @Setter(AccessLevel.NONE)
+        private double documentsRate = Double.NaN;
+
+        @Setter(AccessLevel.NONE)
+        private double bytesRate = Double.NaN;
+
+        /**
+         * Метрики задачи регистрируются при создании задачи и не запрашиваются у реестра при обработке
+         */
+        final private Timer joinTimer;
+
+        final private Timer bulkLatency;
+
+        final private Counter bulkRetries;
+
+        final private Counter itemsSucceeded;
+
+        final private Counter itemsFailed;
+
+        final private Counter itemsRetried;
+
+        /**
+         * @param name вид задачи
+         * @param lane очередь приоритета запросов задачи
+         * @param mongoElasticIndex описание индекса переиндексации, null для задач обработки событий
+         * @param indexerMetrics метрики этапов обработки
+         */
+        Task(String name, Lane lane, MongoElasticIndex mongoElasticIndex, IndexerMetrics indexerMetrics) {
+            this(name, lane, mongoElasticIndex, false, indexerMetrics);
+        }
+
+        Task(String name, Lane lane, MongoElasticIndex mongoElasticIndex, boolean writeAhead,
+             IndexerMetrics indexerMetrics) {
+            this.name = name;
+            this.lane = lane;
+            this.mongoElasticIndex = mongoElasticIndex;
+            this.writeAhead = writeAhead;
+            this.tags = new String[] {"task", name, "index", isNull(mongoElasticIndex) ? "all" : mongoElasticIndex.getIndex()};
+            this.joinTimer = indexerMetrics.timer(IndexerMetrics.JOIN, tags);
+            this.bulkLatency = indexerMetrics.timer(IndexerMetrics.BULK_LATENCY, tags);
+            this.bulkRetries = indexerMetrics.counter(IndexerMetrics.BULK_RETRIES, tags);
+            this.itemsSucceeded = itemsCounter(indexerMetrics, "succeeded");
+            this.itemsFailed = itemsCounter(indexerMetrics, "failed");
+            this.itemsRetried = itemsCounter(indexerMetrics, "retried");
+        }
+
+        private Counter itemsCounter(IndexerMetrics indexerMetrics, String result) {
+            String[] itemTags = Arrays.copyOf(tags, tags.length + 2);
+            itemTags[itemTags.length - 2] = "result";
+            itemTags[itemTags.length - 1] = result;
+            return indexerMetrics.counter(IndexerMetrics.BULK_ITEMS, itemTags);
+        }
+
+        public void addDocumentsRead(int count) {
             lastActivity = new Date();
-            return (documentsRead += count);
+            documentsRead.add(count);
         }
 
-        synchronized public int addIndexesWrite(int count) {
+        public void addIndexesWrite(int count, int bytes) {
             lastActivity = new Date();
-            return (indexesWrite += count);
+            indexesWrite.add(count);
+            bytesWrite.add(bytes);
         }
 
-        Task(MongoElasticIndex mongoElasticIndex) {
-            this.mongoElasticIndex = mongoElasticIndex;
+        /**
+         * Пересчитывает скорость записи документов и байт в секунду. Скорость сглаживается
+         * экспоненциально с интервалом {@link #RATE_WINDOW}, первое значение - средняя скорость с начала задачи.
+         * Пересчет выполняется не чаще одного раза в секунду
+         */
+        synchronized void updateRates() {
+            long now = System.nanoTime();
+            double elapsed = (now - sampleTime) / 1e9;
+            if(elapsed < 1) {
+                return;
+            }
+            long documents = indexesWrite.sum();
+            long bytes = bytesWrite.sum();
+            double documentsCurrent = (documents - sampleDocuments) / elapsed;
+            double bytesCurrent = (bytes - sampleBytes) / elapsed;
+            if(Double.isNaN(documentsRate)) {
+                documentsRate = documentsCurrent;
+                bytesRate = bytesCurrent;
+            }
+            else {
+                double alpha = 1 - Math.exp(-elapsed / RATE_WINDOW);
+                documentsRate += alpha * (documentsCurrent - documentsRate);
+                bytesRate += alpha * (bytesCurrent - bytesRate);
+            }
+            sampleTime = now;
+            sampleDocuments = documents;
+            sampleBytes = bytes;
+        }
+
+        /**
+         * Оценивает время до окончания переиндексации по текущей скорости записи.
+         * Для задачи, продолженной с контрольной точки, оценка завышена на количество документов,
+         * записанных до остановки
+         *
+         * @return секунд до окончания или -1, если оценка невозможна
+         */
+        public long getEstimatedSeconds() {
+            Long total = estimatedDocuments;
+            double rate = documentsRate;
+            if(isNull(total) || Double.isNaN(rate) || rate <= 0) {
+                return -1;
+            }
+            return (long) Math.ceil(Math.max(0, total - indexesWrite.sum()) / rate);
         }
 
         boolean dispose() {
@@ -0,0 +1,127 @@
+package ru.mvz.elasticsearch.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Метрики этапов обработки данных, публикуемые через конечную точку actuator/prometheus.
+ * Счетчики регистрируются один раз для набора меток и кэшируются, поэтому запись значения
+ * в рабочем потоке не требует обращения к реестру и блокировок
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Component
+public class IndexerMetrics {
+
+    public static final String QUEUE_DECODE = "indexer.queue.decode";
+
+    public static final String MONGO_FETCH = "indexer.mongo.fetch";
+
+    public static final String JOIN = "indexer.join";
+
+    public static final String SERIALIZE = "indexer.serialize";
+
+    public static final String BULK_DOCUMENTS = "indexer.bulk.documents";
+
+    public static final String BULK_BYTES = "indexer.bulk.bytes";
+
+    public static final String BULK_LATENCY = "indexer.bulk.latency";
+
+    public static final String BULK_ITEMS = "indexer.bulk.items";
+
+    public static final String BULK_RETRIES = "indexer.bulk.retries";
+
+    final private MeterRegistry registry;
+
+    final private Map<List<String>, Timer> timers = new ConcurrentHashMap<>();
+
+    final private Map<List<String>, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+    final private Map<List<String>, Counter> counters = new ConcurrentHashMap<>();
+
+    public IndexerMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Возвращает таймер с гистограммой длительностей
+     *
+     * @param name имя метрики
+     * @param tags пары имя/значение меток
+     * @return таймер
+     */
+    public Timer timer(String name, String... tags) {
+        return timers.computeIfAbsent(key(name, tags), key -> Timer.builder(name)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+
+    /**
+     * Возвращает распределение значений
+     *
+     * @param name имя метрики
+     * @param baseUnit единица измерения
+     * @param tags пары имя/значение меток
+     * @return распределение
+     */
+    public DistributionSummary summary(String name, String baseUnit, String... tags) {
+        return summaries.computeIfAbsent(key(name, tags), key -> DistributionSummary.builder(name)
+                .baseUnit(baseUnit)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+
+    public Counter counter(String name, String... tags) {
+        return counters.computeIfAbsent(key(name, tags), key -> Counter.builder(name)
+                .tags(tags)
+                .register(registry));
+    }
+
+    public <T> void gauge(String name, T object, ToDoubleFunction<T> value) {
+        Gauge.builder(name, object, value).register(registry);
+    }
+
+    /**
+     * Измеряет время от подписки до завершения потока
+     */
+    public <T> Flux<T> time(Timer timer, Flux<T> source) {
+        return Flux.defer(() -> {
+            long start = System.nanoTime();
+            return source.doFinally(signal -> timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    /**
+     * Измеряет время от подписки до завершения
+     */
+    public <T> Mono<T> time(Timer timer, Mono<T> source) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return source.doFinally(signal -> timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    private static List<String> key(String name, String... tags) {
+        List<String> key = new ArrayList<>(tags.length + 1);
+        key.add(name);
+        key.addAll(Arrays.asList(tags));
+        return key;
+    }
+}
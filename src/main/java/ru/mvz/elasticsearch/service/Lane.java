@@ -0,0 +1,31 @@
+package ru.mvz.elasticsearch.service;
+
+/**
+ * Очередь приоритета _bulk-запросов к ElasticSearch. Разрешения на выполнение запросов
+ * распределяются между ожидающими очередями пропорционально весам, заданным параметром {@code app.lane-weights}
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public enum Lane {
+
+    /**
+     * Операции индексации по событиям очереди и потоков изменений
+     */
+    LIVE,
+
+    /**
+     * Операции удаления по событиям очереди и потоков изменений
+     */
+    DELETE,
+
+    /**
+     * Переиндексация коллекций
+     */
+    REFRESH,
+
+    /**
+     * Повторная отправка запросов из журнала упреждающей записи после перезапуска
+     */
+    REPLAY
+}
@@ -1,53 +1,295 @@
 package ru.mvz.elasticsearch.service;
 
 import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import ru.mvz.elasticsearch.config.AppConfig;
 import ru.mvz.elasticsearch.domain.Bson2MongoElasticIndexParameters;
 import ru.mvz.elasticsearch.domain.MongoElasticIndex;
 import ru.mvz.elasticsearch.repository.IndexDefinitionRepository;
 import ru.mvz.elasticsearch.util.ConvertDataException;
 import ru.mvz.elasticsearch.util.DocumentHelper;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 
+/**
+ * Реестр описаний индексов. Загруженные описания хранятся в неизменяемом снимке, который читается
+ * без блокировок и заменяется целиком при загрузке нового описания или изменении описаний в хранилище.
+ * Отсутствие описания запоминается на {@code app.definition-not-found-ttl} мс, в течение которых
+ * хранилище для этого индекса не запрашивается, количество запомненных отсутствующих описаний ограничено. Каждый новый снимок передается подписчикам
+ * {@link #definitions(List)}, задачи индексации перезапускаются с новыми описаниями
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
 @Component
 public class MongoElasticIndexService {
+    private static final Logger logger = LoggerFactory.getLogger(MongoElasticIndexService.class);
 
-    final private Map<List<String>, MongoElasticIndex> indexMap = Collections.synchronizedMap(new HashMap<>());
+    /**
+     * Задержка перезагрузки после последнего изменения, объединяющая серию событий записи файла
+     */
+    private static final Duration RELOAD_DELAY = Duration.ofMillis(200);
+
+    /**
+     * Наибольшее количество запомненных отсутствующих описаний. Имена индексов приходят в запросах,
+     * поэтому без ограничения запросы с произвольными именами неограниченно увеличивали бы кэш
+     */
+    private static final int NOT_FOUND_LIMIT = 1024;
+
+    /**
+     * Снимок загруженных описаний индексов по имени и типу
+     */
+    private volatile Map<List<String>, MongoElasticIndex> indexMap = Collections.emptyMap();
+
+    /**
+     * Публикуемые снимки, подписчик сразу получает последний снимок. Снимки публикуются под блокировкой {@link #lock}
+     */
+    final private Sinks.Many<Map<List<String>, MongoElasticIndex>> snapshots = Sinks.many().replay().latest();
+
+    /**
+     * Исходные описания загруженных индексов, изменяются только под блокировкой {@link #lock}
+     */
+    final private Map<List<String>, Document> definitions = new HashMap<>();
+
+    /**
+     * Отсутствующие описания индексов
+     */
+    final private Map<List<String>, NotFound> notFound = new ConcurrentHashMap<>();
+
+    final private Object lock = new Object();
+
+    /**
+     * Количество перечитываний хранилища, увеличивается под блокировкой {@link #lock}
+     */
+    private volatile long reloads;
 
     final private IndexDefinitionRepository indexDefinitionRepository;
 
     final private DocumentHelper documentHelper;
 
-    public MongoElasticIndexService(IndexDefinitionRepository indexDefinitionRepository, DocumentHelper documentHelper) {
+    final private long notFoundTtl;
+
+    private Disposable watching;
+
+    public MongoElasticIndexService(IndexDefinitionRepository indexDefinitionRepository, DocumentHelper documentHelper,
+                                    AppConfig appConfig) {
         this.indexDefinitionRepository = indexDefinitionRepository;
         this.documentHelper = documentHelper;
+        this.notFoundTtl = Duration.ofMillis(appConfig.getDefinitionNotFoundTtl()).toNanos();
+        snapshots.tryEmitNext(indexMap);
     }
 
     public MongoElasticIndex get(String indexName, String indexType) throws IOException, ConvertDataException {
-        MongoElasticIndex mongoElasticIndex = indexMap.get(Arrays.asList(indexName, indexType));
-        if(isNull(mongoElasticIndex)) {
-            Document indexDefinition = indexDefinitionRepository.findByNameType(indexName, indexType);
-            if(nonNull(indexDefinition)) {
-                mongoElasticIndex = new MongoElasticIndex(
-                        new Bson2MongoElasticIndexParameters(indexDefinition, documentHelper));
+        List<String> key = Arrays.asList(indexName, indexType);
+        MongoElasticIndex mongoElasticIndex = indexMap.get(key);
+        if(nonNull(mongoElasticIndex)) {
+            return mongoElasticIndex;
+        }
+        NotFound missing = notFound.get(key);
+        if(nonNull(missing)) {
+            if(missing.expires - System.nanoTime() > 0) {
+                if(nonNull(missing.file)) {
+                    throw new NoSuchFileException(missing.file);
+                }
+                return null;
             }
+            notFound.remove(key, missing);
         }
-        if(nonNull(mongoElasticIndex)) {
-            put(mongoElasticIndex);
+        return load(key);
+    }
+
+    /**
+     * Читает описание из хранилища без блокировки и публикует новый снимок под блокировкой {@link #lock}.
+     * Если во время чтения хранилище было перечитано, описание читается заново
+     */
+    private MongoElasticIndex load(List<String> key) throws IOException, ConvertDataException {
+        while(true) {
+            long generation = reloads;
+            Document indexDefinition;
+            try {
+                indexDefinition = indexDefinitionRepository.findByNameType(key.get(0), key.get(1));
+            }
+            catch (NoSuchFileException e) {
+                rememberNotFound(key, e.getFile());
+                throw e;
+            }
+            if(isNull(indexDefinition)) {
+                rememberNotFound(key, null);
+                return null;
+            }
+            MongoElasticIndex mongoElasticIndex = new MongoElasticIndex(
+                    new Bson2MongoElasticIndexParameters(indexDefinition, documentHelper));
+            synchronized (lock) {
+                    // Описание могло быть загружено другим потоком во время чтения хранилища
+                MongoElasticIndex loaded = indexMap.get(key);
+                if(nonNull(loaded)) {
+                    return loaded;
+                }
+                if(generation == reloads) {
+                    Map<List<String>, MongoElasticIndex> updated = new HashMap<>(indexMap);
+                    updated.put(key, mongoElasticIndex);
+                    definitions.put(key, indexDefinition);
+                    notFound.remove(key);
+                    publish(updated);
+                    return mongoElasticIndex;
+                }
+            }
         }
-        return mongoElasticIndex;
     }
 
-    public void put(MongoElasticIndex mongoElasticIndex) {
-        indexMap.put(Arrays.asList(
-                mongoElasticIndex.getIndex(),
-                mongoElasticIndex.getType()),
-                mongoElasticIndex);
+    /**
+     * Запоминает отсутствие описания. При достижении предела удаляются истекшие записи,
+     * если предел по-прежнему достигнут, отсутствие описания не запоминается
+     */
+    private void rememberNotFound(List<String> key, String file) {
+        long now = System.nanoTime();
+        if(notFound.size() >= NOT_FOUND_LIMIT) {
+            notFound.values().removeIf(missing -> missing.expires - now <= 0);
+            if(notFound.size() >= NOT_FOUND_LIMIT) {
+                return;
+            }
+        }
+        notFound.put(key, new NotFound(file, now + notFoundTtl));
+    }
+
+    /**
+     * Публикует новый снимок. Вызывается под блокировкой {@link #lock}
+     */
+    private void publish(Map<List<String>, MongoElasticIndex> updated) {
+        indexMap = Collections.unmodifiableMap(updated);
+        snapshots.tryEmitNext(indexMap);
+    }
+
+    /**
+     * Перечитывает загруженные описания после изменения хранилища. Индексы с неизменившимся описанием
+     * сохраняются вместе с кэшами присоединяемых коллекций, удаленные описания исключаются из реестра.
+     * При ошибке разбора сохраняется прежнее описание. Новый снимок публикуется целиком
+     */
+    void reload() {
+        synchronized (lock) {
+            Map<List<String>, MongoElasticIndex> updated = new HashMap<>(indexMap);
+            boolean changed = false;
+            for(List<String> key: new ArrayList<>(definitions.keySet())) {
+                try {
+                    Document indexDefinition = indexDefinitionRepository.findByNameType(key.get(0), key.get(1));
+                    if(isNull(indexDefinition)) {
+                        throw new NoSuchFileException(key.toString());
+                    }
+                    if(!indexDefinition.equals(definitions.get(key))) {
+                        updated.put(key, new MongoElasticIndex(
+                                new Bson2MongoElasticIndexParameters(indexDefinition, documentHelper)));
+                        definitions.put(key, indexDefinition);
+                        changed = true;
+                        logger.info("Index definition {} reloaded", key);
+                    }
+                }
+                catch (NoSuchFileException e) {
+                    updated.remove(key);
+                    definitions.remove(key);
+                    changed = true;
+                    logger.info("Index definition {} removed", key);
+                }
+                catch (IOException | ConvertDataException | RuntimeException e) {
+                    logger.error("Index definition {} reload error, previous definition is kept: {}", key, e.getMessage());
+                }
+            }
+            notFound.clear();
+            reloads++;
+            if(changed) {
+                publish(updated);
+            }
+        }
+    }
+
+    /**
+     * Возвращает загруженные описания индексов при подписке и после каждого изменения любого из них.
+     * Описания, отсутствующие в снимке, в список не включаются
+     *
+     * @param keys имена и типы индексов
+     * @return поток списков описаний в порядке ключей
+     */
+    public Flux<List<MongoElasticIndex>> definitions(List<List<String>> keys) {
+        return snapshots.asFlux()
+                .map(snapshot -> keys.stream()
+                        .map(snapshot::get)
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toList()))
+                .distinctUntilChanged(Function.identity(), MongoElasticIndexService::isSameDefinitions);
+    }
+
+    /**
+     * Возвращает описание индекса и его новые версии. После удаления описания новые версии не передаются
+     *
+     * @param mongoElasticIndex текущее описание индекса
+     * @param indexName имя индекса
+     * @param indexType тип индекса
+     * @return поток описаний, первым передается текущее
+     */
+    public Flux<MongoElasticIndex> versions(MongoElasticIndex mongoElasticIndex, String indexName, String indexType) {
+        return Flux.just(Collections.singletonList(mongoElasticIndex))
+                .concatWith(definitions(Collections.singletonList(Arrays.asList(indexName, indexType)))
+                        .filter(indexes -> !indexes.isEmpty()))
+                .distinctUntilChanged(Function.identity(), MongoElasticIndexService::isSameDefinitions)
+                .map(indexes -> indexes.get(0));
+    }
+
+    /**
+     * Списки содержат одни и те же объекты описаний
+     */
+    private static boolean isSameDefinitions(List<MongoElasticIndex> previous, List<MongoElasticIndex> next) {
+        if(previous.size() != next.size()) {
+            return false;
+        }
+        for(int i = 0; i < previous.size(); i++) {
+            if(previous.get(i) != next.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void watchDefinitions() {
+        watching = indexDefinitionRepository.changes()
+                .sampleTimeout(name -> Mono.delay(RELOAD_DELAY))
+                .concatMap(name -> Mono.fromRunnable(this::reload).subscribeOn(Schedulers.boundedElastic()))
+                .subscribe(p -> {},
+                        e -> logger.error("Index definitions watch stopped: {}", e.toString()));
+    }
+
+    @PreDestroy
+    public void stopWatching() {
+        if(nonNull(watching)) {
+            watching.dispose();
+        }
+    }
+
+    /**
+     * Возвращает загруженные описания индексов
+     *
+     * @return описания индексов текущего снимка
+     */
+    public Collection<MongoElasticIndex> getLoaded() {
+        return indexMap.values();
     }
 
     public MongoElasticIndex getWithException(String indexName, String indexType)
@@ -59,4 +301,21 @@ public class MongoElasticIndexService {
         return mongoElasticIndex;
     }
 
+    /**
+     * Отсутствующее описание индекса
+     */
+    static private class NotFound {
+
+        /**
+         * Файл из исключения хранилища, null - хранилище вернуло пустое описание
+         */
+        final private String file;
+
+        final private long expires;
+
+        NotFound(String file, long expires) {
+            this.file = file;
+            this.expires = expires;
+        }
+    }
 }
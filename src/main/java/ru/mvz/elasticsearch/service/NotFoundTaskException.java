@@ -0,0 +1,7 @@
+package ru.mvz.elasticsearch.service;
+
+public class NotFoundTaskException extends Exception {
+    public NotFoundTaskException(String message) {
+        super(message);
+    }
+}
@@ -47,6 +47,29 @@ public class RabbitMQ implements ReactiveQueue {
                 );
     }
 
+    @Override
+    public Flux<AcknowledgableDelivery> inboundManualAckFlux() {
+        return RabbitFlux
+                .createReceiver()
+                .consumeManualAck(rabbitMQConfig.getQueue(), new ConsumeOptions()
+                        .qos(rabbitMQConfig.getPrefetch())
+                        .exceptionHandler(new ExceptionHandlers.RetryAcknowledgmentExceptionHandler(
+                                Duration.ofSeconds(20), Duration.ofMillis(500),
+                                ExceptionHandlers.CONNECTION_RECOVERY_PREDICATE
+                        ))
+                );
+    }
+
+    @Override
+    public boolean isManualAck() {
+        return rabbitMQConfig.isManualAck();
+    }
+
+    @Override
+    public int getAckInterval() {
+        return rabbitMQConfig.getAckInterval();
+    }
+
     @Override
     public void send(String msg) {
         Mono<OutboundMessage> outboundMono = Mono.just(new OutboundMessage(
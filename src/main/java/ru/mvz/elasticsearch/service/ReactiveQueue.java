@@ -3,10 +3,23 @@ package ru.mvz.elasticsearch.service;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.rabbitmq.client.Delivery;
 import reactor.core.publisher.Flux;
+import reactor.rabbitmq.AcknowledgableDelivery;
 
 public interface ReactiveQueue {
     Flux<Delivery> inboundFlux();
 
+    /**
+     * Возвращает поток сообщений, требующих подтверждения получателем
+     */
+    Flux<AcknowledgableDelivery> inboundManualAckFlux();
+
+    boolean isManualAck();
+
+    /**
+     * Интервал отправки подтверждений, мс
+     */
+    int getAckInterval();
+
     void send(String msg);
 
     void sendIndexEvent(IndexEvent indexEvent) throws JsonProcessingException;
@@ -0,0 +1,146 @@
+package ru.mvz.elasticsearch.service;
+
+import lombok.Getter;
+import org.bson.Document;
+
+import java.util.Date;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Класс содержит диапазон значений _id коллекции, читаемый при переиндексации отдельным курсором,
+ * и состояние его обработки. Документы диапазона читаются в порядке возрастания _id,
+ * подтвержденной позицией диапазона является наибольший _id, до которого включительно
+ * все документы записаны в ElasticSearch
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+@Getter
+public class RefreshPartition {
+
+    final private int number;
+
+    /**
+     * Нижняя граница диапазона (включительно), null - без ограничения
+     */
+    final private Object lower;
+
+    /**
+     * Верхняя граница диапазона (не включительно), null - без ограничения
+     */
+    final private Object upper;
+
+    /**
+     * Подтвержденная позиция, с которой продолжается чтение диапазона (не включительно), null - с начала
+     */
+    final private Object resumeAfter;
+
+    final private AckTracker<Object> tracker;
+
+    final private LongAdder documentsRead = new LongAdder();
+
+    private volatile Date startDate;
+
+    private volatile Date endDate;
+
+    public RefreshPartition(int number, Object lower, Object upper) {
+        this(number, lower, upper, null, false);
+    }
+
+    private RefreshPartition(int number, Object lower, Object upper, Object resumeAfter, boolean completed) {
+        this.number = number;
+        this.lower = lower;
+        this.upper = upper;
+        this.resumeAfter = resumeAfter;
+        this.tracker = new AckTracker<>(resumeAfter);
+        if(completed) {
+            endDate = new Date();
+        }
+    }
+
+    /**
+     * Восстанавливает диапазон из контрольной точки
+     *
+     * @param checkpoint документ, сформированный методом {@link #getCheckpoint()}
+     * @return диапазон
+     */
+    public static RefreshPartition fromCheckpoint(Document checkpoint) {
+        return new RefreshPartition(checkpoint.getInteger("number"),
+                checkpoint.get("lower"),
+                checkpoint.get("upper"),
+                checkpoint.get("committed"),
+                checkpoint.getBoolean("completed", false));
+    }
+
+    /**
+     * Формирует условие запроса документов диапазона
+     *
+     * @return условие запроса
+     */
+    public Document getFilter() {
+        Document condition = new Document();
+        if(nonNull(resumeAfter)) {
+            condition.append("$gt", resumeAfter);
+        }
+        else if(nonNull(lower)) {
+            condition.append("$gte", lower);
+        }
+        if(nonNull(upper)) {
+            condition.append("$lt", upper);
+        }
+        return condition.isEmpty() ? new Document() : new Document("_id", condition);
+    }
+
+    void start() {
+        startDate = new Date();
+    }
+
+    void complete() {
+        endDate = new Date();
+    }
+
+    /**
+     * Регистрирует прочитанный документ диапазона
+     *
+     * @param id _id документа
+     * @return функциональный объект, подтверждающий запись документа в ElasticSearch
+     */
+    Runnable register(Object id) {
+        documentsRead.increment();
+        return tracker.register(id);
+    }
+
+    public boolean isScanCompleted() {
+        return nonNull(endDate);
+    }
+
+    /**
+     * Диапазон прочитан и все его документы подтверждены
+     */
+    public boolean isCompleted() {
+        return isScanCompleted() && tracker.getPending() == 0;
+    }
+
+    public Document getCheckpoint() {
+        return new Document()
+                .append("number", number)
+                .append("lower", lower)
+                .append("upper", upper)
+                .append("committed", tracker.getCommitted())
+                .append("completed", isCompleted());
+    }
+
+    public Document getState() {
+        return new Document()
+                .append("number", number)
+                .append("lower", lower)
+                .append("upper", upper)
+                .append("committed", tracker.getCommitted())
+                .append("documentsRead", documentsRead.sum())
+                .append("documentsWrite", tracker.getCommittedCount())
+                .append("started", nonNull(startDate) ? startDate.toString() : null)
+                .append("completed", isCompleted());
+    }
+}
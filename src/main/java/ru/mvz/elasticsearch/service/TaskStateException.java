@@ -0,0 +1,7 @@
+package ru.mvz.elasticsearch.service;
+
+public class TaskStateException extends Exception {
+    public TaskStateException(String message) {
+        super(message);
+    }
+}
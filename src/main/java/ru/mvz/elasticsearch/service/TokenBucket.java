@@ -0,0 +1,56 @@
+package ru.mvz.elasticsearch.service;
+
+/**
+ * Ограничитель скорости по алгоритму маркерной корзины. Запрос, превышающий доступное количество маркеров,
+ * не отклоняется: маркеры берутся в долг, а вызывающий получает время ожидания, через которое долг
+ * будет погашен. Емкость корзины равна количеству маркеров за одну секунду
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class TokenBucket {
+
+    /**
+     * Маркеров в секунду, 0 - без ограничения
+     */
+    private double rate;
+
+    private double available;
+
+    private long updated = System.nanoTime();
+
+    public TokenBucket(double rate) {
+        setRate(rate);
+    }
+
+    /**
+     * Берет маркеры из корзины
+     *
+     * @param tokens количество маркеров
+     * @return время ожидания в наносекундах, 0 - ожидание не требуется
+     */
+    synchronized public long reserve(long tokens) {
+        if(rate <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        available = Math.min(rate, available + (now - updated) / 1e9 * rate) - tokens;
+        updated = now;
+        return available >= 0 ? 0 : (long) (-available / rate * 1e9);
+    }
+
+    synchronized public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Изменяет скорость. Корзина заполняется полностью, накопленный долг сохраняется
+     *
+     * @param rate маркеров в секунду, 0 - без ограничения
+     */
+    synchronized public void setRate(double rate) {
+        this.rate = Math.max(0, rate);
+        available = Math.min(available, 0) + this.rate;
+        updated = System.nanoTime();
+    }
+}
@@ -0,0 +1,165 @@
+package ru.mvz.elasticsearch.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.BsonTypeCodecMap;
+import org.bson.codecs.DecoderContext;
+import org.bson.io.ByteBufferBsonInput;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Класс преобразует документ BSON в JSON за один проход по байтам документа без построения дерева Document.
+ * Отбор полей и получение значений интегрированного поля выполняются в том же проходе по деревьям путей полей.
+ * Строки, числа, логические значения и null записываются непосредственно, значения остальных типов
+ * декодируются кодеком драйвера и записываются объектом, поэтому результат совпадает с сериализацией Document
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class BsonJsonTranscoder {
+
+    private static final BsonTypeCodecMap codecs = new BsonTypeCodecMap(new BsonTypeClassMap(),
+            MongoClientSettings.getDefaultCodecRegistry());
+
+    private static final DecoderContext decoderContext = DecoderContext.builder().build();
+
+    private BsonJsonTranscoder() {
+    }
+
+    /**
+     * Записывает поля документа в открытый объект JSON
+     *
+     * @param document документ
+     * @param generator генератор JSON
+     * @param select дерево путей записываемых полей, null - записываются все поля
+     * @param summary дерево путей полей интегрированного поля, null - значения не передаются
+     * @param summaryReceiver получатель значений интегрированного поля
+     */
+    public static void writeFields(RawBsonDocument document, JsonGenerator generator, FieldPathTrie select,
+                                   FieldPathTrie summary, Consumer<Object> summaryReceiver) throws IOException {
+        try (BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(document.getByteBuffer()))) {
+            reader.readStartDocument();
+            transcodeFields(reader, generator, select, summary, summaryReceiver);
+            reader.readEndDocument();
+        }
+    }
+
+    /**
+     * Обрабатывает поля текущего документа. Поле, не отбираемое для записи и не используемое
+     * интегрированным полем, пропускается без чтения значения
+     *
+     * @param generator генератор JSON, null - поля не записываются
+     * @param select узел дерева отбираемых полей, null - записываются все поля
+     * @param summary узел дерева полей интегрированного поля или null
+     */
+    private static void transcodeFields(BsonReader reader, JsonGenerator generator, FieldPathTrie select,
+                                        FieldPathTrie summary, Consumer<Object> summaryReceiver) throws IOException {
+        while(reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            FieldPathTrie childSelect = isNull(generator) || isNull(select) ? null : select.child(name);
+            boolean write = nonNull(generator) && (isNull(select) || nonNull(childSelect));
+            FieldPathTrie childSummary = isNull(summary) ? null : summary.child(name);
+            if(!write && isNull(childSummary)) {
+                reader.skipValue();
+                continue;
+            }
+            if(write) {
+                generator.writeFieldName(name);
+            }
+                // Поле описания индекса записывается целиком
+            transcodeValue(reader, write ? generator : null,
+                    isNull(childSelect) || childSelect.isTerminal() ? null : childSelect,
+                    childSummary, summaryReceiver);
+        }
+    }
+
+    /**
+     * Обрабатывает текущее значение. Элементы массива обрабатываются с тем же узлом дерева, что и массив
+     */
+    private static void transcodeValue(BsonReader reader, JsonGenerator generator, FieldPathTrie select,
+                                       FieldPathTrie summary, Consumer<Object> summaryReceiver) throws IOException {
+        boolean collect = nonNull(summary) && summary.isTerminal();
+        BsonType type = reader.getCurrentBsonType();
+        switch (type) {
+            case DOCUMENT:
+                reader.readStartDocument();
+                if(nonNull(generator)) {
+                    generator.writeStartObject();
+                }
+                transcodeFields(reader, generator, select, summary, summaryReceiver);
+                reader.readEndDocument();
+                if(nonNull(generator)) {
+                    generator.writeEndObject();
+                }
+                break;
+            case ARRAY:
+                reader.readStartArray();
+                if(nonNull(generator)) {
+                    generator.writeStartArray();
+                }
+                while(reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    transcodeValue(reader, generator, select, summary, summaryReceiver);
+                }
+                reader.readEndArray();
+                if(nonNull(generator)) {
+                    generator.writeEndArray();
+                }
+                break;
+            case STRING:
+                String string = reader.readString();
+                if(nonNull(generator)) {
+                    generator.writeString(string);
+                }
+                if(collect) {
+                    summaryReceiver.accept(string);
+                }
+                break;
+            case INT32:
+                int int32 = reader.readInt32();
+                if(nonNull(generator)) {
+                    generator.writeNumber(int32);
+                }
+                if(collect) {
+                    summaryReceiver.accept(int32);
+                }
+                break;
+            case INT64:
+                long int64 = reader.readInt64();
+                if(nonNull(generator)) {
+                    generator.writeNumber(int64);
+                }
+                if(collect) {
+                    summaryReceiver.accept(int64);
+                }
+                break;
+            default:
+                if(isNull(generator)) {
+                    reader.skipValue();
+                }
+                else if(type == BsonType.DOUBLE) {
+                    generator.writeNumber(reader.readDouble());
+                }
+                else if(type == BsonType.BOOLEAN) {
+                    generator.writeBoolean(reader.readBoolean());
+                }
+                else if(type == BsonType.NULL) {
+                    reader.readNull();
+                    generator.writeNull();
+                }
+                else {
+                    generator.writeObject(codecs.get(type).decode(reader, decoderContext));
+                }
+                break;
+        }
+    }
+}
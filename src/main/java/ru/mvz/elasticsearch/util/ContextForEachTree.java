@@ -12,22 +12,44 @@ public interface ContextForEachTree {
 
     DocumentTree getDocumentTree();
 
-    Map.Entry<String, Object> getCurrentItem();
-
     NodeType getTypeValue();
 
+    /**
+     * Возвращает имя поля текущего элемента, для элемента массива - его номер
+     */
     String getKey();
 
+    /**
+     * Возвращает номер текущего элемента в массиве, -1 - элемент является полем узла
+     */
+    int getIndex();
+
     Object getValue();
 
     <T> T getValue(ValueConverter<T> converter) throws ConvertDataException;
 
-    Stack<Map.Entry<String, Object>> getPathToCurrentItem();
+    /**
+     * Возвращает количество элементов пути к текущему элементу, включая корень
+     */
+    int getDepth();
 
-    ArrayList<String> getCurrentPath();
+    /**
+     * Возвращает имя поля элемента пути, null - элемент пути является элементом массива
+     *
+     * @param level номер элемента пути, 0 - корень
+     */
+    String getPathKey(int level);
 
-    ArrayList<String> getCurrentPath(String key);
+    Object getPathValue(int level);
+
+    /**
+     * Возвращает имена полей пути к текущему элементу без номеров элементов массивов
+     */
+    ArrayList<String> getCurrentPath();
 
-    ArrayList<String> getCurrentPath(Map.Entry<String, Object> node);
+    /**
+     * Возвращает имена полей пути к текущему элементу, включая имя текущего элемента, без номеров элементов массивов
+     */
+    ArrayList<String> getFieldPath();
 
 }
@@ -1,40 +1,112 @@
 package ru.mvz.elasticsearch.util;
 
-import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.Setter;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
+import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 
-@Getter
+/**
+ * Контекст обхода дерева документа. Один объект используется для всего обхода: текущий элемент
+ * и путь к нему хранятся в массивах, поэтому переход к очередному элементу не создает объектов
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
 public class ContextForEachTreeImpl implements ContextForEachTree {
-    DocumentHelper documentHelper;
 
-    /** Переменная для хранения ключа атрибута. */
-    @Setter(AccessLevel.PACKAGE)
-    private Map.Entry<String, Object> currentItem;
-    /** Переменная для хранения текущего пути к атрибуту. */
-    final private Stack<Map.Entry<String, Object>> pathToCurrentItem = new Stack<>();
-    /** Переменная для хранения объекта обработки исключений **/
+    /** Имена элементов массивов, используемые без создания строк */
+    private static final String[] INDEX_KEYS = new String[256];
+
+    static {
+        for(int i = 0; i < INDEX_KEYS.length; i++) {
+            INDEX_KEYS[i] = String.valueOf(i);
+        }
+    }
+
+    @Getter
+    final private DocumentHelper documentHelper;
+
+    /** Имя поля текущего элемента, null для элемента массива. */
+    private String key;
+    /** Номер текущего элемента в массиве, -1 для поля узла. */
+    private int index = -1;
+
+    private Object value;
+    /** Путь к текущему элементу. */
+    private String[] pathKeys = new String[16];
+
+    private int[] pathIndexes = new int[16];
+
+    private Object[] pathValues = new Object[16];
+
+    private int depth;
+
+    @Getter
+    private boolean active;
 
     ContextForEachTreeImpl(DocumentHelper documentHelper) {
         this.documentHelper = documentHelper;
     }
 
+    /**
+     * Начинает обход с корневого элемента
+     */
+    void start(Object rootNode) {
+        active = true;
+        depth = 0;
+        setKeyValue("", rootNode);
+    }
+
+    /**
+     * Завершает обход и освобождает ссылки на элементы документа
+     */
+    void finish() {
+        Arrays.fill(pathValues, 0, depth, null);
+        depth = 0;
+        value = null;
+        active = false;
+    }
+
     public ContextForEachTreeImpl setKeyValue(String key, Object value) {
-        this.currentItem = new AbstractMap.SimpleEntry<>(key, value);
+        this.key = key;
+        this.index = -1;
+        this.value = value;
         return this;
     }
 
-    public Map.Entry<String, Object> push(Map.Entry<String, Object> node) {
-        return pathToCurrentItem.push(node);
+    public ContextForEachTreeImpl setIndexValue(int index, Object value) {
+        this.key = null;
+        this.index = index;
+        this.value = value;
+        return this;
+    }
+
+    /**
+     * Добавляет текущий элемент в путь перед переходом к его дочерним элементам
+     */
+    public void push() {
+        if(depth == pathKeys.length) {
+            pathKeys = Arrays.copyOf(pathKeys, depth * 2);
+            pathIndexes = Arrays.copyOf(pathIndexes, depth * 2);
+            pathValues = Arrays.copyOf(pathValues, depth * 2);
+        }
+        pathKeys[depth] = key;
+        pathIndexes[depth] = index;
+        pathValues[depth] = value;
+        depth++;
     }
 
-    public Map.Entry<String, Object> pop() {
-        return pathToCurrentItem.pop();
+    /**
+     * Удаляет последний элемент пути и делает его текущим
+     */
+    public void pop() {
+        depth--;
+        key = pathKeys[depth];
+        index = pathIndexes[depth];
+        value = pathValues[depth];
+        pathValues[depth] = null;
     }
 
     @Override
@@ -48,32 +120,58 @@ public class ContextForEachTreeImpl implements ContextForEachTree {
 
     @Override
     public String getKey() {
-        return getCurrentItem().getKey();
+        return nonNull(key) ? key : indexKey(index);
+    }
+
+    @Override
+    public int getIndex() {
+        return index;
     }
 
     @Override
     public Object getValue() {
-        return getCurrentItem().getValue();
+        return value;
     }
 
     @Override
-    public ArrayList<String> getCurrentPath() {
-        return getPathToCurrentItem().stream().map(Map.Entry::getKey)
-                .filter(p ->  !(p.isEmpty() || Character.isDigit(p.charAt(0))))
-                .collect(Collectors.toCollection(ArrayList::new));
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public String getPathKey(int level) {
+        return pathKeys[level];
+    }
+
+    @Override
+    public Object getPathValue(int level) {
+        return pathValues[level];
     }
 
     @Override
-    public ArrayList<String> getCurrentPath(Map.Entry<String, Object> node) {
-        return getCurrentPath(node.getKey());
+    public ArrayList<String> getCurrentPath() {
+        ArrayList<String> path = new ArrayList<>(depth);
+        for(int i = 0; i < depth; i++) {
+            appendField(path, pathKeys[i]);
+        }
+        return path;
     }
 
     @Override
-    public ArrayList<String> getCurrentPath(String key) {
-        ArrayList<String> keyPath = getCurrentPath();
-        if(!key.isEmpty() && !Character.isDigit(key.charAt(0)))
-            keyPath.add(key);
-        return keyPath;
+    public ArrayList<String> getFieldPath() {
+        ArrayList<String> path = getCurrentPath();
+        appendField(path, key);
+        return path;
+    }
+
+    private static void appendField(List<String> path, String key) {
+        if(nonNull(key) && !key.isEmpty()) {
+            path.add(key);
+        }
+    }
+
+    private static String indexKey(int index) {
+        return index < INDEX_KEYS.length ? INDEX_KEYS[index] : String.valueOf(index);
     }
 
     public <T> T getValue(ValueConverter<T> converter) throws ConvertDataException {
@@ -99,11 +197,13 @@ public class ContextForEachTreeImpl implements ContextForEachTree {
     }
 
     public String buildMsgInfo(String textMsg) {
+        StringBuilder path = new StringBuilder();
+        for(int i = 0; i < depth; i++) {
+            path.append(isNull(pathKeys[i]) ? indexKey(pathIndexes[i]) : pathKeys[i]).append("\\");
+        }
         return textMsg + " " +
                 "\"" + getKey() + "\"" +
-                " path " + getPathToCurrentItem().stream()
-                .map(p -> p.getKey())
-                .collect(Collectors.joining("\\", "", "\\")) +
+                " path " + path +
                 getKey() + ": " + getValue();
     }
 }
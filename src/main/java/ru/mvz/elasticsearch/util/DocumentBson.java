@@ -4,7 +4,6 @@ import lombok.Getter;
 import org.bson.Document;
 
 import java.util.*;
-import java.util.stream.Collectors;
 /**
  * Класс Context объединяет множество параметров в один объект, используется для минимизации количества передаваемы
  * параметров при вызове методов.
@@ -20,14 +19,12 @@ public class DocumentBson implements DocumentTree {
                 : NodeType.VALUE;
     }
     @Override
-    final public Iterator<Map.Entry<String,Object>> getIterator(Object value) {
-        NodeType nodeType = getNodeType(value);
-        int[] i = {0};
-        return nodeType == NodeType.NODE ? ((Document) value).entrySet().iterator()
-                : (nodeType == NodeType.ARRAY ? ((List<Object>) value) : Collections.emptyList())
-                .stream()
-                .collect(Collectors.toMap(val -> String.valueOf(i[0]++), val -> val))
-                .entrySet().iterator();
+    final public Iterator<Map.Entry<String,Object>> getFields(Object value) {
+        return ((Document) value).entrySet().iterator();
+    }
+    @Override
+    final public Object getItem(Object value, int index) {
+        return ((List<Object>) value).get(index);
     }
     @Override
     final public int size(Object value) {
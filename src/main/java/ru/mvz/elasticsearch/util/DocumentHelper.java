@@ -2,13 +2,12 @@ package ru.mvz.elasticsearch.util;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AccessLevel;
 import lombok.Getter;
 
 import java.util.*;
-import java.util.function.BiFunction;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 
 @Getter
@@ -20,6 +19,13 @@ public class DocumentHelper {
         ValueReceiver receive(ContextForEachTree ctx) throws ConvertDataException, JsonProcessingException;
     }
 
+    /**
+     * Контекст обхода, повторно используемый потоком
+     */
+    @Getter(AccessLevel.NONE)
+    final private ThreadLocal<ContextForEachTreeImpl> contexts =
+            ThreadLocal.withInitial(() -> new ContextForEachTreeImpl(this));
+
     public DocumentHelper(DocumentTree documentTree, ObjectMapper objectMapper) {
         this.documentTree = documentTree;
         this.objectMapper = objectMapper;
@@ -34,9 +40,18 @@ public class DocumentHelper {
     final public void forEachTree(ValueReceiver receiver, Object rootNode)
             throws ConvertDataException, JsonProcessingException {
         if(nonNull(rootNode)) {
-            ContextForEachTreeImpl context = new ContextForEachTreeImpl(this);
-            context.setKeyValue("", rootNode);
-            processingValue(receiver, context);
+            ContextForEachTreeImpl context = contexts.get();
+                // Обход, запущенный из получателя другого обхода, использует отдельный контекст
+            if(context.isActive()) {
+                context = new ContextForEachTreeImpl(this);
+            }
+            context.start(rootNode);
+            try {
+                processingValue(receiver, context);
+            }
+            finally {
+                context.finish();
+            }
         }
     }
     /**
@@ -49,54 +64,30 @@ public class DocumentHelper {
     private void processingValue(ValueReceiver receiver, ContextForEachTreeImpl context) throws ConvertDataException, JsonProcessingException {
         if(nonNull(receiver)) {
             ValueReceiver valueReceiver = receiver.receive(context);
-            Map.Entry<String, Object> entry = context.getCurrentItem();
-            Iterator<Map.Entry<String, Object>> collection = documentTree.getIterator(entry.getValue());
-            if(collection.hasNext()) {
-                context.push(entry);
-                while(collection.hasNext()) {
-                    Map.Entry<String, Object> node = collection.next();
-                    processingValue(valueReceiver, context.setKeyValue(node.getKey(), node.getValue()));
+            if(isNull(valueReceiver)) {
+                return;
+            }
+            Object value = context.getValue();
+            NodeType nodeType = documentTree.getNodeType(value);
+            if(nodeType == NodeType.NODE) {
+                Iterator<Map.Entry<String, Object>> fields = documentTree.getFields(value);
+                if(fields.hasNext()) {
+                    context.push();
+                    while(fields.hasNext()) {
+                        Map.Entry<String, Object> node = fields.next();
+                        processingValue(valueReceiver, context.setKeyValue(node.getKey(), node.getValue()));
+                    }
+                    context.pop();
                 }
-                context.pop();
             }
-        }
-    }
-
-    final public void scanRemoveTree(BiFunction<ContextForEachTree, Map.Entry<String, Object>, TestRemoveResult> testRemove, Object rootNode) {
-        if(nonNull(rootNode)) {
-            ContextForEachTreeImpl context;
-            context = new ContextForEachTreeImpl(this);
-            context.setKeyValue("", rootNode);
-            processingRemoveNode(testRemove, context);
-        }
-    }
-
-    private void processingRemoveNode(BiFunction<ContextForEachTree, Map.Entry<String, Object>, TestRemoveResult> testRemove,
-                                            ContextForEachTreeImpl context) {
-        if(nonNull(testRemove)) {
-            Map.Entry<String, Object> entry = context.getCurrentItem();
-            if(documentTree.getNodeType(entry.getValue()) != NodeType.VALUE) {
-                Iterator<Map.Entry<String, Object>> collection = documentTree.getIterator(entry.getValue());
-                if (collection.hasNext()) {
-                    context.push(entry);
-                    ArrayList<String> keysForRemove = new ArrayList<>();
-                    while (collection.hasNext()) {
-                        Map.Entry<String, Object> node = collection.next();
-                        TestRemoveResult testResult = testRemove.apply(context, node);
-                        if(testResult == TestRemoveResult.REMOVE) {
-                            keysForRemove.add(node.getKey());
-                        }
-                        else if(testResult == TestRemoveResult.NO_REMOVE) {
-                            continue;
-                        }
-                        else if(documentTree.getNodeType(node.getValue()) != NodeType.VALUE) {
-                            processingRemoveNode(testRemove, context.setKeyValue(node.getKey(), node.getValue()));
-                            if(documentTree.size(entry.getValue()) == 0)
-                                keysForRemove.add(node.getKey());
-                        }
+            else if(nodeType == NodeType.ARRAY) {
+                int size = documentTree.size(value);
+                if(size > 0) {
+                    context.push();
+                        // Элементы массива перебираются по номеру в порядке следования
+                    for(int i = 0; i < size; i++) {
+                        processingValue(valueReceiver, context.setIndexValue(i, documentTree.getItem(value, i)));
                     }
-                    keysForRemove
-                        .forEach(key -> documentTree.removeItem(entry.getValue(), key));
                     context.pop();
                 }
             }
@@ -109,14 +100,9 @@ public class DocumentHelper {
             @Override
             public DocumentHelper.ValueReceiver receive(ContextForEachTree ctx) throws ConvertDataException {
                 if(getDocumentTree().getNodeType(ctx.getValue()) == NodeType.VALUE) {
-                    pathToValue.add(
-                            Stream.concat(
-                                Stream.concat(
-                                        ctx.getPathToCurrentItem().stream().map(Map.Entry::getKey),
-                                        Stream.of(ctx.getCurrentItem().getKey()))
-                                    .filter(p ->  !(p.isEmpty() || Character.isDigit(p.charAt(0)))),
-                                    Stream.of((String)ctx.getValue(String::valueOf)))
-                                .collect(Collectors.toCollection(ArrayList::new)));
+                    ArrayList<String> path = ctx.getFieldPath();
+                    path.add(ctx.getValue(String::valueOf));
+                    pathToValue.add(path);
                 }
                 return this;
             }
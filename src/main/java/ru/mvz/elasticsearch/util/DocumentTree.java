@@ -5,7 +5,15 @@ import java.util.Map;
 
 public interface DocumentTree {
 
-    Iterator<Map.Entry<String,Object>> getIterator(Object value);
+    /**
+     * Возвращает итератор полей узла типа {@link NodeType#NODE}
+     */
+    Iterator<Map.Entry<String,Object>> getFields(Object value);
+
+    /**
+     * Возвращает элемент узла типа {@link NodeType#ARRAY} по номеру
+     */
+    Object getItem(Object value, int index);
 
     NodeType getNodeType(Object value);
 
@@ -0,0 +1,117 @@
+package ru.mvz.elasticsearch.util;
+
+import org.bson.Document;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Префиксное дерево путей полей описания индекса. Строится один раз при создании описания индекса
+ * и позволяет отбирать поля документа за один спуск по документу без формирования пути к каждому узлу.
+ * Элементы массива относятся к тому же узлу дерева, что и сам массив
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class FieldPathTrie {
+
+    final private Map<String, FieldPathTrie> children = new HashMap<>();
+
+    /**
+     * Путь узла является полем описания индекса
+     */
+    private boolean terminal;
+
+    /**
+     * Строит дерево по набору путей полей
+     *
+     * @param paths пути полей, разбитые на составные части
+     * @return корень дерева
+     */
+    public static FieldPathTrie compile(Collection<? extends List<String>> paths) {
+        FieldPathTrie root = new FieldPathTrie();
+        if(isNull(paths)) {
+            return root;
+        }
+        for(List<String> path: paths) {
+            FieldPathTrie node = root;
+            for(String key: path) {
+                node = node.children.computeIfAbsent(key, k -> new FieldPathTrie());
+            }
+            node.terminal = true;
+        }
+        return root;
+    }
+
+    public FieldPathTrie child(String key) {
+        return children.get(key);
+    }
+
+    public boolean isTerminal() {
+        return terminal;
+    }
+
+    public boolean isEmpty() {
+        return !terminal && children.isEmpty();
+    }
+
+    /**
+     * Удаляет из документа поля, не входящие в дерево. Поле, путь которого является полем описания,
+     * сохраняется целиком. Значение, путь которого является только началом пути поля описания, сохраняется
+     *
+     * @param document документ
+     */
+    public void prune(Document document) {
+        Iterator<Map.Entry<String, Object>> iterator = document.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<String, Object> entry = iterator.next();
+            FieldPathTrie child = children.get(entry.getKey());
+            if(isNull(child)) {
+                iterator.remove();
+            }
+            else if(!child.terminal) {
+                child.pruneValue(entry.getValue());
+            }
+        }
+    }
+
+    private void pruneValue(Object value) {
+        if(value instanceof Document) {
+            prune((Document) value);
+        }
+        else if(value instanceof List) {
+            for(Object item: (List<?>) value) {
+                pruneValue(item);
+            }
+        }
+    }
+
+    /**
+     * Передает получателю в порядке следования в документе скалярные значения, путь которых является
+     * полем описания. Для массива передаются значения его элементов
+     *
+     * @param value корневой узел документа
+     * @param receiver получатель значений
+     */
+    public void forEachValue(Object value, Consumer<Object> receiver) {
+        if(value instanceof Document) {
+            for(Map.Entry<String, Object> entry: ((Document) value).entrySet()) {
+                FieldPathTrie child = children.get(entry.getKey());
+                if(nonNull(child)) {
+                    child.forEachValue(entry.getValue(), receiver);
+                }
+            }
+        }
+        else if(value instanceof List) {
+            for(Object item: (List<?>) value) {
+                forEachValue(item, receiver);
+            }
+        }
+        else if(terminal && nonNull(value)) {
+            receiver.accept(value);
+        }
+    }
+}
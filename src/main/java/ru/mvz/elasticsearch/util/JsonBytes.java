@@ -0,0 +1,85 @@
+package ru.mvz.elasticsearch.util;
+
+import org.springframework.core.io.buffer.DataBuffer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Класс содержит методы записи строковых значений JSON непосредственно в буфер в кодировке UTF-8,
+ * без создания промежуточных строк
+ *
+ * @author  Валентин Морозов
+ * @since   1.0
+ */
+public class JsonBytes {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Возвращает экранированное значение строки JSON (без кавычек) в кодировке UTF-8
+     *
+     * @param value исходная строка
+     * @return массив байт
+     */
+    public static byte[] escape(CharSequence value) {
+        StringBuilder stringBuilder = new StringBuilder(value.length() + 8);
+        for(int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                stringBuilder.append('\\').append(c);
+            }
+            else if(c < 0x20) {
+                stringBuilder.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                stringBuilder.append(c);
+            }
+        }
+        return stringBuilder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Записывает в буфер экранированное значение строки JSON (без кавычек) в кодировке UTF-8
+     *
+     * @param buffer буфер
+     * @param value исходная строка
+     * @return буфер
+     */
+    public static DataBuffer writeEscaped(DataBuffer buffer, CharSequence value) {
+        for(int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if(c < 0x80) {
+                if(c == '"' || c == '\\') {
+                    buffer.write((byte) '\\').write((byte) c);
+                }
+                else if(c < 0x20) {
+                    buffer.write((byte) '\\').write((byte) 'u').write((byte) '0').write((byte) '0')
+                            .write(HEX[c >> 4]).write(HEX[c & 0xF]);
+                }
+                else {
+                    buffer.write((byte) c);
+                }
+            }
+            else if(c < 0x800) {
+                buffer.write((byte) (0xC0 | (c >> 6)))
+                        .write((byte) (0x80 | (c & 0x3F)));
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.write((byte) (0xF0 | (codePoint >> 18)))
+                        .write((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                        .write((byte) (0x80 | ((codePoint >> 6) & 0x3F)))
+                        .write((byte) (0x80 | (codePoint & 0x3F)));
+            }
+            else if(Character.isSurrogate(c)) {
+                buffer.write((byte) '?');
+            }
+            else {
+                buffer.write((byte) (0xE0 | (c >> 12)))
+                        .write((byte) (0x80 | ((c >> 6) & 0x3F)))
+                        .write((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return buffer;
+    }
+}
@@ -1,6 +1,11 @@
 package ru.mvz.elasticsearch.util;
 
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
 import org.bson.types.ObjectId;
 
 import java.text.SimpleDateFormat;
@@ -12,6 +17,10 @@ import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 
 public class Package {
+    private static final DocumentCodec documentCodec = new DocumentCodec();
+
+    private static final DecoderContext decoderContext = DecoderContext.builder().build();
+
     private static SimpleDateFormat sdf =
             new
                     SimpleDateFormat(
@@ -104,6 +113,39 @@ public class Package {
             throw new IllegalObjectIdException("Error", e);
         }
     }
+    /**
+     * Создает полную копию дерева Document, вложенные документы и массивы копируются
+     *
+     * @param value исходное значение
+     * @return копия значения
+     */
+    @SuppressWarnings("unchecked")
+    static public <T> T deepCopy(T value) {
+        if(value instanceof Document) {
+            Document copy = new Document();
+            ((Document) value).forEach((key, item) -> copy.put(key, deepCopy(item)));
+            return (T) copy;
+        }
+        if(value instanceof List) {
+            List<Object> copy = new ArrayList<>(((List<?>) value).size());
+            ((List<?>) value).forEach(item -> copy.add(deepCopy(item)));
+            return (T) copy;
+        }
+        return value;
+    }
+
+    /**
+     * Преобразует значение BSON в значение, получаемое при декодировании документа в Document
+     *
+     * @param value значение BSON
+     * @return значение
+     */
+    static public Object fromBsonValue(BsonValue value) {
+        return isNull(value) ? null
+                : documentCodec.decode(new BsonDocumentReader(new BsonDocument("value", value)), decoderContext)
+                    .get("value");
+    }
+
     static public List<String> throwable2ListMessage(Throwable ex) {
         List msgList = new ArrayList();
         for(Throwable e = ex; nonNull(e); e = e.getCause()) {
@@ -1,5 +0,0 @@
-package ru.mvz.elasticsearch.util;
-
-public enum TestRemoveResult {
-    REMOVE, NEXT, NO_REMOVE;
-}
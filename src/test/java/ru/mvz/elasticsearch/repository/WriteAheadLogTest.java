@@ -0,0 +1,194 @@
+package ru.mvz.elasticsearch.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import ru.mvz.elasticsearch.config.AppConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка журнала упреждающей записи во временном каталоге. Периодическая синхронизация отключена
+ * большим интервалом, записи сбрасываются на диск явным вызовом {@code sync}
+ */
+class WriteAheadLogTest {
+
+    @TempDir
+    Path directory;
+
+    final private List<WriteAheadLog> logs = new ArrayList<>();
+
+    @AfterEach
+    void closeLogs() {
+        logs.forEach(WriteAheadLog::close);
+    }
+
+    private WriteAheadLog open(int segmentSize) {
+        AppConfig appConfig = new AppConfig();
+        appConfig.setWalPath(directory.toString());
+        appConfig.setWalSegmentSize(segmentSize);
+        appConfig.setWalSyncInterval(3600000);
+        WriteAheadLog writeAheadLog = new WriteAheadLog(appConfig);
+        logs.add(writeAheadLog);
+        return writeAheadLog;
+    }
+
+    private static long append(WriteAheadLog writeAheadLog, String data) {
+        Mono<Long> offset = writeAheadLog.append(
+                DefaultDataBufferFactory.sharedInstance.wrap(data.getBytes(StandardCharsets.UTF_8)));
+        writeAheadLog.sync();
+        return offset.block(Duration.ofSeconds(5));
+    }
+
+    private static List<String> replay(WriteAheadLog writeAheadLog) {
+        return writeAheadLog.replay()
+                .map(record -> new String(record.getT2(), StandardCharsets.UTF_8))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+    }
+
+    private List<String> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".wal"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void appendDeliversOffsetAfterSync() {
+        WriteAheadLog writeAheadLog = open(1024);
+        Mono<Long> offset = writeAheadLog.append(
+                DefaultDataBufferFactory.sharedInstance.wrap("abc".getBytes(StandardCharsets.UTF_8)));
+        List<Long> delivered = new ArrayList<>();
+        offset.subscribe(delivered::add);
+        assertTrue(delivered.isEmpty());
+        writeAheadLog.sync();
+        assertEquals(Arrays.asList(0L), delivered);
+            // Следующая запись начинается после заголовка и данных первой
+        assertEquals(11L, append(writeAheadLog, "de"));
+    }
+
+    @Test
+    void commitWatermark() {
+        WriteAheadLog writeAheadLog = open(1024);
+        long first = append(writeAheadLog, "first");
+        long second = append(writeAheadLog, "second");
+        assertEquals(first, writeAheadLog.getCommitted());
+        assertEquals(2, writeAheadLog.getPending());
+
+            // Подтверждение записи не сдвигает позицию, пока не подтверждены предшествующие записи
+        writeAheadLog.commit(second);
+        assertEquals(first, writeAheadLog.getCommitted());
+        writeAheadLog.commit(first);
+        assertEquals(second + 8 + "second".length(), writeAheadLog.getCommitted());
+        assertEquals(0, writeAheadLog.getPending());
+    }
+
+    @Test
+    void restartReplaysUncommittedRecords() {
+        WriteAheadLog writeAheadLog = open(1024);
+        long first = append(writeAheadLog, "first");
+        long second = append(writeAheadLog, "second");
+        long third = append(writeAheadLog, "third");
+        writeAheadLog.commit(first);
+        writeAheadLog.commit(third);
+        writeAheadLog.close();
+
+        WriteAheadLog reopened = open(1024);
+        List<Tuple2<Long, byte[]>> records = reopened.replay().collectList().block(Duration.ofSeconds(5));
+        assertEquals(2, records.size());
+        assertEquals(second, records.get(0).getT1());
+        assertEquals("second", new String(records.get(0).getT2(), StandardCharsets.UTF_8));
+        assertEquals(third, records.get(1).getT1());
+            // Повторно переданные записи снова ожидают подтверждения
+        assertEquals(second, reopened.getCommitted());
+        assertEquals(third + 8 + "third".length(), append(reopened, "fourth"));
+            // Записи передаются для повтора однократно
+        assertTrue(replay(reopened).isEmpty());
+    }
+
+    @Test
+    void committedRecordsAreNotReplayed() {
+        WriteAheadLog writeAheadLog = open(1024);
+        writeAheadLog.commit(append(writeAheadLog, "first"));
+        writeAheadLog.commit(append(writeAheadLog, "second"));
+        writeAheadLog.sync();
+        writeAheadLog.close();
+
+        assertTrue(replay(open(1024)).isEmpty());
+    }
+
+    @Test
+    void segmentRoll() throws IOException {
+        WriteAheadLog writeAheadLog = open(64);
+            // Запись с заголовком и признаком конца данных не помещается в остаток сегмента
+        String data = String.join("", Collections.nCopies(40, "x"));
+        long first = append(writeAheadLog, data);
+        long second = append(writeAheadLog, data);
+        long third = append(writeAheadLog, data);
+        assertEquals(0L, first);
+        assertEquals(64L, second);
+        assertEquals(128L, third);
+        assertEquals(3, segmentFiles().size());
+
+            // Сегменты, целиком предшествующие подтвержденной позиции, удаляются при синхронизации
+        writeAheadLog.commit(first);
+        writeAheadLog.commit(second);
+        writeAheadLog.sync();
+        assertEquals(Arrays.asList(String.format("%020d.wal", 128)), segmentFiles());
+        writeAheadLog.close();
+
+        assertEquals(Arrays.asList(data), replay(open(64)));
+    }
+
+    @Test
+    void oversizedRecordGetsOwnSegment() {
+        WriteAheadLog writeAheadLog = open(64);
+        String data = String.join("", Collections.nCopies(100, "y"));
+        long offset = append(writeAheadLog, data);
+        writeAheadLog.close();
+            // Запись начинается со следующего сегмента, размер которого увеличен под запись
+        assertEquals(64L, offset);
+        assertEquals(Arrays.asList(data), replay(open(64)));
+    }
+
+    @Test
+    void corruptedRecordStopsReplay() throws IOException {
+        WriteAheadLog writeAheadLog = open(1024);
+        append(writeAheadLog, "first");
+        long second = append(writeAheadLog, "second");
+        append(writeAheadLog, "third");
+        writeAheadLog.close();
+
+            // Изменение данных второй записи нарушает ее контрольную сумму
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("%020d.wal", 0)),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'S'}), second + 8);
+        }
+
+        WriteAheadLog reopened = open(1024);
+        assertEquals(Arrays.asList("first"), replay(reopened));
+            // Запись продолжается с позиции поврежденной записи
+        assertEquals(second, append(reopened, "next"));
+    }
+}
@@ -0,0 +1,84 @@
+package ru.mvz.elasticsearch.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка сдвига подтвержденной позиции при подтверждениях в произвольном порядке
+ */
+class AckTrackerTest {
+
+    @Test
+    void initialPosition() {
+        assertNull(new AckTracker<Integer>().getCommitted());
+        assertEquals("token", new AckTracker<>("token").getCommitted());
+    }
+
+    @Test
+    void inOrderAcks() {
+        AckTracker<Integer> tracker = new AckTracker<>();
+        Runnable first = tracker.register(1);
+        Runnable second = tracker.register(2);
+        assertEquals(2, tracker.getPending());
+        first.run();
+        assertEquals(Integer.valueOf(1), tracker.getCommitted());
+        second.run();
+        assertEquals(Integer.valueOf(2), tracker.getCommitted());
+        assertEquals(0, tracker.getPending());
+        assertEquals(2L, tracker.getCommittedCount());
+    }
+
+    @Test
+    void outOfOrderAcksWaitForGap() {
+        AckTracker<Integer> tracker = new AckTracker<>(0);
+        Runnable first = tracker.register(1);
+        Runnable second = tracker.register(2);
+        Runnable third = tracker.register(3);
+        third.run();
+        second.run();
+            // Позиция не сдвигается, пока не подтвержден первый элемент
+        assertEquals(Integer.valueOf(0), tracker.getCommitted());
+        assertEquals(0L, tracker.getCommittedCount());
+        first.run();
+        assertEquals(Integer.valueOf(3), tracker.getCommitted());
+        assertEquals(3L, tracker.getCommittedCount());
+    }
+
+    @Test
+    void repeatedAckIsIgnored() {
+        AckTracker<Integer> tracker = new AckTracker<>();
+        Runnable first = tracker.register(1);
+        tracker.register(2);
+        first.run();
+        first.run();
+        assertEquals(Integer.valueOf(1), tracker.getCommitted());
+        assertEquals(1L, tracker.getCommittedCount());
+        assertEquals(1, tracker.getPending());
+    }
+
+    @Test
+    void concurrentAcks() throws InterruptedException {
+        AckTracker<Integer> tracker = new AckTracker<>();
+        List<Runnable> acks = new ArrayList<>();
+        for(int i = 0; i < 10000; i++) {
+            acks.add(tracker.register(i));
+        }
+        Collections.shuffle(acks, new Random(1));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        acks.forEach(executor::execute);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(9999), tracker.getCommitted());
+        assertEquals(10000L, tracker.getCommittedCount());
+        assertEquals(0, tracker.getPending());
+    }
+}
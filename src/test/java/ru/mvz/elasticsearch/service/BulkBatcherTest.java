@@ -0,0 +1,82 @@
+package ru.mvz.elasticsearch.service;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.core.io.buffer.PooledDataBuffer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка условий закрытия группы операций и освобождения буферов незакрытой группы
+ */
+class BulkBatcherTest {
+
+    final private NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT);
+
+    private BulkItem item(int size) {
+        return new BulkItem(bufferFactory.wrap(new byte[size]), null);
+    }
+
+    private static List<Integer> batchSizes(BulkBatcher batcher, Flux<BulkItem> items) {
+        return items.transform(batcher)
+                .map(List::size)
+                .collectList()
+                .block(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void closesOnItemCount() {
+        BulkBatcher batcher = new BulkBatcher(2, 1024, Duration.ofMinutes(1));
+        assertEquals(Arrays.asList(2, 2, 1),
+                batchSizes(batcher, Flux.range(0, 5).map(i -> item(10))));
+    }
+
+    @Test
+    void closesOnByteBudget() {
+        BulkBatcher batcher = new BulkBatcher(100, 25, Duration.ofMinutes(1));
+            // Третья операция превышает объем, группа закрывается до ее добавления
+        assertEquals(Arrays.asList(2, 2, 1),
+                batchSizes(batcher, Flux.range(0, 5).map(i -> item(10))));
+    }
+
+    @Test
+    void oversizedItemIsSentAlone() {
+        BulkBatcher batcher = new BulkBatcher(100, 25, Duration.ofMinutes(1));
+        List<List<Integer>> batches = Flux.just(item(10), item(40), item(10))
+                .transform(batcher)
+                .map(batch -> batch.stream().map(BulkItem::size).collect(Collectors.toList()))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+        assertEquals(Arrays.asList(Arrays.asList(10), Arrays.asList(40), Arrays.asList(10)), batches);
+    }
+
+    @Test
+    void closesOnDeadline() {
+        BulkBatcher batcher = new BulkBatcher(100, 1024, Duration.ofMillis(50));
+            // Группа закрывается по времени до поступления следующей операции
+        assertEquals(Arrays.asList(1, 1),
+                batchSizes(batcher, Flux.concat(Mono.just(item(10)),
+                        Mono.delay(Duration.ofMillis(500)).map(p -> item(10)))));
+    }
+
+    @Test
+    void releasesOpenBatchOnError() {
+        BulkBatcher batcher = new BulkBatcher(100, 1024, Duration.ofMinutes(1));
+        BulkItem first = item(10);
+        BulkItem second = item(10);
+        Flux<List<BulkItem>> batches = Flux.just(first, second)
+                .concatWith(Flux.error(new IllegalStateException("source failed")))
+                .transform(batcher);
+        assertThrows(IllegalStateException.class, () -> batches.blockLast(Duration.ofSeconds(5)));
+        assertFalse(((PooledDataBuffer) first.getContent()).isAllocated());
+        assertFalse(((PooledDataBuffer) second.getContent()).isAllocated());
+    }
+}
@@ -0,0 +1,111 @@
+package ru.mvz.elasticsearch.service;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.core.io.buffer.PooledDataBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка границ операций, общего состояния обработки операций тела запроса и тел повторных запросов
+ * и однократного сжатия содержимого
+ */
+class BulkBodyTest {
+
+    private static final String[] ITEMS = {"{\"index\":{\"_id\":\"1\"}}\n{\"a\":1}\n",
+            "{\"delete\":{\"_id\":\"2\"}}\n",
+            "{\"index\":{\"_id\":\"3\"}}\n{\"a\":3}\n"};
+
+    private static BulkBody body(List<Integer> acked) {
+        List<BulkItem> items = new ArrayList<>();
+        for(int i = 0; i < ITEMS.length; i++) {
+            int item = i;
+            items.add(new BulkItem(DefaultDataBufferFactory.sharedInstance.wrap(ITEMS[i].getBytes(StandardCharsets.UTF_8)),
+                    () -> acked.add(item)));
+        }
+        return BulkBody.join(DefaultDataBufferFactory.sharedInstance, items);
+    }
+
+    @Test
+    void wrapFindsItemBoundaries() {
+        BulkBody body = BulkBody.wrap(DefaultDataBufferFactory.sharedInstance, String.join("", ITEMS));
+        assertEquals(3, body.getItemsCount());
+        assertEquals(ITEMS[1], body.itemAsString(1));
+        assertEquals(ITEMS[2], body.itemAsString(2));
+    }
+
+    @Test
+    void repeatedAckIsIgnored() {
+        List<Integer> acked = new ArrayList<>();
+        BulkBody body = body(acked);
+        body.ack(0);
+        body.ackFailed(0);
+        body.ackAll();
+        assertEquals(Arrays.asList(0, 1, 2), acked);
+        assertEquals(3, body.getSucceededCount());
+        assertEquals(0, body.getFailedCount());
+    }
+
+    @Test
+    void selectSharesItemStates() {
+        List<Integer> acked = new ArrayList<>();
+        BulkBody body = body(acked);
+        body.ack(0);
+        BulkBody retry = body.select(DefaultDataBufferFactory.sharedInstance, Arrays.asList(1, 2));
+        assertEquals(ITEMS[1], retry.itemAsString(0));
+        retry.ackFailed(1);
+
+            // Состояние операций повторного запроса видно в исходном теле запроса
+        assertTrue(body.isAcked(2));
+        assertFalse(body.isAcked(1));
+        assertEquals(1, body.getSucceededCount());
+        assertEquals(1, body.getFailedCount());
+        assertEquals(Arrays.asList(0, 2), acked);
+        body.ackFailed(1);
+        assertEquals(0, retry.getSucceededCount());
+        assertEquals(2, retry.getFailedCount());
+        retry.release();
+        body.release();
+    }
+
+    @Test
+    void gzippedContentIsCompressedOnce() throws IOException {
+        NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT);
+        BulkBody body = BulkBody.wrap(bufferFactory, String.join("", ITEMS));
+        DataBuffer first = body.gzippedContent(bufferFactory).block();
+        DataBuffer second = body.gzippedContent(bufferFactory).block();
+        assertEquals(String.join("", ITEMS), gunzip(first));
+
+            // Повторная отправка получает представление того же сжатого буфера
+        assertEquals(first.readableByteCount(), second.readableByteCount());
+        assertTrue(((PooledDataBuffer) second).isAllocated());
+        DataBufferUtils.release(first);
+        DataBufferUtils.release(second);
+        assertTrue(((PooledDataBuffer) second).isAllocated());
+        body.release();
+        assertFalse(((PooledDataBuffer) second).isAllocated());
+    }
+
+    private static String gunzip(DataBuffer buffer) throws IOException {
+        try(InputStream input = new GZIPInputStream(buffer.slice(0, buffer.readableByteCount()).asInputStream())) {
+            byte[] chunk = new byte[256];
+            StringBuilder text = new StringBuilder();
+            for(int read; (read = input.read(chunk)) > 0; ) {
+                text.append(new String(chunk, 0, read, StandardCharsets.UTF_8));
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ru.mvz.elasticsearch.service;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка оценки нагрузки узлов и линейного изменения коэффициента ограничения между порогами
+ */
+class ClusterPressureTest {
+
+    private static Document stats(long queue, long rejected, long currentBytes, long limitBytes) {
+        return Document.parse("{nodes: {n1: {thread_pool: {write: {queue: " + queue + ", rejected: " + rejected + "}},"
+                + " indexing_pressure: {memory: {current: {all_in_bytes: " + currentBytes + "},"
+                + " limit_in_bytes: " + limitBytes + "}}}}}");
+    }
+
+    private static Document threadPools(long queueSize) {
+        return Document.parse("{nodes: {n1: {thread_pool: {write: {queue_size: " + queueSize + "}}}}}");
+    }
+
+    @Test
+    void factorIsInterpolatedBetweenThresholds() {
+        ClusterPressure clusterPressure = new ClusterPressure(0.5, 0.9, 0.2);
+        assertEquals(1, clusterPressure.update(stats(400, 0, 0, 0), threadPools(1000)), 1e-9);
+        assertEquals(0.6, clusterPressure.update(stats(700, 0, 0, 0), threadPools(1000)), 1e-9);
+        assertEquals(0.7, clusterPressure.getPressure(), 1e-9);
+        assertEquals(0.2, clusterPressure.update(stats(950, 0, 0, 0), threadPools(1000)), 1e-9);
+    }
+
+    @Test
+    void nodePressureIsLargestOfQueueAndMemory() {
+        ClusterPressure clusterPressure = new ClusterPressure(0.5, 0.9, 0.2);
+        clusterPressure.update(stats(100, 0, 800, 1000), threadPools(1000));
+        assertEquals(0.8, clusterPressure.getPressure(), 1e-9);
+    }
+
+    @Test
+    void unboundedQueueUsesDefaultSize() {
+        ClusterPressure clusterPressure = new ClusterPressure(0.5, 0.9, 0.2);
+        clusterPressure.update(stats(5000, 0, 0, 0), threadPools(-1));
+        assertEquals(0.5, clusterPressure.getPressure(), 1e-9);
+    }
+
+    @Test
+    void rejectionGrowthMeansFullPressure() {
+        ClusterPressure clusterPressure = new ClusterPressure(0.5, 0.9, 0.2);
+            // Первый опрос только запоминает счетчик отклоненных операций
+        assertEquals(1, clusterPressure.update(stats(0, 10, 0, 0), threadPools(1000)), 1e-9);
+        assertEquals(0.2, clusterPressure.update(stats(0, 12, 0, 0), threadPools(1000)), 1e-9);
+        assertEquals(2L, clusterPressure.getState().get("rejected"));
+        assertEquals(1, clusterPressure.update(stats(0, 12, 0, 0), threadPools(1000)), 1e-9);
+    }
+}
@@ -0,0 +1,161 @@
+package ru.mvz.elasticsearch.service;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка выдачи разрешений, изменения предела и распределения разрешений между очередями приоритета
+ */
+class ConcurrencyLimiterTest {
+
+    private static ConcurrencyLimiter limiter(int initialLimit, int minLimit, int maxLimit) {
+        return new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, 0.5, 3, Collections.emptyMap());
+    }
+
+    private static ConcurrencyLimiter.Permit acquire(ConcurrencyLimiter limiter) {
+        return limiter.acquire(Lane.LIVE).block(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void waitsForReleasedPermit() {
+        ConcurrencyLimiter limiter = limiter(2, 1, 2);
+        ConcurrencyLimiter.Permit first = acquire(limiter);
+        acquire(limiter);
+        List<ConcurrencyLimiter.Permit> granted = new ArrayList<>();
+        limiter.acquire(Lane.LIVE).subscribe(granted::add);
+        assertTrue(granted.isEmpty());
+        assertEquals(1, limiter.getWaiting());
+
+        first.release();
+        assertEquals(1, granted.size());
+        assertEquals(0, limiter.getWaiting());
+        assertEquals(2, limiter.getInFlight());
+            // Повторное освобождение разрешения игнорируется
+        first.release();
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    void cancelledWaiterLeavesQueue() {
+        ConcurrencyLimiter limiter = limiter(1, 1, 1);
+        ConcurrencyLimiter.Permit permit = acquire(limiter);
+        Disposable waiter = limiter.acquire(Lane.REFRESH).subscribe();
+        assertEquals(1, limiter.getWaiting(Lane.REFRESH));
+        waiter.dispose();
+        assertEquals(0, limiter.getWaiting());
+        permit.release();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void droppedDecreasesLimit() {
+        ConcurrencyLimiter limiter = limiter(8, 3, 8);
+        acquire(limiter).dropped();
+        assertEquals(4, limiter.getLimit());
+        acquire(limiter).dropped();
+        assertEquals(3, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void successIncreasesUsedLimit() {
+        ConcurrencyLimiter limiter = limiter(2, 1, 4);
+            // Предел не увеличивается, если он не используется
+        acquire(limiter).success();
+        assertEquals(2, limiter.getLimit());
+            // Предел растет на 1/limit за успешный запрос при полном использовании: 2 - 2.5 - 2.9 - 3.24
+        for(int i = 0; i < 3; i++) {
+            ConcurrencyLimiter.Permit first = acquire(limiter);
+            acquire(limiter).success();
+            first.success();
+        }
+        assertEquals(3, limiter.getLimit());
+        for(int i = 0; i < 10; i++) {
+            ConcurrencyLimiter.Permit first = acquire(limiter);
+            ConcurrencyLimiter.Permit second = acquire(limiter);
+            acquire(limiter).success();
+            second.success();
+            first.success();
+        }
+        assertEquals(limiter.getMaxLimit(), limiter.getLimit());
+    }
+
+    @Test
+    void pressureFactorScalesLimit() {
+        ConcurrencyLimiter limiter = limiter(10, 2, 10);
+        limiter.setPressureFactor(0.5);
+        assertEquals(5, limiter.getLimit());
+        limiter.setPressureFactor(0);
+        assertEquals(2, limiter.getLimit());
+        limiter.setPressureFactor(2);
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    void latencyOutlierDoesNotDecreaseLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = limiter(8, 1, 8);
+            // Наибольшая задержка окна не влияет на 99-й процентиль
+        for(int i = 0; i < 100; i++) {
+            ConcurrencyLimiter.Permit permit = acquire(limiter);
+            Thread.sleep(i == 99 ? 100 : 2);
+            permit.success();
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    void latencyGrowthDecreasesLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = limiter(8, 1, 8);
+        for(int i = 0; i < 100; i++) {
+            ConcurrencyLimiter.Permit permit = acquire(limiter);
+            Thread.sleep(i >= 98 ? 100 : 2);
+            permit.success();
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    void subMillisecondLatencyJitterDoesNotDecreaseLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = limiter(8, 1, 8);
+            // Базовая задержка меньше миллисекунды сравнивается как одна миллисекунда
+        for(int i = 0; i < 100; i++) {
+            ConcurrencyLimiter.Permit permit = acquire(limiter);
+            if(i >= 98) {
+                Thread.sleep(1);
+            }
+            permit.success();
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    void weightedLanes() {
+        Map<Lane, Integer> weights = new EnumMap<>(Lane.class);
+        weights.put(Lane.LIVE, 2);
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0.5, 3, weights);
+        assertEquals(2, limiter.getWeight(Lane.LIVE));
+        assertEquals(1, limiter.getWeight(Lane.REPLAY));
+
+        Deque<ConcurrencyLimiter.Permit> held = new ArrayDeque<>();
+        held.add(acquire(limiter));
+        List<Lane> order = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            for(Lane lane: Arrays.asList(Lane.REPLAY, Lane.LIVE)) {
+                limiter.acquire(lane).subscribe(permit -> {
+                    order.add(lane);
+                    held.add(permit);
+                });
+            }
+        }
+        while(!held.isEmpty()) {
+            held.poll().release();
+        }
+            // Очередь с вдвое большим весом получает два разрешения из трех, пока обе очереди не пусты
+        assertEquals(Arrays.asList(Lane.LIVE, Lane.REPLAY, Lane.LIVE, Lane.LIVE, Lane.REPLAY, Lane.REPLAY), order);
+    }
+}
@@ -0,0 +1,68 @@
+package ru.mvz.elasticsearch.service;
+
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import org.junit.jupiter.api.Test;
+import reactor.rabbitmq.AcknowledgableDelivery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка подтверждения сообщений брокеру по непрерывной последовательности обработанных сообщений
+ */
+class DeliveryAcknowledgerTest {
+
+        // Подтверждения брокеру в виде "номер:multiple"
+    final private List<String> acks = new ArrayList<>();
+
+    private AcknowledgableDelivery delivery(long tag) {
+        return new AcknowledgableDelivery(new Delivery(new Envelope(tag, false, "", ""), null, new byte[0]),
+                null, null) {
+            @Override
+            public void ack(boolean multiple) {
+                acks.add(getEnvelope().getDeliveryTag() + ":" + multiple);
+            }
+        };
+    }
+
+    @Test
+    void flushAcknowledgesLastContiguousDelivery() {
+        DeliveryAcknowledger acknowledger = new DeliveryAcknowledger();
+        Runnable first = acknowledger.register(delivery(1));
+        Runnable second = acknowledger.register(delivery(2));
+        Runnable third = acknowledger.register(delivery(3));
+        second.run();
+        first.run();
+        acknowledger.flush();
+            // Одно подтверждение с multiple=true покрывает оба обработанных сообщения
+        assertEquals(Collections.singletonList("2:true"), acks);
+        assertEquals(2L, acknowledger.getAcknowledged());
+        assertEquals(1, acknowledger.getPending());
+
+        third.run();
+        acknowledger.flush();
+        assertEquals(Arrays.asList("2:true", "3:true"), acks);
+    }
+
+    @Test
+    void flushWithoutProgressSendsNothing() {
+        DeliveryAcknowledger acknowledger = new DeliveryAcknowledger();
+        acknowledger.flush();
+        Runnable first = acknowledger.register(delivery(1));
+        Runnable second = acknowledger.register(delivery(2));
+        second.run();
+            // Первое сообщение не обработано, подтверждать нечего
+        acknowledger.flush();
+        assertTrue(acks.isEmpty());
+
+        first.run();
+        acknowledger.flush();
+        acknowledger.flush();
+        assertEquals(Collections.singletonList("2:true"), acks);
+    }
+}
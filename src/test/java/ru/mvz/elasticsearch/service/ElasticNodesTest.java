@@ -0,0 +1,118 @@
+package ru.mvz.elasticsearch.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка распределения запросов и переключения между узлами на локальных HTTP-серверах,
+ * отвечающих именем узла
+ */
+class ElasticNodesTest {
+
+    final private List<DisposableServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void stopServers() {
+        servers.forEach(DisposableServer::disposeNow);
+    }
+
+    private DisposableServer stub(String name, int port) {
+        DisposableServer server = HttpServer.create()
+                .port(port)
+                .route(routes -> routes
+                        .get("/_nodes/http", (request, response) -> response.sendString(Mono.just(
+                                "{\"nodes\":{\"a\":{\"http\":{\"publish_address\":\"localhost/127.0.0.1:"
+                                        + servers.get(0).port() + "\"}}}}")))
+                        .route(request -> true, (request, response) -> response.sendString(Mono.just(name))))
+                .bindNow();
+        servers.add(server);
+        return server;
+    }
+
+    private static List<String> urls(DisposableServer... servers) {
+        List<String> urls = new ArrayList<>();
+        for(DisposableServer server: servers) {
+            urls.add("http://localhost:" + server.port());
+        }
+        return urls;
+    }
+
+    private static WebClient client(ElasticNodes elasticNodes) {
+        return WebClient.builder()
+                .baseUrl(elasticNodes.getNodes().get(0).getUrl())
+                .filter(elasticNodes.filter())
+                .build();
+    }
+
+    private static String get(WebClient client) {
+        return client.get().uri("/_bulk").retrieve().bodyToMono(String.class)
+                .retryWhen(Retry.fixedDelay(3, Duration.ofMillis(10))
+                        .filter(e -> e instanceof WebClientRequestException))
+                .block(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void roundRobin() {
+        ElasticNodes elasticNodes = new ElasticNodes(urls(stub("a", 0), stub("b", 0)),
+                ElasticNodes.ROUND_ROBIN, 1, Duration.ofSeconds(30));
+        WebClient client = client(elasticNodes);
+        Set<String> answered = new HashSet<>();
+        for(int i = 0; i < 4; i++) {
+            answered.add(get(client));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), answered);
+    }
+
+    @Test
+    void failoverAndRestore() {
+        DisposableServer a = stub("a", 0);
+        DisposableServer b = stub("b", 0);
+        int port = b.port();
+        ElasticNodes elasticNodes = new ElasticNodes(urls(a, b), ElasticNodes.LEAST_IN_FLIGHT, 1,
+                Duration.ofSeconds(30));
+        elasticNodes.start(WebClient.create(), Duration.ZERO, Duration.ofSeconds(1), Duration.ZERO);
+        WebClient client = client(elasticNodes);
+        b.disposeNow();
+        for(int i = 0; i < 4; i++) {
+            assertEquals("a", get(client));
+        }
+        ElasticNodes.Node nodeB = elasticNodes.getNodes().get(1);
+        assertFalse(nodeB.isAvailable(System.currentTimeMillis()));
+
+            // Узел возвращается в выбор после успешной проверки доступности
+        stub("b", port);
+        elasticNodes.probe(nodeB, Duration.ofSeconds(1)).block();
+        assertTrue(nodeB.isAvailable(System.currentTimeMillis()));
+    }
+
+    @Test
+    void allNodesEjected() {
+        ElasticNodes elasticNodes = new ElasticNodes(urls(stub("a", 0)), ElasticNodes.ROUND_ROBIN, 1,
+                Duration.ofSeconds(30));
+        elasticNodes.getNodes().get(0).eject(Duration.ofSeconds(30), "test");
+        assertEquals("a", get(client(elasticNodes)));
+    }
+
+    @Test
+    void discovery() {
+        DisposableServer a = stub("a", 0);
+        DisposableServer b = stub("b", 0);
+        ElasticNodes elasticNodes = new ElasticNodes(urls(b), ElasticNodes.ROUND_ROBIN, 1, Duration.ofSeconds(30));
+        elasticNodes.start(WebClient.create(), Duration.ZERO, Duration.ofSeconds(1), Duration.ZERO);
+        elasticNodes.discover(Duration.ofSeconds(1)).block();
+        assertEquals(Collections.singletonList("http://127.0.0.1:" + a.port()),
+                elasticNodes.getNodes().stream().map(ElasticNodes.Node::getUrl).collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,67 @@
+package ru.mvz.elasticsearch.service;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка объединения событий с одинаковым ключом и условий закрытия окна
+ */
+class EventCoalescerTest {
+
+    private static EventCoalescer<String> coalescer(int maxKeys, Duration window) {
+        return new EventCoalescer<>(event -> event.charAt(0), maxKeys, window);
+    }
+
+    private static List<String> coalesce(EventCoalescer<String> coalescer, String... events) {
+        return Flux.just(events)
+                .transform(coalescer)
+                .collectList()
+                .block(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void latestEventKeepsFirstPosition() {
+        EventCoalescer<String> coalescer = coalescer(10, Duration.ofMinutes(1));
+        assertEquals(Arrays.asList("a2", "b1"), coalesce(coalescer, "a1", "b1", "a2"));
+        assertEquals(3, coalescer.getReceived().sum());
+        assertEquals(1, coalescer.getCoalesced().sum());
+    }
+
+    @Test
+    void mergeCombinesEvents() {
+        EventCoalescer<String> coalescer = new EventCoalescer<>(event -> event.charAt(0),
+                (previous, latest) -> previous + latest.substring(1), 10, Duration.ofMinutes(1));
+        assertEquals(Arrays.asList("a123", "b1"), coalesce(coalescer, "a1", "b1", "a2", "a3"));
+    }
+
+    @Test
+    void closesOnMaxKeys() {
+        EventCoalescer<String> coalescer = coalescer(2, Duration.ofMinutes(1));
+            // Событие a2 поступает после закрытия окна и не объединяется с a1
+        assertEquals(Arrays.asList("a1", "b1", "a2", "c1"), coalesce(coalescer, "a1", "b1", "a2", "c1"));
+        assertEquals(0, coalescer.getCoalesced().sum());
+    }
+
+    @Test
+    void closesOnDeadline() {
+        EventCoalescer<String> coalescer = coalescer(10, Duration.ofMillis(50));
+            // Источник не завершается, событие передается по истечении окна
+        assertEquals("a1", Flux.concat(Mono.just("a1"), Mono.never())
+                .transform(coalescer)
+                .blockFirst(Duration.ofSeconds(5)));
+    }
+
+    @Test
+    void zeroWindowPassesEventsThrough() {
+        EventCoalescer<String> coalescer = coalescer(10, Duration.ZERO);
+        assertEquals(Arrays.asList("a1", "a2"), coalesce(coalescer, "a1", "a2"));
+        assertEquals(0, coalescer.getReceived().sum());
+    }
+}
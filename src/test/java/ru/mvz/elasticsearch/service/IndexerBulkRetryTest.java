@@ -0,0 +1,170 @@
+package ru.mvz.elasticsearch.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import ru.mvz.elasticsearch.config.AppConfig;
+import ru.mvz.elasticsearch.config.WebClientConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка повторной отправки отдельных операций _bulk-запроса по ответам ElasticSearch
+ */
+class IndexerBulkRetryTest {
+
+    private static final String[] ITEMS = {"{\"index\":{\"_id\":\"1\"}}\n{\"a\":1}\n",
+            "{\"index\":{\"_id\":\"2\"}}\n{\"a\":2}\n",
+            "{\"index\":{\"_id\":\"3\"}}\n{\"a\":3}\n"};
+
+    private static final String CREATED = "{\"index\":{\"status\":201}}";
+
+    private static final String REJECTED =
+            "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected\"}}}";
+
+    private static final String INVALID =
+            "{\"index\":{\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"invalid\"}}}";
+
+    /**
+     * Тела полученных запросов
+     */
+    final private List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Ответы на запросы в порядке поступления запросов
+     */
+    final private Queue<String> responses = new ConcurrentLinkedQueue<>();
+
+    final private List<BulkFailureSink.BulkFailure> failures = Collections.synchronizedList(new ArrayList<>());
+
+    final private List<Integer> acked = Collections.synchronizedList(new ArrayList<>());
+
+    private DisposableServer server;
+
+    private Disposable failuresSubscription;
+
+    private Indexer indexer;
+
+    @BeforeEach
+    void start() {
+        server = HttpServer.create()
+                .host("localhost")
+                .port(0)
+                .route(routes -> routes.post("/_bulk", (request, response) -> request.receive()
+                        .aggregate()
+                        .asString(StandardCharsets.UTF_8)
+                        .flatMapMany(body -> {
+                            requests.add(body);
+                            return response.header("Content-Type", "application/json")
+                                    .sendString(Mono.just(responses.remove()));
+                        })))
+                .bindNow();
+        AppConfig appConfig = new AppConfig();
+        appConfig.setInitialProcessingRequest(2);
+        appConfig.setMinProcessingRequest(1);
+        appConfig.setMaxProcessingRequest(2);
+        appConfig.setWebClientRetryMaxAttempts(1);
+        appConfig.setWebClientRetryMinBackoff(0);
+        BulkFailureSink bulkFailureSink = new BulkFailureSink();
+        failuresSubscription = bulkFailureSink.asFlux().subscribe(failures::add);
+        indexer = new Indexer(null, null,
+                WebClient.builder().baseUrl("http://localhost:" + server.port()),
+                new WebClientConfig(), null, null, null, appConfig, DefaultDataBufferFactory.sharedInstance,
+                bulkFailureSink, null, null, new IndexerMetrics(new SimpleMeterRegistry()));
+    }
+
+    @AfterEach
+    void stop() {
+        failuresSubscription.dispose();
+        server.disposeNow();
+    }
+
+    private static String response(boolean errors, String... items) {
+        return "{\"errors\":" + errors + ",\"items\":[" + String.join(",", items) + "]}";
+    }
+
+    private BulkResult post() {
+        List<BulkItem> items = new ArrayList<>();
+        for(int i = 0; i < ITEMS.length; i++) {
+            int item = i;
+            items.add(new BulkItem(DefaultDataBufferFactory.sharedInstance.wrap(ITEMS[i].getBytes(StandardCharsets.UTF_8)),
+                    () -> acked.add(item)));
+        }
+        BulkBody body = BulkBody.join(DefaultDataBufferFactory.sharedInstance, items);
+        Indexer.Task task = new Indexer.Task("refresh", Lane.REFRESH, null, new IndexerMetrics(new SimpleMeterRegistry()));
+        BulkResult result = Flux.just(body)
+                .transform(indexer.postBulk(task))
+                .single()
+                .block(Duration.ofSeconds(10));
+        body.release();
+        return result;
+    }
+
+    @Test
+    void rejectedItemsAreRetriedSeparately() {
+        responses.add(response(true, CREATED, REJECTED, INVALID));
+        responses.add(response(false, CREATED));
+        BulkResult result = post();
+
+            // Повторно отправляется только операция, отклоненная из-за перегрузки
+        assertEquals(Arrays.asList(String.join("", ITEMS), ITEMS[1]), requests);
+        assertEquals(2, result.getSucceeded());
+        assertEquals(1, result.getFailed());
+        assertEquals(1, result.getRetried());
+        assertEquals(1, failures.size());
+        assertEquals(400, failures.get(0).getStatus());
+        assertEquals(ITEMS[2], failures.get(0).getItem());
+        assertEquals(Arrays.asList(0, 1, 2), sorted(acked));
+    }
+
+    @Test
+    void rejectedItemFailsAfterLastAttempt() {
+        responses.add(response(true, CREATED, REJECTED, CREATED));
+        responses.add(response(true, REJECTED));
+        BulkResult result = post();
+
+        assertEquals(2, requests.size());
+        assertEquals(2, result.getSucceeded());
+        assertEquals(1, result.getFailed());
+        assertEquals(1, result.getRetried());
+        assertEquals(429, failures.get(0).getStatus());
+        assertEquals(ITEMS[1], failures.get(0).getItem());
+        assertEquals(Arrays.asList(0, 1, 2), sorted(acked));
+    }
+
+    @Test
+    void mismatchedResponseRepeatsWholeBody() {
+        responses.add(response(true, REJECTED));
+        responses.add(response(false, CREATED, CREATED, CREATED));
+        BulkResult result = post();
+
+        assertEquals(Arrays.asList(String.join("", ITEMS), String.join("", ITEMS)), requests);
+        assertEquals(3, result.getSucceeded());
+        assertEquals(0, result.getFailed());
+        assertEquals(3, result.getRetried());
+        assertTrue(failures.isEmpty());
+    }
+
+    private static List<Integer> sorted(List<Integer> values) {
+        List<Integer> result = new ArrayList<>(values);
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,63 @@
+package ru.mvz.elasticsearch.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка времени ожидания маркерной корзины и ограничения скорости записи по документам и байтам
+ */
+class TokenBucketTest {
+
+    /**
+     * Допустимое пополнение корзины за время выполнения теста
+     */
+    private static final long TOLERANCE = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static void assertWait(double seconds, long wait) {
+        long expected = (long) (seconds * 1e9);
+        assertTrue(wait <= expected && wait > expected - TOLERANCE, "wait " + wait + " expected " + expected);
+    }
+
+    @Test
+    void unlimitedBucketNeverWaits() {
+        TokenBucket bucket = new TokenBucket(0);
+        assertEquals(0, bucket.reserve(1_000_000_000L));
+        assertEquals(0, bucket.reserve(1_000_000_000L));
+    }
+
+    @Test
+    void fullBucketAllowsOneSecondBurst() {
+        TokenBucket bucket = new TokenBucket(100);
+        assertEquals(0, bucket.reserve(100));
+            // Маркеры берутся в долг, ожидание соответствует погашению долга
+        assertWait(0.5, bucket.reserve(50));
+        assertWait(1, bucket.reserve(50));
+    }
+
+    @Test
+    void rateChangeKeepsDebt() {
+        TokenBucket bucket = new TokenBucket(100);
+        assertWait(0.5, bucket.reserve(150));
+        bucket.setRate(200);
+        assertEquals(200, bucket.getRate(), 0);
+        assertWait(0.25, bucket.reserve(200));
+    }
+
+    @Test
+    void bulkRateLimitWaitsForSlowestBucket() {
+        BulkBody body = BulkBody.wrap(DefaultDataBufferFactory.sharedInstance,
+                "{\"delete\":{\"_id\":\"1\"}}\n{\"delete\":{\"_id\":\"2\"}}\n");
+        BulkRateLimit rateLimit = new BulkRateLimit(2, 0);
+        assertEquals(0, rateLimit.reserve(body));
+        assertWait(1, rateLimit.reserve(body));
+
+            // Не заданное значение не изменяется. Долг по документам ожидает 2 с, по байтам - 3 с
+        rateLimit.update(null, body.size() / 4.0);
+        assertEquals(2.0, rateLimit.getState().get("documentsPerSecond"));
+        assertWait(3, rateLimit.reserve(body));
+    }
+}
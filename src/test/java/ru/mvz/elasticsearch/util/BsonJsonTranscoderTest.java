@@ -0,0 +1,156 @@
+package ru.mvz.elasticsearch.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoClientSettings;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка совпадения JSON, сформированного по байтам документа, с сериализацией отобранных полей Document,
+ * а также совпадения значений интегрированного поля
+ */
+class BsonJsonTranscoderTest {
+
+    final private ObjectMapper objectMapper = new ObjectMapper()
+            .setDateFormat(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ"));
+
+    private static RawBsonDocument raw(Document document) {
+        return RawBsonDocument.parse(document.toJson());
+    }
+
+    private static Document decode(RawBsonDocument document) {
+        return new DocumentCodec(MongoClientSettings.getDefaultCodecRegistry())
+                .decode(document.asBsonReader(), DecoderContext.builder().build());
+    }
+
+    private static FieldPathTrie trie(String... paths) {
+        List<List<String>> fields = new ArrayList<>();
+        for(String path: paths) {
+            fields.add(Arrays.asList(path.split("\\.")));
+        }
+        return FieldPathTrie.compile(fields);
+    }
+
+    private static Document sample() {
+        return new Document("_id", new ObjectId("5f1d7a3e9c1b2a0012345678"))
+                .append("name", "Иванов \"Иван\"\n\t\\ \u0001")
+                .append("int32", 42)
+                .append("int64", 1L << 40)
+                .append("double", 1.5)
+                .append("integralDouble", 2.0)
+                .append("flag", true)
+                .append("empty", null)
+                .append("date", new Date(1600000000000L))
+                .append("decimal", new Decimal128(new BigDecimal("123.4500")))
+                .append("address", new Document("city", "Москва")
+                        .append("street", "Тверская")
+                        .append("geo", new Document("lat", 55.75).append("lon", 37.61)))
+                .append("phones", Arrays.asList(
+                        new Document("type", "home").append("number", "111"),
+                        new Document("type", "work").append("number", 222),
+                        "plain",
+                        Arrays.asList(1, 2L)))
+                .append("tags", Arrays.asList("a", "b"))
+                .append("emptyDocument", new Document())
+                .append("emptyArray", Collections.emptyList());
+    }
+
+    /**
+     * Эталон: отобранные поля Document, записанные генератором так же, как при формировании операции индексации
+     */
+    private byte[] expected(RawBsonDocument document, FieldPathTrie select) throws IOException {
+        Document decoded = decode(document);
+        if(nonNull(select)) {
+            select.prune(decoded);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = objectMapper.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            for(Map.Entry<String, Object> entry: decoded.entrySet()) {
+                generator.writeFieldName(entry.getKey());
+                generator.writeObject(entry.getValue());
+            }
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] transcoded(RawBsonDocument document, FieldPathTrie select, FieldPathTrie summary,
+                              List<Object> summaryValues) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = objectMapper.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            BsonJsonTranscoder.writeFields(document, generator, select, summary,
+                    isNull(summaryValues) ? null : summaryValues::add);
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private void assertSameJson(RawBsonDocument document, FieldPathTrie select) throws IOException {
+        byte[] expected = expected(document, select);
+        byte[] actual = transcoded(document, select, null, null);
+        assertEquals(new String(expected, StandardCharsets.UTF_8), new String(actual, StandardCharsets.UTF_8));
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    void allFields() throws IOException {
+        assertSameJson(raw(sample()), null);
+    }
+
+    @Test
+    void selectedFields() throws IOException {
+        assertSameJson(raw(sample()), trie("_id", "name", "date", "decimal", "address.geo.lat", "phones.number",
+                "tags", "missing.field"));
+    }
+
+    @Test
+    void terminalFieldWrittenWhole() throws IOException {
+            // Поле описания сохраняется целиком вместе с вложенными полями, не указанными в описании
+        assertSameJson(raw(sample()), trie("address", "address.city", "phones"));
+    }
+
+    @Test
+    void noSelectedFields() throws IOException {
+        assertSameJson(raw(sample()), trie("missing"));
+    }
+
+    @Test
+    void summaryValues() throws IOException {
+        FieldPathTrie summary = trie("name", "int32", "int64", "double", "date", "address.city",
+                "phones.type", "phones.number", "tags", "phones");
+        RawBsonDocument document = raw(sample());
+
+        List<Object> expected = new ArrayList<>();
+        summary.forEachValue(decode(document), value -> {
+            if(value instanceof String || value instanceof Integer || value instanceof Long) {
+                expected.add(value);
+            }
+        });
+        List<Object> actual = new ArrayList<>();
+            // Значения интегрированного поля передаются и для полей, не отбираемых для записи
+        byte[] json = transcoded(document, trie("_id"), summary, actual);
+
+        assertEquals(expected, actual);
+        assertArrayEquals(expected(document, trie("_id")), json);
+    }
+}
@@ -0,0 +1,71 @@
+package ru.mvz.elasticsearch.util;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверка отбора полей документа по дереву путей полей описания индекса
+ */
+class FieldPathTrieTest {
+
+    private static FieldPathTrie trie(String... paths) {
+        List<List<String>> split = new ArrayList<>();
+        for(String path: paths) {
+            split.add(Arrays.asList(path.split("\\.")));
+        }
+        return FieldPathTrie.compile(split);
+    }
+
+    @Test
+    void pruneKeepsTerminalFieldWhole() {
+        Document document = Document.parse("{name: 'n', address: {city: 'c', zip: 'z'}, extra: 1}");
+        trie("name", "address").prune(document);
+        assertEquals(Document.parse("{name: 'n', address: {city: 'c', zip: 'z'}}"), document);
+    }
+
+    @Test
+    void prunePrefixKeepsOnlyDescribedFields() {
+        Document document = Document.parse("{address: {city: 'c', zip: 'z'}, extra: 1}");
+        trie("address.city").prune(document);
+        assertEquals(Document.parse("{address: {city: 'c'}}"), document);
+    }
+
+    @Test
+    void pruneArrayItemsBelongToArrayNode() {
+        Document document = Document.parse("{items: [{sku: 1, price: 2}, {sku: 3, price: 4}, 5]}");
+        trie("items.sku").prune(document);
+            // Скалярный элемент массива, путь которого является началом пути поля, сохраняется
+        assertEquals(Document.parse("{items: [{sku: 1}, {sku: 3}, 5]}"), document);
+    }
+
+    @Test
+    void emptyTrieRemovesAllFields() {
+        Document document = Document.parse("{a: 1, b: {c: 2}}");
+        FieldPathTrie trie = FieldPathTrie.compile(null);
+        assertTrue(trie.isEmpty());
+        trie.prune(document);
+        assertTrue(document.isEmpty());
+    }
+
+    @Test
+    void forEachValueFollowsDocumentOrder() {
+        Document document = Document.parse("{b: 'x', items: [{sku: 1}, {sku: null}, {sku: 3}], a: {c: 'y'}}");
+        List<Object> values = new ArrayList<>();
+        trie("a.c", "items.sku", "b", "missing").forEachValue(document, values::add);
+        assertEquals(Arrays.asList("x", 1, 3, "y"), values);
+    }
+
+    @Test
+    void forEachValueSkipsPrefixScalars() {
+        List<Object> values = new ArrayList<>();
+        trie("a.c").forEachValue(Document.parse("{a: 'scalar'}"), values::add);
+        assertEquals(Collections.emptyList(), values);
+    }
+}